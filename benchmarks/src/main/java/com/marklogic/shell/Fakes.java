@@ -0,0 +1,85 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Helpers shared by the benchmarks. Requests go to a {@link FakeServer} from
+ * the cqsh test jar.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class Fakes {
+    private Fakes() {
+    }
+
+    /**
+     * An output stream that throws everything away.
+     */
+    public static OutputStream nullOutputStream() {
+        return new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    /**
+     * A shell connected to <code>server</code> that writes to a null
+     * stream.
+     */
+    public static Shell newShell(FakeServer server) {
+        return server.newShell(nullOutputStream());
+    }
+
+    /**
+     * Create <code>count</code> files of <code>size</code> bytes named
+     * doc-N.xml below <code>dir</code>.
+     */
+    public static void createFiles(File dir, int count, int size)
+            throws IOException {
+        dir.mkdirs();
+        byte[] body = FakeServer.xml(size).getBytes("UTF-8");
+        for(int i = 0; i < count; i++) {
+            OutputStream out = new FileOutputStream(new File(dir, "doc-" + i
+                    + ".xml"));
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Delete <code>file</code> and everything below it.
+     */
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if(files != null) {
+            for(int i = 0; i < files.length; i++) {
+                delete(files[i]);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link FileScanner#findFiles(String)} and {@link FileMatcher} over
+ * a synthetic directory of small files.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileScannerBenchmark {
+    @Param( { "1000", "20000" })
+    public int files;
+
+    private File dir;
+    private String[] names;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = File.createTempFile("cqsh-bench", "");
+        dir.delete();
+        Fakes.createFiles(dir, files, 16);
+        names = dir.list();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fakes.delete(dir);
+    }
+
+    @Benchmark
+    public List findFilesInDirectory() {
+        return FileScanner.findFiles(dir.getPath());
+    }
+
+    @Benchmark
+    public List findFilesWithGlob() {
+        return FileScanner.findFiles(new File(dir, "doc-1*.xml").getPath());
+    }
+
+    @Benchmark
+    public int fileMatcher() {
+        FileMatcher matcher = new FileMatcher("doc-1*.xml");
+        int matches = 0;
+        for(int i = 0; i < names.length; i++) {
+            if(matcher.accept(dir, names[i])) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.shell.command.load;
+
+/**
+ * Measures the client side of the load command: scanning files, building
+ * content and batching inserts. Inserts go to a fake server that reads and
+ * discards the content after waiting <code>latency</code> milliseconds.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark {
+    @Param( { "100", "1000" })
+    public int files;
+
+    @Param( { "1024", "262144" })
+    public int fileSize;
+
+    @Param( { "0", "5" })
+    public int latency;
+
+    private File dir;
+    private FakeServer server;
+    private Shell shell;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = File.createTempFile("cqsh-bench", "");
+        dir.delete();
+        Fakes.createFiles(dir, files, fileSize);
+        server = new FakeServer();
+        server.setLatency(latency);
+        shell = Fakes.newShell(server);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        Fakes.delete(dir);
+    }
+
+    @Benchmark
+    public void load() {
+        new load().execute(shell, new String[] { dir.getPath() });
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * Measures printing a result sequence with
+ * {@link Shell#outputResultSequence(com.marklogic.xcc.ResultSequence)} for
+ * different item sizes, with and without pretty printing of xml elements.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+    @Param( { "100", "10000", "1000000" })
+    public int itemSize;
+
+    @Param( { "false", "true" })
+    public boolean prettyPrint;
+
+    private FakeServer server;
+    private Shell shell;
+    private Session session;
+
+    @Setup
+    public void setUp() {
+        server = new FakeServer();
+        server.respond("items", Math.max(1, 1000000 / itemSize), itemSize);
+        shell = Fakes.newShell(server);
+        shell.setProperty("pretty-print-xml", String.valueOf(prettyPrint));
+        session = shell.getContentSource().newSession();
+    }
+
+    @Benchmark
+    public void outputResultSequence() throws RequestException {
+        shell.outputResultSequence(session.submitRequest(session
+                .newAdhocQuery("items")));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+        server.stop();
+    }
+}
@@ -15,6 +15,11 @@
  */
 package com.marklogic.shell;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 
@@ -26,25 +31,143 @@ public abstract class AbstractEnvironment implements Environment {
      * Default port to use when connecting to Mark Logic
      */
     public static final int DEFAULT_PORT = 8003;
+    /**
+     * Name of the configuration file
+     */
+    public static final String RC_FILE = ".cqshrc";
+    private static Map contentSources = new HashMap();
+
     protected ContentSource contentSource;
     protected PropertiesConfiguration properties;
+    private volatile Settings settings;
 
     public AbstractEnvironment() {
-        properties = new PropertiesConfiguration();
-        try {
-            properties.load(".cqshrc");
-        } catch(ConfigurationException ignored) {
+        properties = readProperties(new File(System.getProperty("user.dir")));
+        settings = new Settings(properties);
+    }
+
+    /**
+     * Replace the properties with the ones in the {@link #RC_FILE} of
+     * <code>directory</code>, or of $HOME if it has none. Properties set
+     * since the environment was created are lost.
+     */
+    public synchronized void loadProperties(File directory) {
+        properties = readProperties(directory);
+        settings = new Settings(properties);
+    }
+
+    private static PropertiesConfiguration readProperties(File directory) {
+        PropertiesConfiguration properties = new PropertiesConfiguration();
+        File file = new File(directory, RC_FILE);
+        if(!file.isFile()) {
+            file = new File(System.getProperty("user.home"), RC_FILE);
+        }
+        if(file.isFile()) {
+            try {
+                properties.load(file);
+            } catch(ConfigurationException ignored) {
+            }
         }
+        return properties;
     }
 
     public PropertiesConfiguration getProperties() {
         return properties;
     }
 
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Writers are serialized and readers never lock, they just see the
+     * snapshot that was current when they called {@link #getSettings()}.
+     */
+    public synchronized void setProperty(String name, String value) {
+        properties.setProperty(name, value);
+        settings = new Settings(properties);
+    }
+
+    public synchronized void setProperties(Map values) {
+        for(Iterator i = values.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            properties.setProperty((String) entry.getKey(), entry.getValue());
+        }
+        settings = new Settings(properties);
+    }
+
     public ContentSource getContentSource() {
-        return ContentSourceFactory.newContentSource(properties
-                .getString("host"), properties.getInt("port", DEFAULT_PORT),
-                properties.getString("user"), properties.getString("password"),
-                properties.getString("database"));
+        Settings settings = getSettings();
+        return getContentSource(settings.getHost(), settings.getPort(),
+                settings.getUser(), settings.getPassword(), settings
+                        .getDatabase());
+    }
+
+    /**
+     * ContentSources are cached for the life of the JVM so their pooled
+     * connections are reused between requests, commands and (in the daemon)
+     * clients.
+     */
+    protected static ContentSource getContentSource(String host, int port,
+            String user, String password, String database) {
+        String key = user + "\n" + password + "\n" + host + "\n" + port
+                + "\n" + database;
+        synchronized(contentSources) {
+            ContentSource contentSource = (ContentSource) contentSources
+                    .get(key);
+            if(contentSource == null) {
+                if(database == null || database.length() == 0) {
+                    contentSource = ContentSourceFactory.newContentSource(
+                            host, port, user, password);
+                } else {
+                    contentSource = ContentSourceFactory.newContentSource(
+                            host, port, user, password, database);
+                }
+                contentSource = Capture.wrap(Metrics.getInstance().wrap(
+                        contentSource), user, database);
+                contentSources.put(key, contentSource);
+            }
+            return contentSource;
+        }
+    }
+
+    public ContentSource getContentSource(String connection)
+            throws ShellException {
+        Settings settings = getSettings();
+        String user = settings.getUser();
+        String password = settings.getPassword();
+        String host = connection;
+        int port = settings.getPort();
+        String database = null;
+
+        int at = host.lastIndexOf('@');
+        if(at != -1) {
+            user = host.substring(0, at);
+            host = host.substring(at + 1);
+            int colon = user.indexOf(':');
+            if(colon != -1) {
+                password = user.substring(colon + 1);
+                user = user.substring(0, colon);
+            }
+        }
+        int slash = host.indexOf('/');
+        if(slash != -1) {
+            database = host.substring(slash + 1);
+            host = host.substring(0, slash);
+        }
+        int colon = host.indexOf(':');
+        if(colon != -1) {
+            try {
+                port = Integer.parseInt(host.substring(colon + 1));
+            } catch(NumberFormatException e) {
+                throw new ShellException("Invalid port number in "
+                        + connection);
+            }
+            host = host.substring(0, colon);
+        }
+        if(host.length() == 0) {
+            throw new ShellException("Missing host in " + connection);
+        }
+        return getContentSource(host, port, user, password, database);
     }
 }
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ModuleInvoke;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.types.XdmVariable;
+
+/**
+ * Records the requests the shell sends to Mark Logic in an append only log
+ * that the replay command can run again. There is at most one active
+ * capture per JVM; when no capture is active the wrapped content sources
+ * pass requests straight through.
+ * 
+ * The log is a text file with a header line, then for every capture written
+ * to it a session line followed by one tab separated entry per line:
+ * 
+ * <pre>
+ * type offset latency items database user variables text
+ * </pre>
+ * 
+ * The type is Q for ad-hoc queries, M for module invokes, I for inserts and
+ * C for commands typed at the prompt. The offset from the start of the
+ * session and the latency are in microseconds. Items is the size of the
+ * result, {@link #STREAMED} if the result was streamed or {@link #FAILED}
+ * if the request failed. Variables
+ * are URL encoded name=type=value triples joined with '&amp;'. Tabs,
+ * newlines and backslashes in the text are escaped with a backslash.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class Capture {
+    /**
+     * First word of the header line of a capture log
+     */
+    public static final String HEADER = "#cqsh-capture";
+
+    /**
+     * First word of the line starting each capture written to a log. The
+     * offsets of the entries after it start again from 0.
+     */
+    public static final String SESSION = "#cqsh-session";
+
+    /**
+     * Items of a request whose result was streamed
+     */
+    public static final int STREAMED = -1;
+
+    /**
+     * Items of a request that failed
+     */
+    public static final int FAILED = -2;
+
+    private static volatile Capture active;
+
+    private File file;
+    private BufferedWriter writer;
+    private long start;
+    private long entries = 0;
+
+    private Capture(File file) throws IOException {
+        this.file = file;
+        boolean exists = file.exists() && file.length() > 0;
+        writer = new BufferedWriter(new FileWriter(file, true));
+        start = System.nanoTime();
+        String now = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ")
+                .format(new Date());
+        if(!exists) {
+            writer.write(HEADER + "\t2\t" + now);
+            writer.newLine();
+        }
+        writer.write(SESSION + "\t" + now);
+        writer.newLine();
+        writer.flush();
+    }
+
+    /**
+     * Start capturing to <code>file</code>, appending if it exists. Stops
+     * the active capture first.
+     */
+    public static synchronized Capture start(File file) throws IOException {
+        stop();
+        active = new Capture(file);
+        return active;
+    }
+
+    /**
+     * Stop the active capture, if any, and close its log.
+     */
+    public static synchronized Capture stop() {
+        Capture capture = active;
+        active = null;
+        if(capture != null) {
+            capture.close();
+        }
+        return capture;
+    }
+
+    /**
+     * The active capture or null.
+     */
+    public static Capture getActive() {
+        return active;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getEntries() {
+        return entries;
+    }
+
+    /**
+     * Record a command typed at the prompt. Commands are not replayed, the
+     * requests they make are recorded separately.
+     */
+    public void command(String line, String database, String user) {
+        record('C', System.nanoTime(), 0, 0, database, user, "", line);
+    }
+
+    private synchronized void record(char type, long started, long latency,
+            int items, String database, String user, String variables,
+            String text) {
+        if(writer == null) {
+            return;
+        }
+        StringBuffer line = new StringBuffer();
+        line.append(type).append('\t');
+        line.append((started - start) / 1000).append('\t');
+        line.append(latency / 1000).append('\t');
+        line.append(items).append('\t');
+        line.append(escape(database)).append('\t');
+        line.append(escape(user)).append('\t');
+        line.append(variables).append('\t');
+        line.append(escape(text));
+        try {
+            writer.write(line.toString());
+            writer.newLine();
+            writer.flush();
+            entries++;
+        } catch(IOException e) {
+            // stop rather than fail every request
+            close();
+        }
+    }
+
+    private synchronized void close() {
+        if(writer != null) {
+            try {
+                writer.close();
+            } catch(IOException ignored) {
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Wrap <code>source</code> so its requests are recorded while a capture
+     * is active. <code>user</code> and <code>database</code> are the
+     * defaults of the content source.
+     */
+    public static ContentSource wrap(final ContentSource source,
+            final String user, final String database) {
+        return (ContentSource) Proxies.newProxy(ContentSource.class,
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        Object result = Proxies.call(source, method, args);
+                        if(result instanceof Session) {
+                            String u = user;
+                            String db = database;
+                            int n = (args == null ? 0 : args.length);
+                            if(n == 1) {
+                                db = (String) args[0];
+                            } else if(n >= 2) {
+                                u = (String) args[0];
+                                db = (n == 3 ? (String) args[2] : database);
+                            }
+                            return wrap((Session) result, u, db);
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    private static Session wrap(final Session session, final String user,
+            final String database) {
+        return (Session) Proxies.newProxy(Session.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                Capture capture = active;
+                String name = method.getName();
+                if(capture == null
+                        || !("submitRequest".equals(name) || "insertContent"
+                                .equals(name))) {
+                    return Proxies.call(session, method, args);
+                }
+                long started = System.nanoTime();
+                int items = FAILED;
+                try {
+                    Object result = Proxies.call(session, method, args);
+                    if(result instanceof ResultSequence
+                            && ((ResultSequence) result).isCached()) {
+                        items = ((ResultSequence) result).size();
+                    } else if(result == null) {
+                        items = 0;
+                    } else {
+                        items = STREAMED;
+                    }
+                    return result;
+                } finally {
+                    long latency = System.nanoTime() - started;
+                    if("submitRequest".equals(name)) {
+                        Request request = (Request) args[0];
+                        char type = 'Q';
+                        String text = "";
+                        if(request instanceof AdhocQuery) {
+                            text = ((AdhocQuery) request).getQuery();
+                        } else if(request instanceof ModuleInvoke) {
+                            type = 'M';
+                            text = ((ModuleInvoke) request).getModuleUri();
+                        }
+                        capture.record(type, started, latency, items,
+                                database, user, encode(request
+                                        .getVariables()), text);
+                    } else {
+                        Content[] content = (args[0] instanceof Content[] ? (Content[]) args[0]
+                                : new Content[] { (Content) args[0] });
+                        capture.record('I', started, latency,
+                                items == FAILED ? FAILED : content.length,
+                                database, user, "",
+                                content.length > 0 ? content[0].getUri() : "");
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * One entry of a capture log.
+     */
+    public static class Entry {
+        public char type;
+        public long offset;
+        public long latency;
+        public int items;
+        public String database;
+        public String user;
+        public String[][] variables;
+        public String text;
+
+        /**
+         * Parse a line of a capture log. Returns null for the header and
+         * lines that are not entries.
+         */
+        public static Entry parse(String line) {
+            if(line.length() == 0 || line.startsWith("#")) {
+                return null;
+            }
+            String[] fields = line.split("\t", -1);
+            if(fields.length != 8 || fields[0].length() != 1) {
+                return null;
+            }
+            try {
+                Entry entry = new Entry();
+                entry.type = fields[0].charAt(0);
+                entry.offset = Long.parseLong(fields[1]);
+                entry.latency = Long.parseLong(fields[2]);
+                entry.items = Integer.parseInt(fields[3]);
+                entry.database = unescape(fields[4]);
+                entry.user = unescape(fields[5]);
+                entry.variables = decode(fields[6]);
+                entry.text = unescape(fields[7]);
+                return entry;
+            } catch(NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Encode variables as name=type=value triples joined with '&amp;'.
+     */
+    static String encode(XdmVariable[] variables) {
+        if(variables == null) {
+            return "";
+        }
+        StringBuffer buf = new StringBuffer();
+        for(int i = 0; i < variables.length; i++) {
+            if(i > 0) {
+                buf.append('&');
+            }
+            XdmVariable v = variables[i];
+            buf.append(urlEncode(v.getName().getLocalname())).append('=');
+            buf.append(urlEncode(String.valueOf(v.getValue().getValueType())))
+                    .append('=');
+            buf.append(urlEncode(v.getValue().asString()));
+        }
+        return buf.toString();
+    }
+
+    static String[][] decode(String variables) {
+        if(variables.length() == 0) {
+            return new String[0][];
+        }
+        String[] list = variables.split("&");
+        String[][] decoded = new String[list.length][];
+        for(int i = 0; i < list.length; i++) {
+            String[] parts = list[i].split("=", -1);
+            decoded[i] = new String[3];
+            for(int j = 0; j < 3; j++) {
+                decoded[i][j] = (j < parts.length ? urlDecode(parts[j]) : "");
+            }
+        }
+        return decoded;
+    }
+
+    static String escape(String s) {
+        if(s == null) {
+            return "";
+        }
+        StringBuffer buf = new StringBuffer(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+            case '\\':
+                buf.append("\\\\");
+                break;
+            case '\t':
+                buf.append("\\t");
+                break;
+            case '\n':
+                buf.append("\\n");
+                break;
+            case '\r':
+                buf.append("\\r");
+                break;
+            default:
+                buf.append(c);
+                break;
+            }
+        }
+        return buf.toString();
+    }
+
+    static String unescape(String s) {
+        StringBuffer buf = new StringBuffer(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                switch(next) {
+                case 't':
+                    buf.append('\t');
+                    break;
+                case 'n':
+                    buf.append('\n');
+                    break;
+                case 'r':
+                    buf.append('\r');
+                    break;
+                default:
+                    buf.append(next);
+                    break;
+                }
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    private static String urlEncode(String s) {
+        try {
+            return URLEncoder.encode(s == null ? "" : s, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String urlDecode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+/**
+ * Thin client for the cqsh {@link Daemon}. Only uses classes from the JDK
+ * so it starts quickly. If no daemon is running the arguments are run by a
+ * normal {@link Shell} in this JVM instead.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class Client {
+    public static void main(String[] args) {
+        Socket socket = connect();
+        if(socket == null) {
+            Shell.main(args);
+            return;
+        }
+        try {
+            System.exit(run(socket, args));
+        } catch(IOException e) {
+            System.err.println("Lost connection to cqsh daemon: "
+                    + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static Socket connect() {
+        File portFile = new File(System.getProperty("user.home"),
+                Daemon.PORT_FILE);
+        if(!portFile.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(
+                    portFile));
+            int port = Integer.parseInt(reader.readLine().trim());
+            String token = reader.readLine().trim();
+            reader.close();
+            Socket socket = new Socket("127.0.0.1", port);
+            new DataOutputStream(socket.getOutputStream()).writeUTF(token);
+            return socket;
+        } catch(Exception e) {
+            // stale port file, fall back to a local shell
+            return null;
+        }
+    }
+
+    private static int run(Socket socket, String[] args) throws IOException {
+        final DataOutputStream out = new DataOutputStream(socket
+                .getOutputStream());
+        out.writeUTF(System.getProperty("user.dir"));
+        out.writeInt(args.length);
+        for(int i = 0; i < args.length; i++) {
+            out.writeUTF(args[i]);
+        }
+        out.flush();
+
+        Thread stdin = new Thread() {
+            public void run() {
+                try {
+                    InputStream in = System.in;
+                    byte[] buf = new byte[8 * 1024];
+                    int n;
+                    while((n = in.read(buf)) > 0) {
+                        out.writeInt(n);
+                        out.write(buf, 0, n);
+                        out.flush();
+                    }
+                    out.writeInt(0);
+                    out.flush();
+                } catch(IOException ignored) {
+                }
+            }
+        };
+        stdin.setDaemon(true);
+        stdin.start();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        byte[] buf = new byte[8 * 1024];
+        while(true) {
+            byte type = in.readByte();
+            if(type == Daemon.EXIT) {
+                int status = in.readInt();
+                System.out.flush();
+                System.err.flush();
+                return status;
+            }
+            int len = in.readInt();
+            while(len > 0) {
+                int n = in.read(buf, 0, Math.min(len, buf.length));
+                if(n < 0) {
+                    throw new IOException("unexpected end of stream");
+                }
+                if(type == Daemon.STDERR) {
+                    System.err.write(buf, 0, n);
+                } else {
+                    System.out.write(buf, 0, n);
+                }
+                len -= n;
+            }
+            System.out.flush();
+        }
+    }
+}
@@ -0,0 +1,666 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command history stored one whole statement per line, so a query typed over
+ * several lines is recalled as a single entry. Entries are appended to the
+ * history file as they are added instead of rewriting the whole file. The
+ * file starts with a {@link #HEADER} line; files written by older versions
+ * of cqsh have none and hold one unescaped line per entry, they are
+ * converted the first time they are opened.
+ * 
+ * Loading only scans the file for line offsets; an entry is read from disk
+ * when it is recalled. When the file holds more than the maximum number of
+ * entries the oldest are cut off on load by copying the tail of the file and
+ * renaming the copy over the original. Several shells can share a file:
+ * loading, converting, compacting and every append hold a lock on a
+ * '.lock' file next to it, and appends reopen the file so they go to the
+ * file that is there now and not to one that was replaced.
+ * 
+ * {@link #search(String, boolean, int)} uses an index of the three character
+ * sequences in every entry, built the first time it is called, so a search
+ * only reads the entries that contain every sequence of the search text.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class CommandHistory extends jline.History {
+    /**
+     * Default number of entries to keep
+     */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    /**
+     * First line of a history file with escaped entries
+     */
+    public static final String HEADER = "#cqsh-history\t1";
+
+    private static final int GRAM = 3;
+
+    private File file;
+    private int maxSize;
+    // shells in the same JVM can't hold overlapping locks on one file
+    private static final Object LOCK = new Object();
+
+    private RandomAccessFile reader;
+    // a file from an older version that could not be converted, its lines
+    // are read as they are and nothing is appended to it
+    private boolean legacy = false;
+
+    // entries read from the file on load
+    private long[] starts = new long[0];
+    private int[] lengths = new int[0];
+    private int loaded = 0;
+    // entries added since then
+    private List added = new ArrayList();
+
+    private int first = 0;
+    private int index = 0;
+    private Map grams;
+
+    /**
+     * Open the history stored in <code>file</code>, which is created when
+     * the first entry is added. If <code>file</code> is null the history is
+     * only kept in memory.
+     */
+    public CommandHistory(File file, int maxSize) throws IOException {
+        this.file = file;
+        this.maxSize = (maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE);
+        if(file != null && file.exists() && file.length() > 0) {
+            synchronized(LOCK) {
+                FileLock lock = lock();
+                try {
+                    if(!hasHeader()) {
+                        legacy = !upgrade();
+                    }
+                    scan();
+                    if(loaded > this.maxSize) {
+                        compact();
+                    }
+                    reader = new RandomAccessFile(file, "r");
+                } finally {
+                    lock.channel().close();
+                }
+            }
+        }
+        index = size();
+    }
+
+    /**
+     * Lock the history file against other shells. Closing the channel of
+     * the lock releases it.
+     */
+    private FileLock lock() throws IOException {
+        return new RandomAccessFile(file.getPath() + ".lock", "rw")
+                .getChannel().lock();
+    }
+
+    /**
+     * Put <code>tmp</code> in the place of the history file. Returns false
+     * and leaves the history file as it was if that fails. The history file
+     * is only moved aside on platforms that can't rename over it, and is
+     * put back if the rename still fails.
+     */
+    private boolean replace(File tmp) {
+        if(tmp.renameTo(file)) {
+            return true;
+        }
+        File old = new File(file.getPath() + ".old");
+        old.delete();
+        if(!file.renameTo(old)) {
+            tmp.delete();
+            return false;
+        }
+        if(!tmp.renameTo(file)) {
+            // keep the copy if the original can't be put back either
+            if(old.renameTo(file)) {
+                tmp.delete();
+            }
+            return false;
+        }
+        old.delete();
+        return true;
+    }
+
+    /**
+     * True if the file starts with the header.
+     */
+    private boolean hasHeader() throws IOException {
+        byte[] header = (HEADER + "\n").getBytes("UTF-8");
+        byte[] bytes = new byte[header.length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            int n;
+            while(read < bytes.length
+                    && (n = in.read(bytes, read, bytes.length - read)) != -1) {
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return Arrays.equals(header, bytes);
+    }
+
+    /**
+     * Rewrite a file from an older version with a header and escaped
+     * entries. Returns false if the file can't be replaced.
+     */
+    private boolean upgrade() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        OutputStream to = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            to.write((HEADER + "\n").getBytes("UTF-8"));
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.length() > 0) {
+                    to.write(escape(line).getBytes("UTF-8"));
+                    to.write('\n');
+                }
+            }
+        } finally {
+            in.close();
+            to.close();
+        }
+        return replace(tmp);
+    }
+
+    /**
+     * Record the offset and length of every non empty line in the file,
+     * except the header.
+     */
+    private void scan() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file),
+                65536);
+        try {
+            byte[] buf = new byte[65536];
+            long pos = 0;
+            long start = 0;
+            boolean header = !legacy;
+            int n;
+            while((n = in.read(buf)) != -1) {
+                for(int i = 0; i < n; i++, pos++) {
+                    if(buf[i] == '\n') {
+                        if(header) {
+                            header = false;
+                        } else {
+                            addLine(start, pos);
+                        }
+                        start = pos + 1;
+                    }
+                }
+            }
+            if(!header) {
+                addLine(start, pos);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void addLine(long start, long end) {
+        if(end <= start) {
+            return;
+        }
+        if(loaded == starts.length) {
+            int size = Math.max(1024, loaded * 2);
+            long[] s = new long[size];
+            int[] l = new int[size];
+            System.arraycopy(starts, 0, s, 0, loaded);
+            System.arraycopy(lengths, 0, l, 0, loaded);
+            starts = s;
+            lengths = l;
+        }
+        starts[loaded] = start;
+        lengths[loaded] = (int) (end - start);
+        loaded++;
+    }
+
+    /**
+     * Drop the oldest entries from the file so it holds maxSize entries. If
+     * the file can't be replaced the entries are only hidden.
+     */
+    private void compact() throws IOException {
+        int drop = loaded - maxSize;
+        long cut = starts[drop];
+        if(legacy) {
+            first = drop;
+            return;
+        }
+        byte[] header = (HEADER + "\n").getBytes("UTF-8");
+        File tmp = new File(file.getPath() + ".tmp");
+        FileChannel from = new FileInputStream(file).getChannel();
+        FileChannel to = new FileOutputStream(tmp).getChannel();
+        try {
+            to.write(ByteBuffer.wrap(header));
+            long size = from.size();
+            long pos = cut;
+            while(pos < size) {
+                pos += from.transferTo(pos, size - pos, to);
+            }
+        } finally {
+            from.close();
+            to.close();
+        }
+        if(!replace(tmp)) {
+            first = drop;
+            return;
+        }
+        loaded = maxSize;
+        System.arraycopy(starts, drop, starts, 0, loaded);
+        System.arraycopy(lengths, drop, lengths, 0, loaded);
+        for(int i = 0; i < loaded; i++) {
+            starts[i] += header.length - cut;
+        }
+    }
+
+    /**
+     * The entry at <code>index</code>, 0 being the oldest.
+     */
+    public String get(int index) {
+        return entry(first + index);
+    }
+
+    private String entry(int id) {
+        if(id >= loaded) {
+            return (String) added.get(id - loaded);
+        }
+        try {
+            byte[] bytes = new byte[lengths[id]];
+            reader.seek(starts[id]);
+            reader.readFully(bytes);
+            return decode(bytes);
+        } catch(IOException e) {
+            return "";
+        }
+    }
+
+    public int size() {
+        return loaded + added.size() - first;
+    }
+
+    public void clear() {
+        first = loaded + added.size();
+        index = 0;
+    }
+
+    /**
+     * Add a statement, appending it to the history file. A statement equal
+     * to the last entry is not added again.
+     */
+    public void addToHistory(String line) {
+        if(line == null || line.trim().length() == 0) {
+            return;
+        }
+        int size = size();
+        if(size == 0 || !line.equals(get(size - 1))) {
+            added.add(line);
+            if(grams != null) {
+                addToIndex(loaded + added.size() - 1, line);
+            }
+            if(size() > maxSize) {
+                first++;
+            }
+            write(line);
+        }
+        moveToEnd();
+    }
+
+    private void write(String line) {
+        if(file == null || legacy) {
+            return;
+        }
+        try {
+            synchronized(LOCK) {
+                FileLock lock = lock();
+                try {
+                    boolean empty = !file.exists() || file.length() == 0;
+                    OutputStream out = new BufferedOutputStream(
+                            new FileOutputStream(file, true));
+                    try {
+                        if(empty) {
+                            out.write((HEADER + "\n").getBytes("UTF-8"));
+                        }
+                        out.write(escape(line).getBytes("UTF-8"));
+                        out.write('\n');
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    lock.channel().close();
+                }
+            }
+        } catch(IOException e) {
+            // keep the entry in memory only
+        }
+    }
+
+    public void flushBuffer() throws IOException {
+        // every entry is written as it is added
+    }
+
+    /**
+     * Close the history file.
+     */
+    public void close() {
+        try {
+            if(reader != null) {
+                reader.close();
+            }
+        } catch(IOException ignored) {
+        }
+    }
+
+    public void moveToEnd() {
+        index = size();
+    }
+
+    /**
+     * Move so that {@link #previous()} recalls the entry at
+     * <code>index</code>.
+     */
+    public void moveTo(int index) {
+        this.index = Math.max(0, Math.min(size(), index + 1));
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getCurrentIndex() {
+        return index;
+    }
+
+    public String current() {
+        return (index >= size() ? "" : get(index));
+    }
+
+    public boolean previous() {
+        if(index <= 0) {
+            return false;
+        }
+        index--;
+        return true;
+    }
+
+    public boolean next() {
+        if(index >= size()) {
+            return false;
+        }
+        index++;
+        return true;
+    }
+
+    /**
+     * A view of the history that reads entries as they are accessed.
+     */
+    public List getHistoryList() {
+        return new AbstractList() {
+            public Object get(int index) {
+                return CommandHistory.this.get(index);
+            }
+
+            public int size() {
+                return CommandHistory.this.size();
+            }
+        };
+    }
+
+    /**
+     * Returns the indexes of the most recent entries that contain
+     * <code>text</code>, or start with it if <code>prefix</code> is true,
+     * newest first. Each distinct statement is returned once and at most
+     * <code>limit</code> indexes are returned.
+     */
+    public List search(String text, boolean prefix, int limit) {
+        List matches = new ArrayList();
+        Set seen = new HashSet();
+        if(text.length() < GRAM) {
+            for(int i = size() - 1; i >= 0 && matches.size() < limit; i--) {
+                match(i, text, prefix, matches, seen);
+            }
+        } else {
+            int[] ids = candidates(text);
+            for(int c = ids.length - 1; c >= 0 && matches.size() < limit; c--) {
+                if(ids[c] < first) {
+                    break;
+                }
+                match(ids[c] - first, text, prefix, matches, seen);
+            }
+        }
+        return matches;
+    }
+
+    private void match(int i, String text, boolean prefix, List matches,
+            Set seen) {
+        String entry = get(i);
+        if((prefix ? entry.startsWith(text) : entry.indexOf(text) != -1)
+                && seen.add(entry)) {
+            matches.add(new Integer(i));
+        }
+    }
+
+    /**
+     * The ids of entries that contain every sequence in <code>text</code>,
+     * in ascending order.
+     */
+    private int[] candidates(String text) {
+        if(grams == null) {
+            buildIndex();
+        }
+        List lists = new ArrayList();
+        Postings smallest = null;
+        for(int i = 0; i + GRAM <= text.length(); i++) {
+            Postings p = (Postings) grams.get(new Long(gram(text, i)));
+            if(p == null) {
+                return new int[0];
+            }
+            lists.add(p);
+            if(smallest == null || p.size < smallest.size) {
+                smallest = p;
+            }
+        }
+        int[] ids = new int[smallest.size];
+        int n = 0;
+        for(int i = 0; i < smallest.size; i++) {
+            int id = smallest.ids[i];
+            boolean all = true;
+            for(int j = 0; j < lists.size() && all; j++) {
+                all = ((Postings) lists.get(j)).contains(id);
+            }
+            if(all) {
+                ids[n++] = id;
+            }
+        }
+        int[] result = new int[n];
+        System.arraycopy(ids, 0, result, 0, n);
+        return result;
+    }
+
+    private void buildIndex() {
+        grams = new HashMap();
+        if(loaded > first) {
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(file), 65536);
+                long pos = 0;
+                for(int id = first; id < loaded; id++) {
+                    while(pos < starts[id]) {
+                        pos += in.skip(starts[id] - pos);
+                    }
+                    byte[] bytes = new byte[lengths[id]];
+                    int read = 0;
+                    while(read < bytes.length) {
+                        int n = in.read(bytes, read, bytes.length - read);
+                        if(n == -1) {
+                            throw new IOException("History file truncated");
+                        }
+                        read += n;
+                    }
+                    pos += read;
+                    addToIndex(id, decode(bytes));
+                }
+            } catch(IOException e) {
+                // search what was indexed
+            } finally {
+                if(in != null) {
+                    try {
+                        in.close();
+                    } catch(IOException ignored) {
+                    }
+                }
+            }
+        }
+        for(int i = 0; i < added.size(); i++) {
+            addToIndex(loaded + i, (String) added.get(i));
+        }
+    }
+
+    private void addToIndex(int id, String entry) {
+        for(int i = 0; i + GRAM <= entry.length(); i++) {
+            Long key = new Long(gram(entry, i));
+            Postings p = (Postings) grams.get(key);
+            if(p == null) {
+                p = new Postings();
+                grams.put(key, p);
+            }
+            p.add(id);
+        }
+    }
+
+    private static long gram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16)
+                | s.charAt(i + 2);
+    }
+
+    /**
+     * Ascending ids of the entries that contain a sequence.
+     */
+    private static class Postings {
+        int[] ids = new int[2];
+        int size = 0;
+
+        void add(int id) {
+            if(size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if(size == ids.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(ids, 0, grown, 0, size);
+                ids = grown;
+            }
+            ids[size++] = id;
+        }
+
+        boolean contains(int id) {
+            int low = 0;
+            int high = size - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                if(ids[mid] < id) {
+                    low = mid + 1;
+                } else if(ids[mid] > id) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private String decode(byte[] bytes) throws IOException {
+        int length = bytes.length;
+        if(length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        String line = new String(bytes, 0, length, "UTF-8");
+        return (legacy ? line : unescape(line));
+    }
+
+    /**
+     * Escape backslashes and line breaks so an entry fits on one line.
+     */
+    static String escape(String s) {
+        StringBuffer buf = new StringBuffer(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '\\') {
+                buf.append("\\\\");
+            } else if(c == '\n') {
+                buf.append("\\n");
+            } else if(c == '\r') {
+                buf.append("\\r");
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    static String unescape(String s) {
+        if(s.indexOf('\\') == -1) {
+            return s;
+        }
+        StringBuffer buf = new StringBuffer(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            char next = (i + 1 < s.length() ? s.charAt(i + 1) : 0);
+            if(c == '\\' && next == '\\') {
+                buf.append('\\');
+                i++;
+            } else if(c == '\\' && next == 'n') {
+                buf.append('\n');
+                i++;
+            } else if(c == '\\' && next == 'r') {
+                buf.append('\r');
+                i++;
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+}
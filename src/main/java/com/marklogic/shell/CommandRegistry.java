@@ -0,0 +1,199 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.marklogic.shell.command.Command;
+
+/**
+ * Maps command names to command instances. The registry is built once from
+ * the command index files (META-INF/services/com.marklogic.shell.command.Command)
+ * found on the classpath. Commands in the packages listed in the 'path'
+ * property are looked up by class name the first time they are used and the
+ * result, found or not, is cached until 'path' changes. The instances in the
+ * registry are shared by every shell in the JVM, each shell runs its own
+ * instance of the same class so options parsed by one shell are never seen
+ * by another.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class CommandRegistry {
+    /**
+     * Resource listing command classes, one per line
+     */
+    public static final String INDEX = "META-INF/services/"
+            + Command.class.getName();
+
+    private static final int MAX_MISSES = 1024;
+
+    private static CommandRegistry instance;
+
+    private ClassLoader loader;
+    private Map commands = new HashMap();
+    private Map pathCommands = new HashMap();
+    private Set misses = new HashSet();
+    private String path = "";
+
+    public CommandRegistry(ClassLoader loader) {
+        this.loader = loader;
+        try {
+            Enumeration e = loader.getResources(INDEX);
+            while(e.hasMoreElements()) {
+                loadIndex((URL) e.nextElement());
+            }
+        } catch(IOException ignored) {
+        }
+    }
+
+    /**
+     * The registry for commands on the classpath of cqsh.
+     */
+    public static synchronized CommandRegistry getInstance() {
+        if(instance == null) {
+            instance = new CommandRegistry(CommandRegistry.class
+                    .getClassLoader());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the command called <code>name</code> or null if there is no
+     * such command. Commands in <code>path</code> take precedence over
+     * commands in the index.
+     */
+    public synchronized Command getCommand(String name, String[] path) {
+        if(name == null || !isIdentifier(name)) {
+            return null;
+        }
+        String key = join(path);
+        if(!key.equals(this.path)) {
+            this.path = key;
+            pathCommands.clear();
+            misses.clear();
+        }
+
+        Command command = (Command) pathCommands.get(name);
+        if(command != null) {
+            return command;
+        }
+        if(!misses.contains(name)) {
+            command = findInPath(name, path);
+            if(command != null) {
+                pathCommands.put(name, command);
+                return command;
+            }
+            if(misses.size() >= MAX_MISSES) {
+                misses.clear();
+            }
+            misses.add(name);
+        }
+        return (Command) commands.get(name);
+    }
+
+    /**
+     * Names of the commands in the index.
+     */
+    public synchronized Set getNames() {
+        return new HashSet(commands.keySet());
+    }
+
+    private Command findInPath(String name, String[] path) {
+        if(path == null) {
+            return null;
+        }
+        for(int i = 0; i < path.length; i++) {
+            Command command = newCommand(path[i] + "." + name);
+            if(command != null) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private void loadIndex(URL url) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(url
+                .openStream(), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if(comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if(line.length() == 0) {
+                    continue;
+                }
+                Command command = newCommand(line);
+                if(command != null) {
+                    String name = command.getName();
+                    if(name == null) {
+                        name = line.substring(line.lastIndexOf('.') + 1);
+                    }
+                    if(!commands.containsKey(name)) {
+                        commands.put(name, command);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Command newCommand(String className) {
+        try {
+            Class commandClass = Class.forName(className, true, loader);
+            if(Command.class.isAssignableFrom(commandClass)) {
+                return (Command) commandClass.newInstance();
+            }
+        } catch(Exception ignored) {
+        } catch(LinkageError ignored) {
+        }
+        return null;
+    }
+
+    private static boolean isIdentifier(String name) {
+        if(name.length() == 0
+                || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for(int i = 1; i < name.length(); i++) {
+            if(!Character.isJavaIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String join(String[] path) {
+        StringBuffer buf = new StringBuffer();
+        if(path != null) {
+            for(int i = 0; i < path.length; i++) {
+                buf.append(path[i]).append(',');
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+
+/**
+ * Keeps a JVM with cqsh loaded and its connections to Mark Logic pooled so
+ * scripts that run cqsh many times do not pay for JVM startup on every
+ * call. The daemon listens on a loopback port and writes the port and a
+ * random token to $HOME/.cqsh_daemon. {@link Client} forwards its arguments,
+ * working directory and standard input to the daemon, which runs them in
+ * an embedded {@link Shell} and streams back the output and exit code.
+ *
+ * Frames sent by the client: token, working directory, argument count and
+ * arguments as UTF strings, then standard input as length prefixed chunks
+ * ending with a zero length chunk. Frames sent by the daemon: a type byte
+ * ({@link #STDOUT}, {@link #STDERR} or {@link #EXIT}) followed by a length
+ * prefixed chunk of output or the exit code.
+ *
+ * Every client gets its own shell and its own command instances. The shell
+ * reads .cqshrc from the client's working directory, or from $HOME, just
+ * like a shell started by the client would. Stats and captures are kept per
+ * JVM, so they cover all clients of the daemon.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class Daemon {
+    /**
+     * File in $HOME holding the port and token of the running daemon
+     */
+    public static final String PORT_FILE = ".cqsh_daemon";
+
+    public static final byte STDOUT = 'o';
+    public static final byte STDERR = 'e';
+    public static final byte EXIT = 'x';
+
+    private ServerSocket server;
+    private String token;
+
+    public static void main(String[] args) {
+        int port = 0;
+        if(args.length > 0) {
+            try {
+                port = Integer.parseInt(args[0]);
+            } catch(NumberFormatException e) {
+                System.err.println("Invalid port number: " + args[0]);
+                System.exit(1);
+            }
+        }
+        try {
+            new Daemon().run(port);
+        } catch(IOException e) {
+            System.err.println("cqsh daemon failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Listen for clients on <code>port</code> (0 picks a free port) until
+     * the JVM is stopped.
+     */
+    public void run(int port) throws IOException {
+        // warm up the connection pool and fail early on bad settings
+        try {
+            new Shell().checkConnection();
+        } catch(Exception e) {
+            System.err.println("Warning: failed to connect to Mark Logic: "
+                    + e.getMessage());
+        }
+
+        server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        token = newToken();
+        final File portFile = new File(System.getProperty("user.home"),
+                PORT_FILE);
+        writePortFile(portFile, server.getLocalPort(), token);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                portFile.delete();
+            }
+        });
+        System.out.println("cqsh daemon listening on 127.0.0.1:"
+                + server.getLocalPort());
+
+        while(true) {
+            final Socket socket = server.accept();
+            Thread t = new Thread("cqsh-client-" + socket.getPort()) {
+                public void run() {
+                    handle(socket);
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            final DataInputStream in = new DataInputStream(socket
+                    .getInputStream());
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            if(!token.equals(in.readUTF())) {
+                return;
+            }
+            File cwd = new File(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for(int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            final PipedOutputStream stdin = new PipedOutputStream();
+            PipedInputStream shellIn = new PipedInputStream(stdin);
+            Thread pump = new Thread() {
+                public void run() {
+                    try {
+                        byte[] buf = new byte[8 * 1024];
+                        int n;
+                        while((n = in.readInt()) > 0) {
+                            while(n > 0) {
+                                int read = in.read(buf, 0, Math.min(n,
+                                        buf.length));
+                                if(read < 0) {
+                                    return;
+                                }
+                                stdin.write(buf, 0, read);
+                                n -= read;
+                            }
+                        }
+                    } catch(IOException ignored) {
+                    } finally {
+                        try {
+                            stdin.close();
+                        } catch(IOException ignored) {
+                        }
+                    }
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+
+            Shell shell = new Shell(shellIn, new FrameOutputStream(out,
+                    STDOUT), new FrameOutputStream(out, STDERR));
+            shell.setEmbedded(true);
+            shell.setWorkingDirectory(cwd);
+            shell.loadProperties(cwd);
+            int status = 0;
+            try {
+                shell.run(args);
+            } catch(Shell.ExitException e) {
+                status = e.getStatus();
+            } catch(RuntimeException e) {
+                shell.outputLine("Error: " + e.getMessage());
+                status = 1;
+            }
+            synchronized(out) {
+                out.writeByte(EXIT);
+                out.writeInt(status);
+                out.flush();
+            }
+        } catch(IOException ignored) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch(IOException ignored) {
+            }
+        }
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuffer buf = new StringBuffer();
+        for(int i = 0; i < bytes.length; i++) {
+            buf.append(Integer.toHexString((bytes[i] & 0xff) | 0x100)
+                    .substring(1));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Write the port and token to <code>file</code>. The token is as good as
+     * the connection password, so the file is created empty and made private
+     * before the token is written to it.
+     */
+    private static void writePortFile(File file, int port, String token)
+            throws IOException {
+        file.delete();
+        if(!file.createNewFile()) {
+            throw new IOException("Can't create " + file);
+        }
+        int status;
+        try {
+            status = Runtime.getRuntime().exec(
+                    new String[] { "chmod", "600", file.getPath() }).waitFor();
+        } catch(Exception e) {
+            status = -1;
+        }
+        if(status != 0) {
+            file.delete();
+            throw new IOException("Can't make " + file + " private");
+        }
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        writer.println(port);
+        writer.println(token);
+        writer.close();
+    }
+
+    /**
+     * Sends everything written to it as frames of one type.
+     */
+    static class FrameOutputStream extends OutputStream {
+        private DataOutputStream out;
+        private byte type;
+
+        public FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return;
+            }
+            synchronized(out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        public void flush() throws IOException {
+            synchronized(out) {
+                out.flush();
+            }
+        }
+    }
+}
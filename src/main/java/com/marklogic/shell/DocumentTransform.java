@@ -0,0 +1,43 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.File;
+
+/**
+ * A transform run by load on every document before it is inserted. load
+ * finds implementations by class name, either fully qualified or in one of
+ * the packages listed in the 'path' property, the same way commands are
+ * found. Every loading thread creates its own instance with the no argument
+ * constructor so implementations do not need to be thread safe.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public interface DocumentTransform {
+    /**
+     * Returns the transformed document or null to leave the document out of
+     * the load.
+     *
+     * @param uri
+     *            the uri the document will be inserted as
+     * @param file
+     *            the file the document was read from
+     * @param document
+     *            the contents of the file
+     */
+    public byte[] transform(String uri, File file, byte[] document)
+            throws Exception;
+}
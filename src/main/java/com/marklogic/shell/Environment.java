@@ -15,6 +15,9 @@
  */
 package com.marklogic.shell;
 
+import java.io.InputStream;
+import java.util.Map;
+
 import org.apache.commons.configuration.PropertiesConfiguration;
 
 import com.marklogic.xcc.ContentSource;
@@ -90,7 +93,50 @@ public interface Environment {
     public ContentSource getContentSource();
 
     /**
-     * The configuration properties for the environment.
+     * Returns a ContentSource for another server. The connection is given as
+     * [user[:password]@]host[:port][/database] and parts that are left out
+     * default to the current connection.
+     * 
+     * @param connection
+     */
+    public ContentSource getContentSource(String connection)
+            throws ShellException;
+
+    /**
+     * The configuration properties for the environment. Use
+     * {@link #setProperty(String, String)} to change a property so the change
+     * is published to {@link #getSettings()}.
      */
     public PropertiesConfiguration getProperties();
+
+    /**
+     * The input of the environment, read by commands given '-' as a file.
+     * Under the daemon this is the standard input of the client.
+     */
+    public InputStream getInputStream();
+
+    /**
+     * An immutable snapshot of the configuration properties. The snapshot is
+     * safe to share between threads and does not change when properties are
+     * set afterwards.
+     */
+    public Settings getSettings();
+
+    /**
+     * Set a configuration property and publish a new settings snapshot.
+     * 
+     * @param name
+     * @param value
+     */
+    public void setProperty(String name, String value);
+
+    /**
+     * Set several configuration properties and publish one settings snapshot
+     * with all of them, so no reader sees some of the changes without the
+     * others.
+     * 
+     * @param properties
+     *            property names mapped to their values
+     */
+    public void setProperties(Map properties);
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * Splits bulk work by the forests of the current database so every forest
+ * is read by its own request on its own session at the same time. Each
+ * slice is a separate request, so a large operation is no longer bounded
+ * by the time limit of a single request.
+ * 
+ * Commands use it when the 'forest-parallel' property is true.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class ForestPartitioner {
+    private static final String FORESTS = "for $f in xdmp:database-forests(xdmp:database()) "
+            + "return string($f)";
+
+    /**
+     * Work on one forest.
+     */
+    public interface ForestTask {
+        /**
+         * Run the work for the forest with id <code>forest</code> on
+         * <code>session</code>, which is only used by this call.
+         */
+        public void run(Session session, String forest) throws Exception;
+    }
+
+    private ContentSource contentSource;
+    private String database;
+    private String[] forests;
+
+    public ForestPartitioner(ContentSource contentSource) {
+        this(contentSource, null);
+    }
+
+    /**
+     * Split work by the forests of <code>database</code> instead of the
+     * current database. Every session is opened against it.
+     */
+    public ForestPartitioner(ContentSource contentSource, String database) {
+        this.contentSource = contentSource;
+        this.database = database;
+    }
+
+    /**
+     * True if bulk commands should be split by forest.
+     */
+    public static boolean isEnabled(Environment env) {
+        return env.getSettings().getBoolean("forest-parallel");
+    }
+
+    /**
+     * Ids of the forests in the database.
+     */
+    public synchronized String[] getForests() throws RequestException {
+        if(forests == null) {
+            Session session = newSession();
+            try {
+                AdhocQuery request = session.newAdhocQuery(FORESTS);
+                ResultSequence rs = session.submitRequest(request);
+                forests = rs.asStrings();
+                rs.close();
+            } finally {
+                session.close();
+            }
+        }
+        return forests;
+    }
+
+    /**
+     * A pager over the uri's selected by <code>arg</code> (see
+     * {@link UriPager#forArgument(Session, String, int)}) that reads every
+     * forest in parallel, at the same point in time, and merges them back
+     * into uri order. Close it to release its sessions.
+     */
+    public MergingPager newUriPager(String arg, int pageSize)
+            throws RequestException {
+        String[] forests = getForests();
+        Pager[] pagers = new Pager[forests.length];
+        Session[] sessions = new Session[forests.length];
+        if(forests.length > 0) {
+            BigInteger timestamp;
+            Session session = newSession();
+            try {
+                timestamp = session.getCurrentServerPointInTime();
+            } finally {
+                session.close();
+            }
+            for(int i = 0; i < forests.length; i++) {
+                sessions[i] = newSession();
+                UriPager pager = UriPager.forArgument(sessions[i], arg,
+                        pageSize);
+                pager.setForest(forests[i]);
+                pager.setPointInTime(timestamp);
+                pagers[i] = pager;
+            }
+        }
+        return new MergingPager(pagers, pageSize, sessions);
+    }
+
+    /**
+     * Run <code>task</code> for every forest at the same time and wait for
+     * them all. Throws the first failure.
+     */
+    public void forEach(final ForestTask task) throws Exception {
+        String[] forests = getForests();
+        if(forests.length == 0) {
+            return;
+        }
+        WorkQueue queue = new WorkQueue(forests.length);
+        for(int i = 0; i < forests.length; i++) {
+            final String forest = forests[i];
+            queue.submit(new WorkQueue.Task() {
+                public void run() throws Exception {
+                    Session session = newSession();
+                    try {
+                        task.run(session, forest);
+                    } finally {
+                        session.close();
+                    }
+                }
+            });
+        }
+        queue.finish();
+        List errors = queue.getErrors();
+        if(!errors.isEmpty()) {
+            throw (Exception) errors.get(0);
+        }
+    }
+
+    private Session newSession() {
+        if(database == null) {
+            return contentSource.newSession();
+        }
+        return contentSource.newSession(database);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * Merges pagers that each return uri's in order into a single ordered
+ * pager, dropping duplicates. Every pager has its next page fetched in the
+ * background while the current one is merged, so pagers over different
+ * forests read in parallel. {@link #close()} stops the fetches and closes
+ * the sessions the pagers read from.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class MergingPager implements Pager {
+    private Pager[] pagers;
+    private LinkedList[] buffers;
+    private Future[] pending;
+    private boolean[] done;
+    private int pageSize;
+    private String last;
+    private Session[] sessions;
+    private ThreadPoolExecutor executor;
+
+    public MergingPager(Pager[] pagers, int pageSize) {
+        this(pagers, pageSize, new Session[0]);
+    }
+
+    /**
+     * Merge <code>pagers</code>, closing <code>sessions</code> when the
+     * pager is closed.
+     */
+    public MergingPager(Pager[] pagers, int pageSize, Session[] sessions) {
+        this.pagers = pagers;
+        this.sessions = sessions;
+        this.pageSize = (pageSize > 0 ? pageSize : UriPager.DEFAULT_PAGE_SIZE);
+        buffers = new LinkedList[pagers.length];
+        pending = new Future[pagers.length];
+        done = new boolean[pagers.length];
+        // one thread per pager; a finished fetch may not have released its
+        // thread yet when the next one is submitted, so fetches queue
+        int threads = Math.max(1, pagers.length);
+        executor = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "cqsh-pager");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        for(int i = 0; i < pagers.length; i++) {
+            buffers[i] = new LinkedList();
+            prefetch(i);
+        }
+    }
+
+    public List nextPage() throws RequestException {
+        List page = new ArrayList();
+        while(page.size() < pageSize) {
+            int min = -1;
+            for(int i = 0; i < pagers.length; i++) {
+                fill(i);
+                if(!buffers[i].isEmpty()
+                        && (min == -1 || ((String) buffers[i].getFirst())
+                                .compareTo((String) buffers[min].getFirst()) < 0)) {
+                    min = i;
+                }
+            }
+            if(min == -1) {
+                executor.shutdown();
+                break;
+            }
+            String uri = (String) buffers[min].removeFirst();
+            if(!uri.equals(last)) {
+                page.add(uri);
+                last = uri;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Stop fetching pages and close the sessions.
+     */
+    public void close() {
+        executor.shutdownNow();
+        for(int i = 0; i < sessions.length; i++) {
+            if(sessions[i] != null) {
+                sessions[i].close();
+            }
+        }
+    }
+
+    private void prefetch(final int i) {
+        pending[i] = executor.submit(new Callable() {
+            public Object call() throws Exception {
+                return pagers[i].nextPage();
+            }
+        });
+    }
+
+    /**
+     * Wait for the next page of pager <code>i</code> if its buffer is
+     * empty, and start fetching the page after it.
+     */
+    private void fill(int i) throws RequestException {
+        if(done[i] || !buffers[i].isEmpty()) {
+            return;
+        }
+        List page;
+        try {
+            page = (List) pending[i].get();
+        } catch(InterruptedException e) {
+            throw new RequestException("Interrupted", null, e);
+        } catch(ExecutionException e) {
+            done[i] = true;
+            if(e.getCause() instanceof RequestException) {
+                throw (RequestException) e.getCause();
+            }
+            throw new RequestException(e.getCause().toString(), null, e
+                    .getCause());
+        }
+        pending[i] = null;
+        if(page.isEmpty()) {
+            done[i] = true;
+        } else {
+            buffers[i].addAll(page);
+            prefetch(i);
+        }
+    }
+}
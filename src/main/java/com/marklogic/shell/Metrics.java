@@ -0,0 +1,405 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ModuleInvoke;
+import com.marklogic.xcc.ResultItem;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * Counters and latency timers for the shell. Recording a value is lock free
+ * so it is cheap enough to do for every request and command. There is one
+ * registry per JVM, see {@link #getInstance()}.
+ * 
+ * Content sources returned by {@link #wrap(ContentSource)} record:
+ * <ul>
+ * <li>sessions - sessions created</li>
+ * <li>query.adhoc, query.invoke - time to submit a request and get the
+ * first results</li>
+ * <li>insert - time to insert content, insert.documents the number of
+ * documents</li>
+ * <li>received.bytes - UTF-8 size of the cached results read and of
+ * results read whole with asString or asStrings</li>
+ * <li>errors, errors.retryable - failed requests</li>
+ * </ul>
+ * The shell adds a command.[name] timer for every command it runs and counts
+ * the items and characters it outputs. Commands that retry failed requests
+ * count them as retries.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class Metrics implements MetricsMBean {
+    private static final Metrics INSTANCE = new Metrics();
+
+    private ConcurrentHashMap counters = new ConcurrentHashMap();
+    private ConcurrentHashMap timers = new ConcurrentHashMap();
+    private boolean registered = false;
+
+    /**
+     * The metrics registry for this JVM.
+     */
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Add one to counter <code>name</code>.
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Add <code>n</code> to counter <code>name</code>.
+     */
+    public void add(String name, long n) {
+        AtomicLong counter = (AtomicLong) counters.get(name);
+        if(counter == null) {
+            counters.putIfAbsent(name, new AtomicLong());
+            counter = (AtomicLong) counters.get(name);
+        }
+        counter.addAndGet(n);
+    }
+
+    /**
+     * The value of counter <code>name</code>, 0 if it has not been used.
+     */
+    public long getCounter(String name) {
+        AtomicLong counter = (AtomicLong) counters.get(name);
+        return (counter == null ? 0 : counter.get());
+    }
+
+    /**
+     * The timer <code>name</code>, created if it does not exist.
+     */
+    public Timer getTimer(String name) {
+        Timer timer = (Timer) timers.get(name);
+        if(timer == null) {
+            timers.putIfAbsent(name, new Timer());
+            timer = (Timer) timers.get(name);
+        }
+        return timer;
+    }
+
+    /**
+     * Record that something timed by <code>name</code> took
+     * <code>nanos</code> nanoseconds.
+     */
+    public void time(String name, long nanos) {
+        getTimer(name).record(nanos);
+    }
+
+    /**
+     * Sorted names of the counters that have been used.
+     */
+    public List getCounterNames() {
+        List names = new ArrayList(counters.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Sorted names of the timers that have been used.
+     */
+    public List getTimerNames() {
+        List names = new ArrayList(timers.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Clear all counters and timers.
+     */
+    public void reset() {
+        counters.clear();
+        timers.clear();
+    }
+
+    /**
+     * All counters and timers as a JSON object. Timer values are in
+     * milliseconds.
+     */
+    public String getJson() {
+        StringBuffer json = new StringBuffer("{\"counters\":{");
+        List names = getCounterNames();
+        for(int i = 0; i < names.size(); i++) {
+            String name = (String) names.get(i);
+            if(i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(name).append("\":").append(
+                    getCounter(name));
+        }
+        json.append("},\"timers\":{");
+        names = getTimerNames();
+        for(int i = 0; i < names.size(); i++) {
+            String name = (String) names.get(i);
+            Timer timer = getTimer(name);
+            if(i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(name).append("\":{");
+            json.append("\"count\":").append(timer.getCount());
+            json.append(",\"mean\":").append(timer.getMean());
+            json.append(",\"p50\":").append(timer.getPercentile(0.5));
+            json.append(",\"p95\":").append(timer.getPercentile(0.95));
+            json.append(",\"p99\":").append(timer.getPercentile(0.99));
+            json.append(",\"max\":").append(timer.getMax());
+            json.append('}');
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /**
+     * Write {@link #getJson()} to <code>file</code>.
+     */
+    public void writeJson(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(getJson());
+            writer.write(Environment.NEWLINE);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Register the metrics with the platform MBean server as
+     * com.marklogic.shell:type=Metrics. Does nothing if they are already
+     * registered.
+     */
+    public synchronized void registerMBean() throws ShellException {
+        if(registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(
+                    "com.marklogic.shell:type=Metrics"));
+            registered = true;
+        } catch(JMException e) {
+            throw new ShellException("Failed to register metrics MBean", e);
+        }
+    }
+
+    /**
+     * Wrap <code>source</code> so requests made through its sessions are
+     * recorded.
+     */
+    public ContentSource wrap(final ContentSource source) {
+        return (ContentSource) Proxies.newProxy(ContentSource.class,
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        Object result = Proxies.call(source, method, args);
+                        if(result instanceof Session) {
+                            increment("sessions");
+                            return wrap((Session) result);
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    private Session wrap(final Session session) {
+        return (Session) Proxies.newProxy(Session.class,
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                String timer = null;
+                String name = method.getName();
+                if("submitRequest".equals(name)) {
+                    if(args[0] instanceof AdhocQuery) {
+                        timer = "query.adhoc";
+                    } else if(args[0] instanceof ModuleInvoke) {
+                        timer = "query.invoke";
+                    } else {
+                        timer = "query.other";
+                    }
+                } else if("insertContent".equals(name)) {
+                    timer = "insert";
+                    add("insert.documents",
+                            (args[0] instanceof Content[] ? ((Content[]) args[0]).length
+                                    : 1));
+                } else {
+                    return Proxies.call(session, method, args);
+                }
+                long start = System.nanoTime();
+                try {
+                    Object result = Proxies.call(session, method, args);
+                    if(result instanceof ResultSequence) {
+                        return wrap((ResultSequence) result);
+                    }
+                    return result;
+                } catch(RequestException e) {
+                    increment("errors");
+                    if(e.isRetryable()) {
+                        increment("errors.retryable");
+                    }
+                    throw e;
+                } finally {
+                    time(timer, System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Count the bytes read from <code>rs</code>. Items of a streamed result
+     * can only be read once, so they are not counted one by one.
+     */
+    private ResultSequence wrap(final ResultSequence rs) {
+        return (ResultSequence) Proxies.newProxy(ResultSequence.class,
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        Object result = Proxies.call(rs, method, args);
+                        String name = method.getName();
+                        if("asString".equals(name)) {
+                            add("received.bytes", utf8Length((String) result));
+                        } else if("asStrings".equals(name)) {
+                            String[] values = (String[]) result;
+                            for(int i = 0; i < values.length; i++) {
+                                add("received.bytes", utf8Length(values[i]));
+                            }
+                        } else if("next".equals(name) && result != null
+                                && rs.isCached()) {
+                            ResultItem item = (ResultItem) result;
+                            add("received.bytes", utf8Length(item.asString()));
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Number of bytes in the UTF-8 encoding of <code>s</code>.
+     */
+    static long utf8Length(String s) {
+        if(s == null) {
+            return 0;
+        }
+        long n = 0;
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                n++;
+            } else if(c < 0x800) {
+                n += 2;
+            } else if(Character.isHighSurrogate(c)) {
+                // the low surrogate adds the other 2 bytes
+                n += 2;
+            } else {
+                n += (Character.isLowSurrogate(c) ? 2 : 3);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A latency histogram with power of two buckets in microseconds. The
+     * percentiles are the upper bound of the bucket they fall in, so they are
+     * accurate to within a factor of two, which is plenty to tell a slow
+     * server from a slow client.
+     */
+    public static class Timer {
+        private static final int BUCKETS = 64;
+
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private AtomicLong count = new AtomicLong();
+        private AtomicLong total = new AtomicLong();
+        private AtomicLong max = new AtomicLong();
+
+        /**
+         * Record a duration of <code>nanos</code> nanoseconds.
+         */
+        public void record(long nanos) {
+            long micros = Math.max(nanos / 1000, 0);
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(micros));
+            count.incrementAndGet();
+            total.addAndGet(micros);
+            long current = max.get();
+            while(micros > current && !max.compareAndSet(current, micros)) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Mean duration in milliseconds.
+         */
+        public double getMean() {
+            long n = count.get();
+            return (n == 0 ? 0 : (double) total.get() / n / 1000);
+        }
+
+        /**
+         * Longest duration in milliseconds.
+         */
+        public double getMax() {
+            return (double) max.get() / 1000;
+        }
+
+        /**
+         * The duration in milliseconds that <code>fraction</code> of the
+         * recorded durations are less than.
+         */
+        public double getPercentile(double fraction) {
+            long n = count.get();
+            if(n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * fraction);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if(seen >= rank) {
+                    // bucket i holds values below 2^i micros
+                    return Math.min((double) (1L << i) / 1000, getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+}
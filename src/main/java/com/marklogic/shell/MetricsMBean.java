@@ -0,0 +1,33 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+/**
+ * JMX view of the shell metrics.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public interface MetricsMBean {
+    /**
+     * All counters and timers as a JSON object.
+     */
+    public String getJson();
+
+    /**
+     * Clear all counters and timers.
+     */
+    public void reset();
+}
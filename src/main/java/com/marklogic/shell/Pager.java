@@ -0,0 +1,33 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.List;
+
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * A source of uri's that is read one page, and one request, at a time.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public interface Pager {
+    /**
+     * Returns the next page of uri's or an empty list when there are no more
+     * uri's.
+     */
+    public List nextPage() throws RequestException;
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.text.DecimalFormat;
+
+/**
+ * Thread safe progress counter for long running commands. The current count
+ * and rate are written on a single line, at most once per second, so workers
+ * can report every unit of work without flooding the console.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class Progress {
+    private static final long INTERVAL = 1000;
+
+    private Environment env;
+    private String label;
+    private long count = 0;
+    private long failed = 0;
+    private long start;
+    private long last = 0;
+
+    /**
+     * @param label
+     *            what is being counted, for example "documents removed"
+     */
+    public Progress(Environment env, String label) {
+        this.env = env;
+        this.label = label;
+        this.start = System.currentTimeMillis();
+    }
+
+    /**
+     * Add to the count of completed items.
+     */
+    public synchronized void add(long n) {
+        count += n;
+        long now = System.currentTimeMillis();
+        if(now - last >= INTERVAL) {
+            last = now;
+            env.output("\r" + getStatus());
+        }
+    }
+
+    /**
+     * Add to the count of failed items.
+     */
+    public synchronized void fail(long n) {
+        failed += n;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Print the final count on its own line.
+     */
+    public synchronized void done() {
+        env.outputLine("\r" + getStatus());
+    }
+
+    private String getStatus() {
+        double seconds = (double) (System.currentTimeMillis() - start) / 1000;
+        DecimalFormat format = new DecimalFormat("###,##0.00");
+        StringBuffer status = new StringBuffer();
+        status.append(count + " " + label);
+        if(failed > 0) {
+            status.append(", " + failed + " failed");
+        }
+        status.append(" (" + format.format(seconds) + " sec");
+        if(seconds > 0) {
+            status.append(", " + format.format(count / seconds) + "/sec");
+        }
+        status.append(")");
+        return status.toString();
+    }
+}
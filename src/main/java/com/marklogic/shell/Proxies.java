@@ -0,0 +1,54 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Plumbing for the dynamic proxies {@link Metrics} and {@link Capture} wrap
+ * XCC content sources and sessions in.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+class Proxies {
+    private Proxies() {
+    }
+
+    /**
+     * Call <code>method</code> on <code>target</code>, throwing whatever the
+     * method throws instead of an InvocationTargetException.
+     */
+    static Object call(Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch(InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    /**
+     * A proxy implementing <code>type</code> whose calls go to
+     * <code>handler</code>.
+     */
+    static Object newProxy(Class type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(Proxies.class.getClassLoader(),
+                new Class[] { type }, handler);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * Pages through the uri's returned by an xpath or xquery expression. Every
+ * page is evaluated at the point in time of the first page so the pages are
+ * consistent even if the database changes while paging.
+ * 
+ * A path from the document root ('/' or '//') is paged by uri: each page
+ * reads the next page of uri's after the last one from the uri lexicon and
+ * keeps those of the documents the path matches, so the last page costs
+ * no more than the first. The result is in uri order.
+ * 
+ * Any other expression is paged by position. Nodes are turned into their
+ * base-uri's and any other items are used as uri's as they are. Nodes of
+ * one document come back next to each other, so a uri that repeats the one
+ * before it is dropped, on the server within a page and here across pages.
+ * Every page evaluates the expression up to its end, so paths should be
+ * preferred for large results.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class QueryPager implements Pager {
+    private Session session;
+    private String query;
+    private int pageSize;
+    private RequestOptions options;
+    private boolean keyed;
+    private long from = 1;
+    private String last;
+    private String start = "";
+    private boolean done = false;
+
+    public QueryPager(Session session, String expression, int pageSize) {
+        this(session, expression, pageSize, null);
+    }
+
+    /**
+     * Create a pager over the nodes matching <code>expression</code> in the
+     * forest with id <code>forest</code>. The expression must be searchable
+     * since it is run with cts:search.
+     */
+    public QueryPager(Session session, String expression, int pageSize,
+            String forest) {
+        this.session = session;
+        this.pageSize = (pageSize > 0 ? pageSize : UriPager.DEFAULT_PAGE_SIZE);
+        String path = expression.trim();
+        if(path.startsWith("/")) {
+            keyed = true;
+            String forests = (forest == null ? "()" : "xs:unsignedLong(\""
+                    + forest + "\")");
+            String match = (path.equals("/") ? "true()" : "exists(doc($u)"
+                    + path + ")");
+            this.query = "define variable $start as xs:string external "
+                    + "define variable $limit as xs:integer external "
+                    + "let $uris := cts:uris($start, concat(\"limit=\", $limit + 1), "
+                    + "(), (), " + forests + ")[. ne $start][1 to $limit] "
+                    + "return (if(count($uris) lt $limit) then \"\" "
+                    + "else $uris[last()], "
+                    + "for $u in $uris where " + match + " return $u)";
+            return;
+        }
+        if(forest != null) {
+            expression = "cts:search(" + expression + ", cts:and-query(()), "
+                    + "(), (), xs:unsignedLong(\"" + forest + "\"))";
+        }
+        this.query = "define variable $from as xs:integer external "
+                + "define variable $to as xs:integer external "
+                + "let $uris := for $n in (" + expression
+                + ")[$from to $to] return if($n instance of node()) "
+                + "then string(base-uri($n)) else string($n) "
+                + "for $u at $i in $uris "
+                + "where $i eq 1 or $u ne $uris[$i - 1] return $u";
+    }
+
+    /**
+     * Evaluate every page at <code>timestamp</code> instead of the time of
+     * the first page, so pagers over different forests agree.
+     */
+    public void setPointInTime(BigInteger timestamp) {
+        options = new RequestOptions();
+        options.setEffectivePointInTime(timestamp);
+    }
+
+    public List nextPage() throws RequestException {
+        List page = new ArrayList();
+        if(options == null) {
+            options = new RequestOptions();
+            options.setEffectivePointInTime(session
+                    .getCurrentServerPointInTime());
+        }
+        // a page of nodes can collapse into fewer uri's, or none at all if
+        // they all belong to the last document of the previous page, so
+        // only an empty result means we are done
+        while(!done && page.isEmpty()) {
+            AdhocQuery request = session.newAdhocQuery(query, options);
+            if(keyed) {
+                request.setNewStringVariable("start", start);
+                request.setNewIntegerVariable("limit", pageSize);
+                ResultSequence rs = session.submitRequest(request);
+                String[] uris = rs.asStrings();
+                rs.close();
+                // the first item is the uri to read on from
+                if(uris.length == 0 || uris[0].length() == 0) {
+                    done = true;
+                } else {
+                    start = uris[0];
+                }
+                for(int i = 1; i < uris.length; i++) {
+                    page.add(uris[i]);
+                }
+                continue;
+            }
+            request.setNewIntegerVariable("from", from);
+            request.setNewIntegerVariable("to", from + pageSize - 1);
+            ResultSequence rs = session.submitRequest(request);
+            String[] uris = rs.asStrings();
+            rs.close();
+            for(int i = 0; i < uris.length; i++) {
+                if(!uris[i].equals(last)) {
+                    page.add(uris[i]);
+                    last = uris[i];
+                }
+            }
+            done = uris.length == 0;
+            from += pageSize;
+        }
+        return page;
+    }
+}
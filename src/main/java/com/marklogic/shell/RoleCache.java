@@ -0,0 +1,127 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * Client side cache of role id to role name mappings read from the Security
+ * database. There is one cache per host and port. The whole role table is
+ * read in one request and kept until it is older than the ttl, it is
+ * invalidated or a role id is seen that is not in the cache.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class RoleCache {
+    /**
+     * Default number of seconds to keep role names
+     */
+    public static final int DEFAULT_TTL = 300;
+
+    private static final String QUERY = "xdmp:eval-in('for $i in //sec:role "
+            + "return (data($i/sec:role-id), data($i/sec:role-name))', "
+            + "xdmp:database(\"Security\"))";
+
+    private static Map caches = new HashMap();
+
+    private Map names = new HashMap();
+    private Set misses = new HashSet();
+    private long loaded = 0;
+
+    private RoleCache() {
+    }
+
+    /**
+     * Returns the role cache for the host and port of the environment.
+     */
+    public static RoleCache getInstance(Environment env) {
+        Settings settings = env.getSettings();
+        return getInstance(settings.getHost() + ":" + settings.getPort());
+    }
+
+    /**
+     * Returns the role cache for a server identified by <code>key</code>,
+     * for example a connection string.
+     */
+    public static synchronized RoleCache getInstance(String key) {
+        RoleCache cache = (RoleCache) caches.get(key);
+        if(cache == null) {
+            cache = new RoleCache();
+            caches.put(key, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Drop all cached role names for every host.
+     */
+    public static synchronized void invalidateAll() {
+        caches.clear();
+    }
+
+    /**
+     * Drop the cached role names so they are reloaded on next use.
+     */
+    public synchronized void invalidate() {
+        names.clear();
+        misses.clear();
+        loaded = 0;
+    }
+
+    /**
+     * Returns the name of the role with the id <code>roleId</code> or the id
+     * itself if there is no such role.
+     *
+     * @param ttl
+     *            seconds to keep cached names
+     */
+    public synchronized String getName(Session session, String roleId, int ttl)
+            throws RequestException {
+        if(System.currentTimeMillis() - loaded > ttl * 1000L) {
+            load(session);
+        }
+        String name = (String) names.get(roleId);
+        if(name == null && !misses.contains(roleId)) {
+            load(session);
+            name = (String) names.get(roleId);
+            if(name == null) {
+                misses.add(roleId);
+            }
+        }
+        return (name == null ? roleId : name);
+    }
+
+    private void load(Session session) throws RequestException {
+        AdhocQuery request = session.newAdhocQuery(QUERY);
+        ResultSequence rs = session.submitRequest(request);
+        String[] values = rs.asStrings();
+        rs.close();
+        names.clear();
+        misses.clear();
+        for(int i = 0; i + 1 < values.length; i += 2) {
+            names.put(values[i], values[i + 1]);
+        }
+        loaded = System.currentTimeMillis();
+    }
+}
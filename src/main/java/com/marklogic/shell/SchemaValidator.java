@@ -0,0 +1,85 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Validates documents against an XML schema on the client. The schema is
+ * compiled once per file and shared by every thread, each thread gets its
+ * own validator since validators are not thread safe. A compiled schema is
+ * kept until the schema file changes.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class SchemaValidator {
+    private static Map cache = new HashMap();
+
+    private Schema schema;
+    private long modified;
+    private ThreadLocal validators = new ThreadLocal();
+
+    private SchemaValidator(File file) throws SAXException {
+        SchemaFactory factory = SchemaFactory
+                .newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        this.modified = file.lastModified();
+        this.schema = factory.newSchema(file);
+    }
+
+    /**
+     * The validator for the schema in <code>file</code>, compiling the
+     * schema if it has not been seen before or has changed.
+     */
+    public static synchronized SchemaValidator getInstance(File file)
+            throws SAXException {
+        String key = file.getAbsolutePath();
+        SchemaValidator validator = (SchemaValidator) cache.get(key);
+        if(validator == null || validator.modified != file.lastModified()) {
+            validator = new SchemaValidator(file);
+            cache.put(key, validator);
+        }
+        return validator;
+    }
+
+    /**
+     * Validate <code>source</code> on the calling thread. Throws a
+     * SAXParseException with the line and column of the first error if the
+     * document is not valid.
+     */
+    public void validate(Source source) throws SAXException, IOException {
+        Validator validator = (Validator) validators.get();
+        if(validator == null) {
+            validator = schema.newValidator();
+            validators.set(validator);
+        }
+        try {
+            validator.validate(source);
+        } finally {
+            validator.reset();
+        }
+    }
+}
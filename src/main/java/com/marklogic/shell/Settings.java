@@ -0,0 +1,198 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * An immutable snapshot of the environment configuration. The environment
+ * publishes a new snapshot every time a property is set (by set, use or su for
+ * example) so a snapshot can be shared between threads without locking.
+ * Commands and background jobs should fetch the snapshot once when they start
+ * so they see a consistent configuration for their whole run.
+ * 
+ * The properties used by the shell itself are parsed once when the snapshot
+ * is created and are available through typed getters.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public final class Settings {
+    /**
+     * Default number of lines to scroll output
+     */
+    public static final int DEFAULT_SCROLL = 50;
+
+    private final Map values;
+    private final List keys;
+    private final String[] path;
+
+    private final String user;
+    private final String password;
+    private final String host;
+    private final int port;
+    private final String database;
+    private final int scroll;
+    private final boolean prettyPrintXml;
+    private final boolean debug;
+    private final int pageSize;
+    private final int roleCacheTtl;
+    private final int historySize;
+
+    /**
+     * Create a snapshot of the current values in <code>config</code>.
+     */
+    public Settings(Configuration config) {
+        Map values = new HashMap();
+        List keys = new ArrayList();
+        for(Iterator i = config.getKeys(); i.hasNext();) {
+            String key = (String) i.next();
+            keys.add(key);
+            values.put(key, config.getString(key));
+        }
+        this.values = Collections.unmodifiableMap(values);
+        this.keys = Collections.unmodifiableList(keys);
+        this.path = config.getStringArray("path");
+
+        user = getString("user");
+        password = getString("password");
+        host = getString("host");
+        port = getInt("port", AbstractEnvironment.DEFAULT_PORT);
+        database = getString("database");
+        int scroll = getInt("scroll", DEFAULT_SCROLL);
+        this.scroll = (scroll < 0 ? DEFAULT_SCROLL : scroll);
+        prettyPrintXml = getBoolean("pretty-print-xml");
+        debug = getBoolean("debug");
+        pageSize = getInt("page-size", UriPager.DEFAULT_PAGE_SIZE);
+        roleCacheTtl = getInt("role-cache-ttl", RoleCache.DEFAULT_TTL);
+        historySize = getInt("history-size", CommandHistory.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * The value of property <code>name</code> or null if it is not set.
+     */
+    public String getString(String name) {
+        return (String) values.get(name);
+    }
+
+    /**
+     * The value of property <code>name</code> or <code>defaultValue</code>
+     * if it is not set.
+     */
+    public String getString(String name, String defaultValue) {
+        String value = getString(name);
+        return (value == null ? defaultValue : value);
+    }
+
+    /**
+     * The value of property <code>name</code> as an int or
+     * <code>defaultValue</code> if it is not set or is not a number.
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = getString(name);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch(NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * True if property <code>name</code> is set to "true".
+     */
+    public boolean getBoolean(String name) {
+        return "true".equals(getString(name));
+    }
+
+    /**
+     * The names of all properties in the order they were defined.
+     */
+    public Iterator getKeys() {
+        return keys.iterator();
+    }
+
+    /**
+     * The packages to search for commands.
+     */
+    public String[] getPath() {
+        return (String[]) path.clone();
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    /**
+     * Number of lines to output before pausing, 0 to never pause.
+     */
+    public int getScroll() {
+        return scroll;
+    }
+
+    public boolean isPrettyPrintXml() {
+        return prettyPrintXml;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * Number of uris to read per request when paging through the database.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Seconds to cache role names for.
+     */
+    public int getRoleCacheTtl() {
+        return roleCacheTtl;
+    }
+
+    /**
+     * Number of entries to keep in the command history.
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+}
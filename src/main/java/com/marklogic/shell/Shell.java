@@ -22,12 +22,15 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -79,31 +82,64 @@ public class Shell extends AbstractEnvironment {
     /**
      * Default number of lines to scroll output
      */
-    public static final int DEFAULT_SCROLL = 50;
+    public static final int DEFAULT_SCROLL = Settings.DEFAULT_SCROLL;
 
     /**
-     * Print writer to force utf-8 output
+     * Thrown instead of calling System.exit when the shell is embedded, for
+     * example when it is run by the cqsh daemon.
      */
-    private static PrintWriter utf8Out = null;
+    public static class ExitException extends RuntimeException {
+        private static final long serialVersionUID = -2495722546937335718L;
 
-    static {
-        try {
-            utf8Out = new PrintWriter(new OutputStreamWriter(System.out,
-                    "UTF-8"));
-        } catch(UnsupportedEncodingException e) {
-            System.err.println("Failed to create UTF-8 Print writer.");
-            e.printStackTrace();
+        private int status;
+
+        public ExitException(int status) {
+            super("exit " + status);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
         }
     }
 
+    /**
+     * Print writer to force utf-8 output
+     */
+    private PrintWriter utf8Out = null;
+    private PrintWriter errOut = null;
+    private InputStream in;
+
     private Options options;
     private jline.ConsoleReader console;
     private File historyFile;
+    private CommandHistory history;
+    private Transaction transaction;
+    private File workingDirectory;
+    private boolean embedded = false;
+    private Map commands = new HashMap();
 
     /**
      * Create a new Shell
      */
     public Shell() {
+        this(System.in, System.out, System.err);
+    }
+
+    /**
+     * Create a new Shell that reads from <code>in</code> and writes to
+     * <code>out</code> and <code>err</code>.
+     */
+    public Shell(InputStream in, OutputStream out, OutputStream err) {
+        this.in = in;
+        try {
+            utf8Out = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+            errOut = new PrintWriter(new OutputStreamWriter(err, "UTF-8"));
+        } catch(UnsupportedEncodingException e) {
+            System.err.println("Failed to create UTF-8 Print writer.");
+            e.printStackTrace();
+        }
+        workingDirectory = new File(System.getProperty("user.dir"));
         Option user = OptionBuilder.withLongOpt("user").hasArg()
                 .withDescription("user to use to connect to Marklogic").create(
                         "u");
@@ -156,7 +192,10 @@ public class Shell extends AbstractEnvironment {
         shell.run(args);
     }
 
-    private void run(String[] args) {
+    /**
+     * Run the shell with command line arguments <code>args</code>.
+     */
+    public void run(String[] args) {
         CommandLineParser parser = new PosixParser();
         CommandLine cmd = null;
         try {
@@ -198,36 +237,43 @@ public class Shell extends AbstractEnvironment {
             printHelp("You must provide a user, password, host and port.");
         }
 
-        properties.setProperty("user", user);
-        properties.setProperty("password", password);
-        properties.setProperty("host", host);
-        properties.setProperty("database", database);
-        properties.setProperty("port", port.toString());
+        Map connection = new HashMap();
+        connection.put("user", user);
+        connection.put("password", password);
+        connection.put("host", host);
+        connection.put("database", database);
+        connection.put("port", port.toString());
+        setProperties(connection);
         if(properties.getString("scroll") == null
                 || properties.getString("scroll").length() <= 0) {
-            properties.setProperty("scroll", String.valueOf(DEFAULT_SCROLL));
+            setProperty("scroll", String.valueOf(DEFAULT_SCROLL));
         }
 
         if(cmd.hasOption("F")) {
-            properties.setProperty("pretty-print-xml", "true");
+            setProperty("pretty-print-xml", "true");
+        }
+
+        if(getSettings().getBoolean("stats-jmx")) {
+            try {
+                Metrics.getInstance().registerMBean();
+            } catch(ShellException e) {
+                outputException(e);
+            }
         }
 
         String xqueryFile = cmd.getOptionValue("f");
         InputStream in = null;
         if(xqueryFile != null) {
             try {
-                in = new FileInputStream(new File(xqueryFile));
+                in = new FileInputStream(resolveFile(xqueryFile));
             } catch(FileNotFoundException e) {
                 exitWithError("File " + xqueryFile + " not found: "
                         + e.getMessage());
             }
         } else {
-            in = System.in;
+            in = this.in;
         }
-        int stdinBytes = 0;
-        try {
-            stdinBytes = in.available();
-        } catch(IOException ignored) { }
+        boolean interactive = (xqueryFile == null && isInteractive(in));
 
         if(cmd.hasOption("l")) {
             // XXX this is a hack to support loading from command line without
@@ -235,33 +281,11 @@ public class Shell extends AbstractEnvironment {
             // XXX make sure load command doesn't have conflicting args
             load loader = new load(this.options);
             loader.execute(this, args);
-        } else if(stdinBytes > 0) {
-            StringBuffer xquery = new StringBuffer();
-            try {
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(in));
-                char[] b = new char[4 * 1024];
-                int n;
-                while((n = reader.read(b)) > 0) {
-                    xquery.append(b, 0, n);
-                }
-            } catch(IOException e) {
-                exitWithError("Failed to read query from stdin: "
-                        + e.getMessage());
-            }
-
-            Session session = getContentSource().newSession();
-            AdhocQuery request = session.newAdhocQuery(xquery.toString());
-            try {
-                outputResultSequence(session.submitRequest(request), false);
-            } catch(RequestException e) {
-                outputException(e);
-            }
+        } else if(!interactive) {
+            runStatements(in);
         } else {
             try {
-                checkConnection(properties.getString("user"), properties
-                        .getString("password"), properties.getString("host"),
-                        properties.getInt("port", DEFAULT_PORT));
+                checkConnection();
             } catch(ShellException e) {
                 outputLine("Failed to connect to Mark Logic. Invalid connection information.");
                 outputException(e);
@@ -279,22 +303,96 @@ public class Shell extends AbstractEnvironment {
                 outputLine("Goodbye.");
             }
         }
+        writeStats();
+    }
+
+    /**
+     * True if the shell should prompt for input. The bin/cqsh script tells
+     * us whether stdin is a terminal with the cqsh.interactive property;
+     * without it piped input is only noticed if it has already arrived.
+     */
+    private boolean isInteractive(InputStream in) {
+        if(embedded) {
+            // no console, always read the query from the input
+            return false;
+        }
+        String tty = System.getProperty("cqsh.interactive");
+        if(tty != null) {
+            return Boolean.valueOf(tty).booleanValue();
+        }
+        try {
+            return in.available() == 0;
+        } catch(IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Run each statement read from <code>in</code> as soon as it is
+     * complete, so a generator can feed the shell an endless stream.
+     */
+    private void runStatements(InputStream in) {
+        StatementReader reader = new StatementReader(new BufferedReader(
+                new InputStreamReader(in)));
+        Session session = getContentSource().newSession();
+        try {
+            String xquery;
+            while((xquery = reader.next()) != null) {
+                String word = xquery.trim();
+                if("begin".equals(word) || "commit".equals(word)
+                        || "rollback".equals(word)) {
+                    runCommand(word);
+                } else if(transaction != null) {
+                    transaction.add(xquery);
+                } else {
+                    AdhocQuery request = session.newAdhocQuery(xquery);
+                    try {
+                        outputResultSequence(session.submitRequest(request),
+                                false);
+                    } catch(RequestException e) {
+                        outputException(e);
+                    }
+                }
+            }
+        } catch(IOException e) {
+            exitWithError("Failed to read query from stdin: "
+                    + e.getMessage());
+        } finally {
+            session.close();
+        }
+        discardTransaction();
     }
 
     private void startShell() {
         try {
             console = new jline.ConsoleReader();
-            console.setHistory(new jline.History(historyFile));
         } catch(IOException e) {
             throw new RuntimeException(
                     "Can't run shell. Failed to get a console. "
                             + "Your platform does not seem to be suppored. Error: "
                             + e.getMessage());
         }
+        int historySize = getSettings().getHistorySize();
+        try {
+            history = new CommandHistory(historyFile, historySize);
+        } catch(IOException e) {
+            outputError("Failed to read history file " + historyFile + ": "
+                    + e.getMessage());
+            try {
+                history = new CommandHistory(null, historySize);
+            } catch(IOException ignored) {
+                // not reached without a file
+            }
+        }
+        // statements are added by runCommand once they are complete
+        console.setUseHistory(false);
+        console.setHistory(history);
+        console.addCompletor(new ShellCompletor(this));
         boolean exit = false;
         while(!exit) {
             try {
-                String line = console.readLine("cqsh> ");
+                String line = console.readLine(transaction == null ? "cqsh> "
+                        : "cqsh*> ");
                 if(line != null) {
                     // Default exit command
                     if("exit".equals(line) || "q".equals(line)
@@ -308,10 +406,16 @@ public class Shell extends AbstractEnvironment {
                 exitWithError(e.getMessage());
             }
         }
+        history.close();
+        discardTransaction();
         outputLine("Goodbye.");
     }
 
-    private void runCommand(String line) {
+    /**
+     * Run a single line typed at the prompt. Package private so the
+     * benchmarks can measure command dispatch.
+     */
+    void runCommand(String line) {
         if(line == null || line.length() == 0) {
             return;
         }
@@ -325,39 +429,30 @@ public class Shell extends AbstractEnvironment {
             options = line.substring(line.indexOf(' ') + 1);
         }
 
-        Command command = null;
-        String[] path = properties.getStringArray("path");
-        if(path != null && path.length > 0) {
-            for(int i = 0; i < path.length; i++) {
-                try {
-                    Class commandClass = Class.forName(path[i] + "."
-                            + commandString);
-                    command = (Command) commandClass.newInstance();
-                    break;
-                } catch(Exception ignored) {
-                }
-            }
-        }
-
-        // Try the default system path as a last attempt.
-        if(command == null) {
-            try {
-                Class commandClass = Class.forName(Environment.SYSTEM_PATH
-                        + "." + commandString);
-                command = (Command) commandClass.newInstance();
-            } catch(Exception ignored) {
-            }
-        }
+        Command command = getCommand(commandString);
 
         if(command != null) {
+            addHistory(line);
             try {
                 if(options != null && options.length() > 0
                         && options.charAt(options.length() - 1) == ';') {
                     options = options.substring(0, options.length() - 1);
                 }
-                command.execute(this, options);
+                Capture capture = Capture.getActive();
+                if(capture != null) {
+                    capture.command(line, getSettings().getDatabase(),
+                            getSettings().getUser());
+                }
+                long start = System.nanoTime();
+                try {
+                    command.execute(this, options);
+                } finally {
+                    Metrics.getInstance().time("command." + commandString,
+                            System.nanoTime() - start);
+                }
                 outputLine("");
             } catch(Exception e) {
+                Metrics.getInstance().increment("errors.command");
                 if(debug()) {
                     e.printStackTrace();
                 }
@@ -387,8 +482,13 @@ public class Shell extends AbstractEnvironment {
                 }
             }
 
+            addHistory(xquery + line);
             xquery.append(line.substring(0, line.length() - 1));
-            if(!clearBuffer) {
+            if(!clearBuffer && transaction != null) {
+                transaction.add(xquery.toString());
+                outputLine("Buffered (" + transaction.size()
+                        + " statement(s) to commit).");
+            } else if(!clearBuffer) {
                 Session session = getContentSource().newSession();
                 AdhocQuery request = session.newAdhocQuery(xquery.toString());
                 try {
@@ -408,23 +508,69 @@ public class Shell extends AbstractEnvironment {
         }
     }
 
+    /**
+     * This shell's own instance of the command called <code>name</code>.
+     * Commands keep their parsed options between calls, so shells running
+     * on other threads, as under the daemon, must not share them. Package
+     * private for the tests.
+     */
+    Command getCommand(String name) {
+        Command command = CommandRegistry.getInstance().getCommand(name,
+                getSettings().getPath());
+        if(command == null) {
+            return null;
+        }
+        Command own = (Command) commands.get(command.getClass());
+        if(own == null) {
+            try {
+                own = (Command) command.getClass().newInstance();
+            } catch(Exception e) {
+                throw new RuntimeException("Can't create command " + name
+                        + ": " + e.getMessage());
+            }
+            commands.put(command.getClass(), own);
+        }
+        return own;
+    }
+
+    private void discardTransaction() {
+        if(transaction != null && transaction.size() > 0) {
+            outputError("Discarding " + transaction.size()
+                    + " uncommitted statement(s).");
+        }
+        transaction = null;
+    }
+
+    private void addHistory(String statement) {
+        if(history != null) {
+            history.addToHistory(statement);
+        }
+    }
+
     public void outputResultSequence(ResultSequence result) {
         outputResultSequence(result, true);
     }
 
     public void outputResultSequence(ResultSequence result, boolean scrollResult) {
+        Settings settings = getSettings();
         boolean stop = false;
         int lineCount = 0;
+        long items = 0;
+        long chars = 0;
         while(result.hasNext()) {
             ResultItem item = result.next();
+            items++;
 
             try {
-                BufferedReader reader = getResultItemReader(item);
+                BufferedReader reader = getResultItemReader(item, settings
+                        .isPrettyPrintXml());
                 String line = null;
                 while((line = reader.readLine()) != null) {
                     lineCount++;
+                    chars += line.length() + 1;
                     outputLine(line);
-                    if(scrollResult && checkStopScroll(lineCount)) {
+                    if(scrollResult
+                            && checkStopScroll(lineCount, settings.getScroll())) {
                         stop = true;
                         break;
                     }
@@ -441,13 +587,15 @@ public class Shell extends AbstractEnvironment {
                 break;
             }
         }
+        Metrics metrics = Metrics.getInstance();
+        metrics.add("output.items", items);
+        metrics.add("output.chars", chars);
     }
 
-    private BufferedReader getResultItemReader(ResultItem item)
-            throws ShellException {
+    private BufferedReader getResultItemReader(ResultItem item,
+            boolean prettyPrint) throws ShellException {
         BufferedReader reader;
-        if((item instanceof XdmElement)
-                && "true".equals(properties.getString("pretty-print-xml"))) {
+        if((item instanceof XdmElement) && prettyPrint) {
             XdmElement xdmElement = (XdmElement) item;
             DOMBuilder domBuilder = new DOMBuilder();
             Document doc = null;
@@ -478,26 +626,25 @@ public class Shell extends AbstractEnvironment {
     }
 
     public boolean debug() {
-        return "true".equals(properties.getString("debug"));
+        return getSettings().isDebug();
     }
 
     public boolean checkStopScroll(int lineCount) {
-        boolean stop = false;
+        return checkStopScroll(lineCount, getSettings().getScroll());
+    }
 
-        int scroll = DEFAULT_SCROLL;
-        try {
-            scroll = properties.getInt("scroll");
-        } catch(ConversionException e) {
-        }
+    /**
+     * Pauses the output every <code>scroll</code> lines and returns true if
+     * the user does not want to see more. Callers that output many lines
+     * should read the scroll setting once and use this method.
+     */
+    public boolean checkStopScroll(int lineCount, int scroll) {
+        boolean stop = false;
 
-        if(scroll == 0) {
+        if(scroll <= 0) {
             return false;
         }
 
-        if(scroll < 0) {
-            scroll = DEFAULT_SCROLL;
-        }
-
         if((lineCount % scroll) == 0) {
             try {
                 output("***** press <space> to continue ******");
@@ -528,14 +675,15 @@ public class Shell extends AbstractEnvironment {
      */
     public void checkConnection(String user, String password, String host,
             int port) throws ShellException {
+        Settings settings = getSettings();
         if(user == null)
-            user = properties.getString("user");
+            user = settings.getUser();
         if(password == null)
-            password = properties.getString("password");
+            password = settings.getPassword();
         if(host == null)
-            host = properties.getString("host");
+            host = settings.getHost();
         if(port == -1)
-            port = properties.getInt("port", DEFAULT_PORT);
+            port = settings.getPort();
 
         ContentSource contentSource = ContentSourceFactory.newContentSource(
                 host, port, user, password);
@@ -546,9 +694,9 @@ public class Shell extends AbstractEnvironment {
         try {
             ResultSequence rs = session.submitRequest(request);
             if(rs.hasNext()) {
-                String db = properties.getString("database");
+                String db = settings.getDatabase();
                 if(db == null) {
-                    properties.setProperty("database", rs.next().asString());
+                    setProperty("database", rs.next().asString());
                 }
             } else {
                 throw new ShellException("Failed to fetch default database.");
@@ -623,8 +771,8 @@ public class Shell extends AbstractEnvironment {
      */
     private void printWelcome() {
         outputLine("Welcome to cqsh " + VERSION + ".  Commands end with ';'");
-        outputLine("Connected to host: " + properties.getString("host") + ":"
-                + properties.getInt("port"));
+        outputLine("Connected to host: " + getSettings().getHost() + ":"
+                + getSettings().getPort());
         outputLine("");
         outputLine("Type 'help' for command help. Type '\\c' to clear the buffer.");
     }
@@ -635,8 +783,10 @@ public class Shell extends AbstractEnvironment {
      */
     private void printHelp() {
         HelpFormatter formatter = new HelpFormatter();
-        formatter.printHelp("cqsh", options);
-        System.exit(0);
+        formatter.printHelp(utf8Out, HelpFormatter.DEFAULT_WIDTH, "cqsh",
+                null, options, HelpFormatter.DEFAULT_LEFT_PAD,
+                HelpFormatter.DEFAULT_DESC_PAD, null);
+        terminate(0);
     }
 
     /**
@@ -675,8 +825,9 @@ public class Shell extends AbstractEnvironment {
      * Exit the shell with an error message.
      */
     public void exitWithError(String message) {
-        System.err.println(message);
-        System.exit(1);
+        errOut.println(message);
+        errOut.flush();
+        terminate(1);
     }
 
     /**
@@ -684,7 +835,73 @@ public class Shell extends AbstractEnvironment {
      */
     public void exit() {
         outputLine("Goodbye.");
-        System.exit(0);
+        terminate(0);
+    }
+
+    /**
+     * Stop the shell with exit code <code>status</code>. Exits the JVM unless
+     * the shell is embedded, in which case an {@link ExitException} is
+     * thrown.
+     */
+    protected void terminate(int status) {
+        writeStats();
+        utf8Out.flush();
+        errOut.flush();
+        if(embedded) {
+            throw new ExitException(status);
+        }
+        System.exit(status);
+    }
+
+    /**
+     * Write the metrics as JSON to the file named by the 'stats-file'
+     * property, if it is set.
+     */
+    private void writeStats() {
+        String file = getSettings().getString("stats-file");
+        if(file != null && file.length() > 0) {
+            try {
+                Metrics.getInstance().writeJson(resolveFile(file));
+            } catch(IOException e) {
+                errOut.println("Failed to write stats to " + file + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Embedded shells never exit the JVM and always run in batch mode,
+     * reading queries from their input stream.
+     */
+    public void setEmbedded(boolean embedded) {
+        this.embedded = embedded;
+    }
+
+    /**
+     * The directory relative file paths are resolved against. Defaults to
+     * the current directory of the JVM.
+     */
+    public File getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    public void setWorkingDirectory(File workingDirectory) {
+        this.workingDirectory = workingDirectory;
+    }
+
+    /**
+     * Resolve <code>path</code> against the working directory.
+     */
+    public File resolveFile(String path) {
+        File file = new File(path);
+        if(file.isAbsolute()) {
+            return file;
+        }
+        return new File(workingDirectory, path);
+    }
+
+    public InputStream getInputStream() {
+        return in;
     }
 
     /**
@@ -702,6 +919,29 @@ public class Shell extends AbstractEnvironment {
         return historyFile;
     }
 
+    /**
+     * The open transaction, or null if statements run immediately.
+     */
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    /**
+     * Start buffering statements in <code>transaction</code>, or run them
+     * immediately again if it is null.
+     */
+    public void setTransaction(Transaction transaction) {
+        this.transaction = transaction;
+    }
+
+    /**
+     * The command history, or null when the shell is not reading from a
+     * console.
+     */
+    public CommandHistory getHistory() {
+        return history;
+    }
+
     /**
      * The command line options passed into the shell when it was first
      * launched.
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+
+/**
+ * Tab completion for command names, uris, collections and database names.
+ * 
+ * Names are fetched from the server in the background, one bounded request
+ * per prefix, and kept in a small LRU cache that expires after a minute. A
+ * slice of names that was fetched completely also answers every longer
+ * prefix in the same directory without another request. Completion waits
+ * at most {@link #WAIT} milliseconds for a fetch; if it takes longer
+ * pressing tab again will show the names once they arrive. Database names
+ * are fetched when the completor is created.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class ShellCompletor implements jline.Completor {
+    /**
+     * Maximum number of names fetched for a prefix
+     */
+    public static final int LIMIT = 100;
+
+    /**
+     * Milliseconds to wait for names from the server
+     */
+    public static final long WAIT = 40;
+
+    /**
+     * Milliseconds to keep fetched names
+     */
+    public static final long TTL = 60 * 1000;
+
+    /**
+     * Number of prefixes to keep names for
+     */
+    public static final int CACHE_SIZE = 256;
+
+    private static final String URIS = "uri";
+    private static final String COLLECTIONS = "collection";
+    private static final String DATABASES = "database";
+
+    private static final List URI_COMMANDS = Arrays.asList(new String[] {
+            "cat", "cp", "ls", "rm" });
+    private static final List COLLECTION_COMMANDS = Arrays
+            .asList(new String[] { "cp", "load", "rm" });
+
+    private static final String COLLECTIONS_QUERY = "define variable $start as xs:string external "
+            + "define variable $limit as xs:integer external "
+            + "cts:collections($start, concat(\"limit=\", $limit))[starts-with(., $start)]";
+
+    private static final String DATABASES_QUERY = "for $d in xdmp:databases() return xdmp:database-name($d)";
+
+    private Environment env;
+    private long wait;
+    private long ttl;
+    private ExecutorService executor;
+    private Map cache = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public ShellCompletor(Environment env) {
+        this(env, WAIT, TTL);
+    }
+
+    /**
+     * Create a completor that waits <code>wait</code> milliseconds for
+     * names and keeps them for <code>ttl</code> milliseconds. Package
+     * private for the tests.
+     */
+    ShellCompletor(Environment env, long wait, long ttl) {
+        this.env = env;
+        this.wait = wait;
+        this.ttl = ttl;
+        executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cqsh-completion");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        fetch(DATABASES, "");
+    }
+
+    public int complete(String buffer, int cursor, List candidates) {
+        String line = (buffer == null ? "" : buffer.substring(0, cursor));
+        int start = line.lastIndexOf(' ') + 1;
+        String word = line.substring(start);
+        String before = line.substring(0, start).trim();
+
+        List names;
+        if(before.length() == 0) {
+            names = filter(new ArrayList(new TreeSet(CommandRegistry
+                    .getInstance().getNames())), word);
+        } else {
+            String[] tokens = before.split("\\s+");
+            String command = tokens[0];
+            String previous = tokens[tokens.length - 1];
+            if(word.startsWith("-")) {
+                return -1;
+            } else if("use".equals(command)) {
+                names = lookup(DATABASES, word);
+            } else if(COLLECTION_COMMANDS.contains(command)
+                    && ("-c".equals(previous) || "--collection"
+                            .equals(previous))) {
+                names = lookup(COLLECTIONS, word);
+            } else if(URI_COMMANDS.contains(command)) {
+                names = lookup(URIS, word);
+                if(names.size() == 1 && ((String) names.get(0)).endsWith("/")) {
+                    // likely to be completed next
+                    fetch(URIS, (String) names.get(0));
+                }
+            } else {
+                return -1;
+            }
+        }
+        if(names.isEmpty()) {
+            return -1;
+        }
+        candidates.addAll(names);
+        return start;
+    }
+
+    /**
+     * Names of <code>kind</code> that start with <code>prefix</code>,
+     * using a complete slice for a shorter prefix if one is cached.
+     */
+    private List lookup(String kind, String prefix) {
+        String scope = scope(kind);
+        String p = (DATABASES.equals(kind) ? "" : prefix);
+        while(true) {
+            Slice slice = cached(scope + p);
+            if(slice != null && slice.future.isDone()) {
+                Result result = slice.result();
+                if(result.complete || p.equals(prefix)) {
+                    return filter(result.names, prefix);
+                }
+            }
+            if(p.length() == 0 || (URIS.equals(kind) && p.endsWith("/"))) {
+                break;
+            }
+            p = p.substring(0, p.length() - 1);
+        }
+
+        Slice slice = fetch(kind, prefix);
+        try {
+            Result result = (Result) slice.future.get(wait,
+                    TimeUnit.MILLISECONDS);
+            return filter(result.names, prefix);
+        } catch(TimeoutException e) {
+            // still loading
+            return new ArrayList();
+        } catch(Exception e) {
+            return new ArrayList();
+        }
+    }
+
+    /**
+     * Start fetching names for <code>prefix</code> unless a fresh slice is
+     * already cached or loading.
+     */
+    private Slice fetch(final String kind, final String prefix) {
+        String key = scope(kind) + prefix;
+        synchronized(cache) {
+            Slice slice = cached(key);
+            if(slice == null) {
+                slice = new Slice();
+                slice.future = executor.submit(new Callable() {
+                    public Object call() {
+                        return load(kind, prefix);
+                    }
+                });
+                cache.put(key, slice);
+            }
+            return slice;
+        }
+    }
+
+    private Slice cached(String key) {
+        synchronized(cache) {
+            Slice slice = (Slice) cache.get(key);
+            if(slice != null
+                    && System.currentTimeMillis() - slice.time > ttl) {
+                cache.remove(key);
+                slice = null;
+            }
+            return slice;
+        }
+    }
+
+    /**
+     * Cache keys include the server and database so switching with use or
+     * su does not show stale names.
+     */
+    private String scope(String kind) {
+        Settings settings = env.getSettings();
+        return kind + "\n" + settings.getHost() + ":" + settings.getPort()
+                + "\n" + settings.getUser() + "\n"
+                + (DATABASES.equals(kind) ? "" : settings.getDatabase())
+                + "\n";
+    }
+
+    /**
+     * Fetch names from the server with a single request. Failures (a
+     * missing lexicon for example) are cached as an empty incomplete slice
+     * until it expires.
+     */
+    private Result load(String kind, String prefix) {
+        Result result = new Result();
+        Session session = env.getContentSource().newSession();
+        try {
+            if(URIS.equals(kind)) {
+                // one level of children, with the contents of every sub
+                // directory folded on the server into one name
+                UriPager pager = new UriPager(session, prefix, null, true,
+                        LIMIT);
+                List uris = pager.nextPage();
+                int dir = prefix.lastIndexOf('/') + 1;
+                Set children = new TreeSet();
+                for(Iterator i = uris.iterator(); i.hasNext();) {
+                    String uri = (String) i.next();
+                    int slash = uri.indexOf('/', dir);
+                    children.add(slash == -1 ? uri : uri.substring(0,
+                            slash + 1));
+                }
+                result.names.addAll(children);
+                result.complete = pager.isDone();
+            } else {
+                AdhocQuery request;
+                if(COLLECTIONS.equals(kind)) {
+                    request = session.newAdhocQuery(COLLECTIONS_QUERY);
+                    request.setNewStringVariable("start", prefix);
+                    request.setNewIntegerVariable("limit", LIMIT);
+                } else {
+                    request = session.newAdhocQuery(DATABASES_QUERY);
+                }
+                ResultSequence rs = session.submitRequest(request);
+                String[] names = rs.asStrings();
+                rs.close();
+                result.names.addAll(new TreeSet(Arrays.asList(names)));
+                result.complete = names.length < LIMIT
+                        || DATABASES.equals(kind);
+            }
+        } catch(Exception e) {
+            result.names.clear();
+            result.complete = false;
+        } finally {
+            session.close();
+        }
+        return result;
+    }
+
+    private static List filter(List names, String prefix) {
+        List matches = new ArrayList();
+        for(Iterator i = names.iterator(); i.hasNext();) {
+            String name = (String) i.next();
+            if(name.startsWith(prefix)) {
+                matches.add(name);
+            }
+        }
+        return matches;
+    }
+
+    private static class Slice {
+        Future future;
+        long time = System.currentTimeMillis();
+
+        Result result() {
+            try {
+                return (Result) future.get();
+            } catch(Exception e) {
+                return new Result();
+            }
+        }
+    }
+
+    private static class Result {
+        List names = new ArrayList();
+        boolean complete = false;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a stream of XQuery into statements as the text arrives, so each
+ * statement can be run as soon as it is complete instead of after the whole
+ * stream has been read. Only the current statement is held in memory.
+ * 
+ * As at the prompt, a statement ends with a line that ends in ';'. The ';'
+ * only ends a statement outside string literals, comments, element
+ * constructors and enclosed expressions, and not when it ends a prolog
+ * declaration (declare, define, import, module or xquery version), so a
+ * query can still spread its prolog over several lines. A statement without
+ * a prolog of its own is run with the prolog of the last statement that had
+ * one, so the declarations at the top of a file apply to every statement
+ * after them. Text left at the end of the stream is returned as the last
+ * statement.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class StatementReader {
+    private static final Pattern PROLOG = Pattern
+            .compile("^(declare|define|import|module|xquery)\\s.*",
+                    Pattern.DOTALL);
+
+    private Reader in;
+    private StringBuffer statement = new StringBuffer();
+    private boolean eof = false;
+    private String prolog;
+
+    // what the end of the statement is nested in: '{' for an enclosed
+    // expression, 't' for a start tag, 'c' for element content, 'x' for an
+    // end tag or the quote of an attribute value
+    private StringBuffer stack = new StringBuffer();
+    private char quote = 0;
+    private int comments = 0;
+    private char prev = 0;
+    private int lastText = -1;
+    private int lastSemicolon = -1;
+    private boolean lastPartProlog = false;
+    private int partStart = 0;
+    private int prologEnd = 0;
+
+    /**
+     * Read statements from <code>in</code>. The reader should return what
+     * is available rather than wait to fill its buffer, as InputStreamReader
+     * and BufferedReader do.
+     */
+    public StatementReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next statement without its closing ';', blocking until it
+     * is complete, or null at the end of the stream.
+     */
+    public String next() throws IOException {
+        while(!eof) {
+            int c = in.read();
+            if(c == -1) {
+                // the last line ends the same way without a line break
+                eof = true;
+            } else {
+                statement.append((char) c);
+                scan((char) c, statement.length() - 1);
+                if(c != '\n') {
+                    continue;
+                }
+            }
+            if(lastSemicolon != -1 && lastSemicolon == lastText
+                    && !lastPartProlog) {
+                String result = complete(lastSemicolon);
+                if(result != null) {
+                    return result;
+                }
+            }
+        }
+        return complete(statement.length());
+    }
+
+    /**
+     * The statement up to <code>end</code> with the prolog it runs with,
+     * or null if it is empty. Starts a new statement.
+     */
+    private String complete(int end) {
+        String result = statement.substring(0, end);
+        String own = (prologEnd > 0 ? statement.substring(0, prologEnd)
+                : null);
+        statement.setLength(0);
+        stack.setLength(0);
+        quote = 0;
+        comments = 0;
+        prev = 0;
+        lastText = -1;
+        lastSemicolon = -1;
+        lastPartProlog = false;
+        partStart = 0;
+        prologEnd = 0;
+        if(result.trim().length() == 0) {
+            return null;
+        }
+        if(own != null) {
+            prolog = own;
+        } else if(prolog != null) {
+            result = prolog + "\n" + result;
+        }
+        return result;
+    }
+
+    /**
+     * Follow the nesting of the statement through character <code>c</code>
+     * at <code>i</code>.
+     */
+    private void scan(char c, int i) {
+        if(!Character.isWhitespace(c)) {
+            lastText = i;
+        }
+        char top = (stack.length() == 0 ? 0 : stack
+                .charAt(stack.length() - 1));
+        boolean pair = false;
+        if(top == 0 || top == '{') {
+            pair = expression(c, i, top);
+        } else if(top == 't') {
+            if(c == '"' || c == '\'') {
+                stack.append(c);
+            } else if(c == '>') {
+                stack.setLength(stack.length() - 1);
+                if(prev != '/') {
+                    stack.append('c');
+                }
+            }
+        } else if(top == 'c') {
+            if(c == '{') {
+                stack.append('{');
+            } else if(prev == '<' && c == '/') {
+                stack.setCharAt(stack.length() - 1, 'x');
+            } else if(prev == '<' && isNameStart(c)) {
+                stack.append('t');
+            }
+        } else if(top == 'x') {
+            if(c == '>') {
+                stack.setLength(stack.length() - 1);
+            }
+        } else if(c == top) {
+            // the end of an attribute value
+            stack.setLength(stack.length() - 1);
+        } else if(c == '{') {
+            stack.append('{');
+        }
+        prev = (pair ? 0 : c);
+    }
+
+    /**
+     * Follow <code>c</code> in an expression. Returns true if it completes
+     * a two character token.
+     */
+    private boolean expression(char c, int i, char top) {
+        if(quote != 0) {
+            if(c == quote) {
+                quote = 0;
+            }
+        } else if(prev == '(' && c == ':') {
+            comments++;
+            return true;
+        } else if(comments > 0) {
+            if(prev == ':' && c == ')') {
+                comments--;
+                return true;
+            }
+        } else if(c == '"' || c == '\'') {
+            quote = c;
+        } else if(c == '{') {
+            stack.append('{');
+        } else if(c == '}') {
+            if(top == '{') {
+                stack.setLength(stack.length() - 1);
+            }
+        } else if(prev == '<' && isNameStart(c)) {
+            stack.append('t');
+        } else if(c == ';' && top == 0) {
+            lastPartProlog = hasProlog(statement.substring(partStart, i));
+            if(lastPartProlog && prologEnd == partStart) {
+                prologEnd = i + 1;
+            }
+            lastSemicolon = i;
+            partStart = i + 1;
+        }
+        return false;
+    }
+
+    private static boolean isNameStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    /**
+     * True if <code>statement</code> starts with a prolog declaration.
+     */
+    static boolean hasProlog(String statement) {
+        return PROLOG.matcher(stripComments(statement)).matches();
+    }
+
+    private static String stripComments(String text) {
+        String stripped = text.trim();
+        while(stripped.startsWith("(:") && stripped.indexOf(":)") != -1) {
+            stripped = stripped.substring(stripped.indexOf(":)") + 2).trim();
+        }
+        return stripped;
+    }
+}
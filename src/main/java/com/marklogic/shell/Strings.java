@@ -0,0 +1,70 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+/**
+ * String helpers shared by the commands: quoting values into XQuery and
+ * laying out table rows for reports.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class Strings {
+    private Strings() {
+    }
+
+    /**
+     * Quote <code>s</code> as an XQuery string literal.
+     */
+    public static String quote(String s) {
+        StringBuffer buf = new StringBuffer("\"");
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '"') {
+                buf.append("\"\"");
+            } else if(c == '&') {
+                buf.append("&amp;");
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.append('"').toString();
+    }
+
+    /**
+     * One row of a table. Each value is cut or padded to the width of its
+     * column, right aligned for positive widths and left aligned for
+     * negative ones. A width of 0 leaves the value as it is.
+     */
+    public static String row(String[] values, int[] widths) {
+        StringBuffer buf = new StringBuffer();
+        for(int i = 0; i < values.length; i++) {
+            if(i > 0) {
+                buf.append(' ');
+            }
+            String value = (values[i] == null ? "" : values[i]);
+            int width = Math.abs(widths[i]);
+            if(width > 0 && value.length() > width) {
+                value = value.substring(0, width);
+            }
+            StringBuffer pad = new StringBuffer();
+            for(int j = value.length(); j < width; j++) {
+                pad.append(' ');
+            }
+            buf.append(widths[i] < 0 ? value + pad : pad + value);
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Statements buffered on the client between begin and commit. On commit the
+ * statements are joined into a few requests of at most the chunk size, each
+ * a single sequence expression, so each request runs and commits as one
+ * transaction. A statement with its own prolog can't be joined with others
+ * and is sent in a request of its own.
+ * 
+ * Statements in the same request see the database as it was before the
+ * request and must not update the same document.
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class Transaction {
+    /**
+     * Default maximum number of characters per request
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private List statements = new ArrayList();
+    private int chunkSize;
+
+    public Transaction(int chunkSize) {
+        this.chunkSize = (chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Buffer a statement.
+     */
+    public void add(String statement) {
+        if(statement != null && statement.trim().length() > 0) {
+            statements.add(statement);
+        }
+    }
+
+    /**
+     * Number of buffered statements.
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * The queries to send on commit, in order.
+     */
+    public List getRequests() {
+        List requests = new ArrayList();
+        StringBuffer chunk = new StringBuffer();
+        for(Iterator i = statements.iterator(); i.hasNext();) {
+            String statement = (String) i.next();
+            if(StatementReader.hasProlog(statement)) {
+                if(chunk.length() > 0) {
+                    requests.add(chunk.toString());
+                    chunk.setLength(0);
+                }
+                requests.add(statement);
+                continue;
+            }
+            if(chunk.length() > 0
+                    && chunk.length() + statement.length() > chunkSize) {
+                requests.add(chunk.toString());
+                chunk.setLength(0);
+            }
+            // newlines keep a trailing comment from swallowing the ')'
+            chunk.append(chunk.length() > 0 ? ",\n(" : "(").append(statement)
+                    .append("\n)");
+        }
+        if(chunk.length() > 0) {
+            requests.add(chunk.toString());
+        }
+        return requests;
+    }
+}
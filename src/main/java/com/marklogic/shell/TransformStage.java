@@ -0,0 +1,159 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * The transform stage of load. Runs an XSLT stylesheet or a
+ * {@link DocumentTransform} class over each document on the thread that
+ * loads it. Stylesheets are compiled once and kept until the file changes,
+ * and every thread gets its own transformer or its own instance of the
+ * class.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class TransformStage {
+    private static Map cache = new HashMap();
+
+    private Templates templates;
+    private long modified;
+    private Class transformClass;
+    private ThreadLocal transforms = new ThreadLocal();
+
+    private TransformStage(Templates templates, long modified) {
+        this.templates = templates;
+        this.modified = modified;
+    }
+
+    private TransformStage(Class transformClass) {
+        this.transformClass = transformClass;
+    }
+
+    /**
+     * The stage for <code>name</code>. Names ending in .xsl or .xslt are
+     * stylesheets read from <code>file</code>, anything else is the name of
+     * a {@link DocumentTransform} class, fully qualified or in one of the
+     * packages in <code>path</code>.
+     */
+    public static TransformStage forName(String name, File file, String[] path)
+            throws ShellException {
+        if(name.endsWith(".xsl") || name.endsWith(".xslt")) {
+            return forStylesheet(file);
+        }
+        Class transformClass = findClass(name);
+        for(int i = 0; transformClass == null && path != null
+                && i < path.length; i++) {
+            transformClass = findClass(path[i] + "." + name);
+        }
+        if(transformClass == null) {
+            throw new ShellException("No transform class found called '"
+                    + name + "'");
+        }
+        return new TransformStage(transformClass);
+    }
+
+    private static synchronized TransformStage forStylesheet(File file)
+            throws ShellException {
+        if(!file.isFile()) {
+            throw new ShellException("Stylesheet " + file + " not found");
+        }
+        String key = file.getAbsolutePath();
+        TransformStage stage = (TransformStage) cache.get(key);
+        if(stage == null || stage.modified != file.lastModified()) {
+            long modified = file.lastModified();
+            try {
+                stage = new TransformStage(TransformerFactory.newInstance()
+                        .newTemplates(new StreamSource(file)), modified);
+            } catch(TransformerConfigurationException e) {
+                throw new ShellException("Failed to compile " + file + ": "
+                        + e.getMessage(), e);
+            }
+            cache.put(key, stage);
+        }
+        return stage;
+    }
+
+    private static Class findClass(String className) {
+        try {
+            Class c = Class.forName(className, true, TransformStage.class
+                    .getClassLoader());
+            if(DocumentTransform.class.isAssignableFrom(c)) {
+                return c;
+            }
+        } catch(Exception ignored) {
+        } catch(LinkageError ignored) {
+        }
+        return null;
+    }
+
+    /**
+     * Transform <code>document</code> with the calling thread's transform.
+     * Returns null if the document should not be loaded.
+     */
+    public byte[] transform(String uri, File file, byte[] document)
+            throws Exception {
+        DocumentTransform transform = (DocumentTransform) transforms.get();
+        if(transform == null) {
+            if(templates != null) {
+                transform = new XsltTransform(templates);
+            } else {
+                transform = (DocumentTransform) transformClass.newInstance();
+            }
+            transforms.set(transform);
+        }
+        return transform.transform(uri, file, document);
+    }
+
+    /**
+     * Runs a compiled stylesheet with the document uri as the 'uri'
+     * parameter.
+     */
+    private static class XsltTransform implements DocumentTransform {
+        private Transformer transformer;
+
+        public XsltTransform(Templates templates)
+                throws TransformerConfigurationException {
+            this.transformer = templates.newTransformer();
+        }
+
+        public byte[] transform(String uri, File file, byte[] document)
+                throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    document.length);
+            transformer.setParameter("uri", uri);
+            try {
+                transformer.transform(new StreamSource(
+                        new ByteArrayInputStream(document), file.toURI()
+                                .toString()), new StreamResult(out));
+            } finally {
+                transformer.reset();
+            }
+            return out.toByteArray();
+        }
+    }
+}
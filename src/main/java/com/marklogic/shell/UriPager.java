@@ -0,0 +1,303 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * Pages through the URI lexicon in order. Every call to {@link #nextPage()}
+ * is a single request that reads at most one page of URIs from the lexicon
+ * starting after the last URI seen, so the cost of a page depends on the page
+ * size and not on the size of the database. The database must have the URI
+ * lexicon enabled.
+ *
+ * A pager can be restricted to a uri prefix, a glob pattern ('*' and '?') or
+ * to the immediate children of a directory. Globs are matched on the server
+ * with fn:matches, one page of the lexicon under the literal part of the
+ * glob at a time, so a page never costs more than reading a page of uris.
+ * In directory mode sub directories are returned once (with a trailing '/')
+ * and the server skips over their contents.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class UriPager implements Pager {
+    /**
+     * Default number of uris to fetch per request
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * Reads at most $limit uris after $start from the lexicon. With a
+     * pattern only the uris that match it are returned, after the uri to
+     * read on from or "" if the lexicon has no more uris under the prefix.
+     * In directory mode the
+     * contents of each sub directory are replaced by the sub directory name
+     * (with a trailing '/') and the lexicon is read again after it, all in
+     * the same request.
+     */
+    private static final String QUERY = "define variable $start as xs:string external "
+            + "define variable $inclusive as xs:string external "
+            + "define variable $limit as xs:integer external "
+            + "define variable $collection as xs:string external "
+            + "define variable $forest as xs:string external "
+            + "define variable $pattern as xs:string external "
+            + "define variable $prefix as xs:string external "
+            + "define variable $directory as xs:string external "
+            + "define function local:query() as cts:query? { "
+            + "if($collection eq \"\") then () else cts:collection-query($collection) } "
+            + "define function local:forests() as xs:unsignedLong* { "
+            + "if($forest eq \"\") then () else xs:unsignedLong($forest) } "
+            + "define function local:uris($start as xs:string, $inclusive as xs:boolean, "
+            + "$limit as xs:integer) as xs:string* { "
+            + "if($limit le 0) then () "
+            + "else cts:uris($start, concat(\"limit=\", $limit + 1), local:query(), (), local:forests())"
+            + "[$inclusive or . ne $start][1 to $limit] } "
+            + "define function local:matches($start as xs:string, $inclusive as xs:boolean, "
+            + "$limit as xs:integer) as xs:string* { "
+            + "let $uris := local:uris($start, $inclusive, $limit) "
+            + "let $last := $uris[last()] "
+            + "return (if(count($uris) lt $limit or not(starts-with($last, $prefix))) "
+            + "then \"\" else $last, $uris[matches(., $pattern)]) } "
+            + "define function local:children($start as xs:string, $inclusive as xs:boolean, "
+            + "$limit as xs:integer) as xs:string* { "
+            + "let $uris := local:uris($start, $inclusive, $limit) "
+            + "let $n := string-length($prefix) "
+            + "let $dir := (for $u in $uris where starts-with($u, $prefix) "
+            + "and contains(substring($u, $n + 1), \"/\") return $u)[1] "
+            + "return if(empty($dir)) then $uris else "
+            + "let $child := concat($prefix, substring-before(substring($dir, $n + 1), \"/\"), \"/\") "
+            + "let $before := $uris[1 to index-of($uris, $dir)[1] - 1] "
+            + "return ($before, $child, local:children(concat(substring($child, 1, "
+            + "string-length($child) - 1), \"0\"), true(), $limit - count($before) - 1)) } "
+            + "if($pattern ne \"\") "
+            + "then local:matches($start, $inclusive eq \"true\", $limit) "
+            + "else if($directory eq \"true\") "
+            + "then local:children($start, $inclusive eq \"true\", $limit) "
+            + "else local:uris($start, $inclusive eq \"true\", $limit)";
+
+    private Session session;
+    private String collection = "";
+    private String forest = "";
+    private String prefix;
+    private String pattern = "";
+    private boolean directory;
+    private int pageSize;
+
+    private String start;
+    private boolean inclusive = true;
+    private boolean done = false;
+    private RequestOptions options;
+
+    /**
+     * Create a pager over every uri in the database.
+     */
+    public UriPager(Session session, int pageSize) {
+        this(session, "", null, false, pageSize);
+    }
+
+    /**
+     * Create a pager over uris that start with <code>prefix</code> and, if
+     * <code>glob</code> is not null, match the glob pattern. If
+     * <code>directory</code> is true only the immediate children of the
+     * directory of <code>prefix</code> that start with <code>prefix</code>
+     * are returned, so a prefix that does not end in '/' lists the children
+     * whose name starts with its last part.
+     */
+    public UriPager(Session session, String prefix, String glob,
+            boolean directory, int pageSize) {
+        this.session = session;
+        this.prefix = (prefix == null ? "" : prefix);
+        this.directory = directory;
+        this.pageSize = (pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE);
+        this.start = this.prefix;
+        if(glob != null) {
+            this.pattern = globToRegex(glob);
+        }
+    }
+
+    /**
+     * Create a pager for a uri argument as typed by the user. An argument
+     * that ends in '/' lists a directory, an argument with '*' or '?' is
+     * treated as a glob and anything else is treated as a prefix.
+     */
+    public static UriPager forArgument(Session session, String arg,
+            int pageSize) {
+        if(arg == null || arg.length() == 0) {
+            return new UriPager(session, pageSize);
+        }
+        if(isGlob(arg)) {
+            return new UriPager(session, globPrefix(arg), arg, false, pageSize);
+        }
+        return new UriPager(session, arg, null, arg.endsWith("/"), pageSize);
+    }
+
+    /**
+     * Only return uri's of documents in <code>collection</code>.
+     */
+    public void setCollection(String collection) {
+        this.collection = (collection == null ? "" : collection);
+    }
+
+    /**
+     * Only return uri's of documents in the forest with id
+     * <code>forest</code>. See {@link ForestPartitioner}.
+     */
+    public void setForest(String forest) {
+        this.forest = (forest == null ? "" : forest);
+    }
+
+    /**
+     * Read every page at <code>timestamp</code>, so pagers over different
+     * forests see the same database.
+     */
+    public void setPointInTime(BigInteger timestamp) {
+        options = new RequestOptions();
+        options.setEffectivePointInTime(timestamp);
+    }
+
+    /**
+     * Returns the next page of uris or an empty list when there are no more
+     * uris. With a glob a page may contain fewer uris than the page size,
+     * even when more uris follow.
+     */
+    public List nextPage() throws RequestException {
+        List page = new ArrayList();
+        while(!done && page.isEmpty()) {
+            String[] uris = fetch();
+            if(pattern.length() > 0) {
+                if(uris.length == 0 || uris[0].length() == 0) {
+                    done = true;
+                } else {
+                    start = uris[0];
+                    inclusive = false;
+                }
+                for(int i = 1; i < uris.length; i++) {
+                    page.add(uris[i]);
+                }
+                continue;
+            }
+            if(uris.length < pageSize) {
+                done = true;
+            }
+            for(int i = 0; i < uris.length; i++) {
+                String uri = uris[i];
+                if(!uri.startsWith(prefix)) {
+                    // the lexicon is ordered so we are past the prefix range
+                    done = true;
+                    break;
+                }
+                start = uri;
+                inclusive = false;
+                if(directory) {
+                    if(uri.length() == prefix.length() && prefix.endsWith("/")) {
+                        // the directory itself
+                        continue;
+                    }
+                    if(uri.indexOf('/', prefix.length()) != -1) {
+                        // a sub directory, its contents were skipped on the
+                        // server and '0' sorts right after '/'
+                        page.add(uri);
+                        start = uri.substring(0, uri.length() - 1) + "0";
+                        inclusive = true;
+                        continue;
+                    }
+                }
+                page.add(uri);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * True if there are no more pages to fetch.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    private String[] fetch() throws RequestException {
+        AdhocQuery request = (options == null ? session.newAdhocQuery(QUERY)
+                : session.newAdhocQuery(QUERY, options));
+        request.setNewStringVariable("start", start);
+        request.setNewStringVariable("inclusive", String.valueOf(inclusive));
+        request.setNewIntegerVariable("limit", pageSize);
+        request.setNewStringVariable("collection", collection);
+        request.setNewStringVariable("forest", forest);
+        request.setNewStringVariable("pattern", pattern);
+        request.setNewStringVariable("prefix", prefix);
+        request.setNewStringVariable("directory", String.valueOf(directory));
+        ResultSequence rs = session.submitRequest(request);
+        String[] uris = rs.asStrings();
+        rs.close();
+        return uris;
+    }
+
+    /**
+     * True if the argument contains glob characters.
+     */
+    public static boolean isGlob(String arg) {
+        return arg.indexOf('*') != -1 || arg.indexOf('?') != -1;
+    }
+
+    /**
+     * The literal part of a glob up to the first wildcard.
+     */
+    public static String globPrefix(String glob) {
+        int i = 0;
+        while(i < glob.length() && glob.charAt(i) != '*'
+                && glob.charAt(i) != '?') {
+            i++;
+        }
+        return glob.substring(0, i);
+    }
+
+    /**
+     * Convert a glob pattern into a regular expression. '*' matches any
+     * sequence of characters (including '/') and '?' matches a single
+     * character. The expression means the same to java.util.regex and to
+     * fn:matches.
+     */
+    public static String globToRegex(String glob) {
+        StringBuffer buf = new StringBuffer("^");
+        for(int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch(c) {
+            case '*':
+                buf.append(".*");
+                break;
+            case '?':
+                buf.append(".");
+                break;
+            default:
+                if("\\.[]{}()+-^$|".indexOf(c) != -1) {
+                    buf.append('\\');
+                }
+                buf.append(c);
+                break;
+            }
+        }
+        buf.append("$");
+        return buf.toString();
+    }
+}
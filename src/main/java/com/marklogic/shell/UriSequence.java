@@ -0,0 +1,71 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.marklogic.xcc.Request;
+
+/**
+ * Helper for passing a batch of uris to a query as a single external
+ * variable. The uris are joined with newlines into one xs:string so a whole
+ * batch can be sent in one request without building the uris into the query
+ * text. Queries split the variable back into a sequence with
+ * <code>tokenize($uris, "\n")</code>, see {@link #TOKENIZE}.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class UriSequence {
+    /**
+     * Prolog and expression used by queries to declare and split the default
+     * <code>$uris</code> variable.
+     */
+    public static final String DECLARE = "define variable $uris as xs:string external ";
+
+    public static final String TOKENIZE = "tokenize($uris, \"\\n\")";
+
+    private UriSequence() {
+    }
+
+    /**
+     * Bind <code>uris</code> to the external variable <code>$uris</code>.
+     */
+    public static void bind(Request request, List uris) {
+        bind(request, "uris", uris);
+    }
+
+    /**
+     * Bind <code>uris</code> to the external variable <code>name</code>.
+     */
+    public static void bind(Request request, String name, List uris) {
+        request.setNewStringVariable(name, join(uris));
+    }
+
+    /**
+     * Join uris with newlines.
+     */
+    public static String join(List uris) {
+        StringBuffer buf = new StringBuffer();
+        for(Iterator i = uris.iterator(); i.hasNext();) {
+            buf.append(i.next());
+            if(i.hasNext()) {
+                buf.append('\n');
+            }
+        }
+        return buf.toString();
+    }
+}
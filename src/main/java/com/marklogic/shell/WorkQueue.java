@@ -0,0 +1,111 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of worker threads used by commands that split work into
+ * independent requests. At most two tasks per thread are queued, so
+ * {@link #submit(Task)} blocks when the workers fall behind instead of
+ * buffering an unbounded amount of work in memory. Failed tasks do not stop
+ * the queue, their exceptions are collected and available once the queue
+ * is finished.
+ *
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class WorkQueue {
+    /**
+     * Default number of worker threads
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * A unit of work run on a worker thread.
+     */
+    public interface Task {
+        public void run() throws Exception;
+    }
+
+    private ExecutorService executor;
+    private Semaphore slots;
+    private List errors = Collections.synchronizedList(new ArrayList());
+
+    public WorkQueue(int threads) {
+        if(threads <= 0) {
+            threads = DEFAULT_THREADS;
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cqsh-worker-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        slots = new Semaphore(threads * 2);
+    }
+
+    /**
+     * Queue a task, blocking while the queue is full.
+     */
+    public void submit(final Task task) throws InterruptedException {
+        slots.acquire();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch(Exception e) {
+                    errors.add(e);
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for all queued tasks to complete and stop the worker threads.
+     */
+    public void finish() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the worker threads without running queued tasks.
+     */
+    public void cancel() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Exceptions thrown by failed tasks.
+     */
+    public List getErrors() {
+        synchronized(errors) {
+            return new ArrayList(errors);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.Transaction;
+
+public class begin implements Command {
+
+    public String getName() {
+        return "begin";
+    }
+
+    public String getHelp() {
+        StringBuffer help = new StringBuffer();
+        help.append("usage: begin" + Environment.NEWLINE);
+        help.append("Buffer the statements and rm commands that follow until commit or"
+                + Environment.NEWLINE);
+        help.append("rollback. Commit sends them as a few requests of at most"
+                + Environment.NEWLINE);
+        help.append("'transaction-size' characters (default "
+                + Transaction.DEFAULT_CHUNK_SIZE + ") and each request"
+                + Environment.NEWLINE);
+        help.append("commits as one transaction. The statements of a request are joined into"
+                + Environment.NEWLINE);
+        help.append("one sequence expression, so they all see the database as it was before"
+                + Environment.NEWLINE);
+        help.append("the request: a statement can't read what an earlier statement in the"
+                + Environment.NEWLINE);
+        help.append("same request inserted or deleted, and if two statements update the same"
+                + Environment.NEWLINE);
+        help.append("document the whole request fails. A statement with its own prolog"
+                + Environment.NEWLINE);
+        help.append("(declare, define, import ...) is sent in a request of its own. cp and"
+                + Environment.NEWLINE);
+        help.append("load can't be used in a transaction." + Environment.NEWLINE);
+        return help.toString();
+    }
+
+    public void execute(Environment env, String arg) {
+        if(!(env instanceof Shell)) {
+            env.outputError("Transactions are only supported in the shell.");
+            return;
+        }
+        Shell shell = (Shell) env;
+        if(shell.getTransaction() != null) {
+            env.outputLine("Already in a transaction ("
+                    + shell.getTransaction().size()
+                    + " statement(s) to commit).");
+            return;
+        }
+        shell.setTransaction(new Transaction(env.getSettings().getInt(
+                "transaction-size", Transaction.DEFAULT_CHUNK_SIZE)));
+        env.outputLine("Transaction started. Statements run on commit.");
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Progress;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.WorkQueue;
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.XQueryException;
+
+public class bench implements Command {
+    /**
+     * Default number of measured requests
+     */
+    public static final int DEFAULT_REQUESTS = 1000;
+
+    private Options options = new Options();
+
+    public bench() {
+        Option requests = OptionBuilder.withLongOpt("requests").hasArg()
+                .withDescription(
+                        "Number of requests to measure (default "
+                                + DEFAULT_REQUESTS + ")").create("n");
+        Option concurrency = OptionBuilder.withLongOpt("concurrency")
+                .hasArg().withDescription(
+                        "Number of concurrent workers, each with its own session (default "
+                                + WorkQueue.DEFAULT_THREADS + ")").create("c");
+        Option warmup = OptionBuilder.withLongOpt("warmup").hasArg()
+                .withDescription(
+                        "Number of requests to run before measuring (default 0)")
+                .create("w");
+        Option file = OptionBuilder.withLongOpt("file").hasArg()
+                .withDescription(
+                        "Read queries from a file, each ending with ';' at the end of a line. The queries are run in turn")
+                .create("f");
+        Option params = OptionBuilder.withLongOpt("params").hasArg()
+                .withDescription(
+                        "Tab separated file of external variable values. The first line names the variables, each request uses the next line")
+                .create("p");
+        Option csv = OptionBuilder.withLongOpt("csv").hasArg()
+                .withDescription("Write the timing of every request to a CSV file")
+                .create("o");
+        options.addOption(requests);
+        options.addOption(concurrency);
+        options.addOption(warmup);
+        options.addOption(file);
+        options.addOption(params);
+        options.addOption(csv);
+    }
+
+    public String getName() {
+        return "bench";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: bench [options] [xquery]" + Environment.NEWLINE);
+        buffer.append("Run a query many times with concurrent workers and report throughput,"
+                + Environment.NEWLINE);
+        buffer.append("latency percentiles and errors. For example:"
+                + Environment.NEWLINE);
+        buffer.append("    bench -n 10000 -c 32 -w 100 count(//item);"
+                + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        if(commandline == null || commandline.trim().length() == 0) {
+            env.outputLine("Please specify a query to run. See help bench.");
+            return;
+        }
+
+        // find the offset of every token so the query keeps its whitespace
+        List tokens = new ArrayList();
+        List offsets = new ArrayList();
+        Matcher m = Pattern.compile("\\S+").matcher(commandline);
+        while(m.find()) {
+            tokens.add(m.group());
+            offsets.add(new Integer(m.start()));
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, (String[]) tokens
+                    .toArray(new String[tokens.size()]), true);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+
+        int requests = DEFAULT_REQUESTS;
+        int concurrency = WorkQueue.DEFAULT_THREADS;
+        int warmup = 0;
+        try {
+            if(cmd.hasOption("n")) {
+                requests = Integer.parseInt(cmd.getOptionValue("n"));
+            }
+            if(cmd.hasOption("c")) {
+                concurrency = Integer.parseInt(cmd.getOptionValue("c"));
+            }
+            if(cmd.hasOption("w")) {
+                warmup = Integer.parseInt(cmd.getOptionValue("w"));
+            }
+        } catch(NumberFormatException e) {
+            env.outputError("Invalid number: " + e.getMessage());
+            return;
+        }
+        if(requests <= 0 || concurrency <= 0 || warmup < 0) {
+            env.outputError("The number of requests and workers must be positive.");
+            return;
+        }
+
+        List queries = new ArrayList();
+        String[] names = new String[0];
+        List values = new ArrayList();
+        try {
+            if(cmd.hasOption("f")) {
+                queries = readQueries(resolve(env, cmd.getOptionValue("f")));
+            } else if(cmd.getArgList().size() > 0) {
+                int first = tokens.size() - cmd.getArgList().size();
+                queries.add(commandline.substring(
+                        ((Integer) offsets.get(first)).intValue()).trim());
+            }
+            if(cmd.hasOption("p")) {
+                names = readParams(resolve(env, cmd.getOptionValue("p")),
+                        values);
+            }
+        } catch(IOException e) {
+            env.outputError("Failed to read file: " + e.getMessage());
+            return;
+        }
+        if(queries.isEmpty()) {
+            env.outputLine("Please specify a query to run. See help bench.");
+            return;
+        }
+
+        Run run = new Run(env.getContentSource(), queries, names, values,
+                warmup, requests, new Progress(env, "requests"));
+        env.outputLine("Running " + requests + " requests with "
+                + concurrency + " workers"
+                + (warmup > 0 ? " after " + warmup + " warm-up requests" : "")
+                + "...");
+        WorkQueue queue = new WorkQueue(concurrency);
+        try {
+            for(int i = 0; i < concurrency; i++) {
+                queue.submit(run);
+            }
+            queue.finish();
+        } catch(InterruptedException e) {
+            queue.cancel();
+            env.outputError("Interrupted.");
+            return;
+        }
+        run.progress.done();
+        report(env, run, concurrency);
+
+        if(cmd.hasOption("o")) {
+            try {
+                writeCsv(resolve(env, cmd.getOptionValue("o")), run);
+            } catch(IOException e) {
+                env.outputError("Failed to write timings: " + e.getMessage());
+            }
+        }
+    }
+
+    private void report(Environment env, Run run, int concurrency) {
+        DecimalFormat format = new DecimalFormat("###,##0.00");
+        double seconds = (run.end - run.start) / 1e9;
+        long[] sorted = new long[run.latency.length];
+        System.arraycopy(run.latency, 0, sorted, 0, sorted.length);
+        Arrays.sort(sorted);
+        long total = 0;
+        for(int i = 0; i < sorted.length; i++) {
+            total += sorted[i];
+        }
+
+        env.outputLine("Requests:    " + run.latency.length + " ("
+                + concurrency + " workers)");
+        env.outputLine("Errors:      " + run.errorCount());
+        env.outputLine("Time:        " + format.format(seconds) + " sec");
+        if(seconds > 0) {
+            env.outputLine("Throughput:  "
+                    + format.format(run.latency.length / seconds) + " req/sec");
+        }
+        env.outputLine("Latency (ms): min " + millis(sorted[0]) + "  p50 "
+                + millis(percentile(sorted, 0.5)) + "  p90 "
+                + millis(percentile(sorted, 0.9)) + "  p99 "
+                + millis(percentile(sorted, 0.99)) + "  max "
+                + millis(sorted[sorted.length - 1]) + "  mean "
+                + millis(total / sorted.length));
+
+        if(!run.errors.isEmpty()) {
+            env.outputLine("Errors by type:");
+            List types = new ArrayList(run.errors.entrySet());
+            Collections.sort(types, new Comparator() {
+                public int compare(Object a, Object b) {
+                    return ((AtomicInteger) ((Map.Entry) b).getValue()).get()
+                            - ((AtomicInteger) ((Map.Entry) a).getValue())
+                                    .get();
+                }
+            });
+            for(Iterator i = types.iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                env.outputLine("    " + entry.getValue() + "  "
+                        + entry.getKey());
+            }
+        }
+    }
+
+    static long percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(sorted.length * fraction);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    static String millis(long nanos) {
+        return new DecimalFormat("0.00").format(nanos / 1e6);
+    }
+
+    private void writeCsv(File file, Run run) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write("request,query,start_ms,latency_ms,items,error");
+            writer.newLine();
+            for(int i = 0; i < run.latency.length; i++) {
+                writer.write(i + "," + run.query[i] + ","
+                        + millis(run.offset[i]) + "," + millis(run.latency[i])
+                        + "," + run.items[i] + ","
+                        + (run.error[i] == null ? "" : run.error[i]));
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private File resolve(Environment env, String path) {
+        if(env instanceof Shell) {
+            return ((Shell) env).resolveFile(path);
+        }
+        return new File(path);
+    }
+
+    /**
+     * Read queries that each end with a line ending in ';'.
+     */
+    private List readQueries(File file) throws IOException {
+        List queries = new ArrayList();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            StringBuffer query = new StringBuffer();
+            String line;
+            while((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if(trimmed.endsWith(";")) {
+                    query.append(line.substring(0, line.lastIndexOf(';')));
+                    if(query.toString().trim().length() > 0) {
+                        queries.add(query.toString());
+                    }
+                    query = new StringBuffer();
+                } else {
+                    query.append(line).append('\n');
+                }
+            }
+            if(query.toString().trim().length() > 0) {
+                queries.add(query.toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return queries;
+    }
+
+    /**
+     * Read a tab separated file of variable names followed by rows of
+     * values. Returns the names and adds each row to <code>values</code>.
+     */
+    private String[] readParams(File file, List values) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = reader.readLine();
+            if(line == null) {
+                throw new IOException(file + " is empty");
+            }
+            String[] names = line.split("\t");
+            while((line = reader.readLine()) != null) {
+                if(line.length() > 0) {
+                    values.add(line.split("\t", -1));
+                }
+            }
+            if(values.isEmpty()) {
+                throw new IOException(file + " has no values");
+            }
+            return names;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The shared state of a benchmark run. Each worker runs this task once
+     * with its own session and takes request numbers from a shared counter
+     * until all requests are done.
+     */
+    static class Run implements WorkQueue.Task {
+        private ContentSource source;
+        private List queries;
+        private String[] names;
+        private List values;
+        private int warmup;
+        private AtomicInteger next = new AtomicInteger();
+        private Progress progress;
+
+        private long start = 0;
+        private long end = 0;
+        long[] offset;
+        long[] latency;
+        int[] query;
+        int[] items;
+        String[] error;
+        Map errors = new HashMap();
+
+        public Run(ContentSource source, List queries, String[] names,
+                List values, int warmup, int requests, Progress progress) {
+            this.source = source;
+            this.queries = queries;
+            this.names = names;
+            this.values = values;
+            this.warmup = warmup;
+            this.progress = progress;
+            offset = new long[requests];
+            latency = new long[requests];
+            query = new int[requests];
+            items = new int[requests];
+            error = new String[requests];
+        }
+
+        public void run() {
+            Session session = source.newSession();
+            int total = warmup + latency.length;
+            try {
+                for(int n = next.getAndIncrement(); n < total; n = next
+                        .getAndIncrement()) {
+                    if(n == warmup) {
+                        begin();
+                    }
+                    int q = n % queries.size();
+                    AdhocQuery request = session
+                            .newAdhocQuery((String) queries.get(q));
+                    if(!values.isEmpty()) {
+                        String[] row = (String[]) values.get(n % values.size());
+                        for(int i = 0; i < names.length && i < row.length; i++) {
+                            request.setNewStringVariable(names[i], row[i]);
+                        }
+                    }
+                    long started = System.nanoTime();
+                    String failure = null;
+                    int size = 0;
+                    try {
+                        ResultSequence rs = session.submitRequest(request);
+                        size = rs.size();
+                        rs.close();
+                    } catch(Exception e) {
+                        failure = errorType(e);
+                    }
+                    long finished = System.nanoTime();
+                    if(n >= warmup) {
+                        int i = n - warmup;
+                        offset[i] = started - getStart();
+                        latency[i] = finished - started;
+                        query[i] = q;
+                        items[i] = size;
+                        error[i] = failure;
+                        if(failure != null) {
+                            addError(failure);
+                        }
+                        progress.add(1);
+                        finish(finished);
+                    }
+                }
+            } finally {
+                session.close();
+            }
+        }
+
+        private synchronized void begin() {
+            if(start == 0) {
+                start = System.nanoTime();
+            }
+        }
+
+        private synchronized long getStart() {
+            if(start == 0) {
+                start = System.nanoTime();
+            }
+            return start;
+        }
+
+        private synchronized void finish(long time) {
+            end = Math.max(end, time);
+        }
+
+        private synchronized void addError(String type) {
+            AtomicInteger count = (AtomicInteger) errors.get(type);
+            if(count == null) {
+                count = new AtomicInteger();
+                errors.put(type, count);
+            }
+            count.incrementAndGet();
+            progress.fail(1);
+        }
+
+        synchronized int errorCount() {
+            int count = 0;
+            for(Iterator i = errors.values().iterator(); i.hasNext();) {
+                count += ((AtomicInteger) i.next()).get();
+            }
+            return count;
+        }
+
+        private static String errorType(Exception e) {
+            if(e instanceof XQueryException
+                    && ((XQueryException) e).getCode() != null) {
+                return ((XQueryException) e).getCode();
+            }
+            String name = e.getClass().getName();
+            return name.substring(name.lastIndexOf('.') + 1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+public class cancel implements Command {
+    /**
+     * Finds the request with id $id on any app server of any host and
+     * cancels it, returning the host and server it was running on.
+     */
+    static final String CANCEL = "declare namespace ss = \"http://marklogic.com/xdmp/status/server\" "
+            + "define variable $id as xs:string external "
+            + "for $h in xdmp:hosts(), $srv in xdmp:servers() "
+            + "let $ss := xdmp:server-status($h, $srv) "
+            + "where $ss/ss:request-statuses/ss:request-status[string(ss:request-id) eq $id] "
+            + "return (xdmp:request-cancel($h, $srv, xs:unsignedLong($id)), "
+            + "concat(xdmp:host-name($h), \" \", string($ss/ss:server-name)))";
+
+    public String getName() {
+        return "cancel";
+    }
+
+    public String getHelp() {
+        StringBuffer help = new StringBuffer();
+        help.append("usage: cancel [request id] ..." + Environment.NEWLINE);
+        help.append("Cancel running requests. Request ids are listed by ps."
+                + Environment.NEWLINE);
+        return help.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        if(commandline == null || commandline.trim().length() == 0) {
+            env.outputLine("Please specify a request id. See: ps");
+            return;
+        }
+        String[] ids = commandline.trim().split("\\s+");
+        Session session = env.getContentSource().newSession();
+        for(int i = 0; i < ids.length; i++) {
+            AdhocQuery request = session.newAdhocQuery(CANCEL);
+            request.setNewStringVariable("id", ids[i]);
+            try {
+                ResultSequence rs = session.submitRequest(request);
+                String[] servers = rs.asStrings();
+                rs.close();
+                if(servers.length == 0) {
+                    env.outputLine("No running request with id " + ids[i]
+                            + ".");
+                }
+                for(int j = 0; j < servers.length; j++) {
+                    env.outputLine("Canceled request " + ids[i] + " on "
+                            + servers[j] + ".");
+                }
+            } catch(RequestException e) {
+                env.outputException(e);
+            }
+        }
+    }
+}
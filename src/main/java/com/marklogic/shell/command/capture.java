@@ -0,0 +1,79 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.marklogic.shell.Capture;
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Shell;
+
+public class capture implements Command {
+    public String getName() {
+        return "capture";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: capture [start file | stop]" + Environment.NEWLINE);
+        buffer.append("Record every query, module invoke, insert and command with its timing,"
+                + Environment.NEWLINE);
+        buffer.append("database, user and external variables to a log that can be run again"
+                + Environment.NEWLINE);
+        buffer.append("with the replay command. 'capture start file' appends to file,"
+                + Environment.NEWLINE);
+        buffer.append("'capture stop' closes it and 'capture' shows the current capture."
+                + Environment.NEWLINE);
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        String[] tokens = new String[0];
+        if(commandline != null && commandline.trim().length() > 0) {
+            tokens = commandline.trim().split("\\s+");
+        }
+        if(tokens.length == 0) {
+            Capture active = Capture.getActive();
+            if(active == null) {
+                env.outputLine("Not capturing.");
+            } else {
+                env.outputLine("Capturing to " + active.getFile() + " ("
+                        + active.getEntries() + " entries).");
+            }
+        } else if("start".equals(tokens[0]) && tokens.length == 2) {
+            File file = (env instanceof Shell ? ((Shell) env)
+                    .resolveFile(tokens[1]) : new File(tokens[1]));
+            try {
+                Capture.start(file);
+                env.outputLine("Capturing to " + file + ".");
+            } catch(IOException e) {
+                env.outputError("Failed to open " + file + ": "
+                        + e.getMessage());
+            }
+        } else if("stop".equals(tokens[0]) && tokens.length == 1) {
+            Capture stopped = Capture.stop();
+            if(stopped == null) {
+                env.outputLine("Not capturing.");
+            } else {
+                env.outputLine("Captured " + stopped.getEntries()
+                        + " entries to " + stopped.getFile() + ".");
+            }
+        } else {
+            env.outputLine("Invalid arguments. See help capture.");
+        }
+    }
+}
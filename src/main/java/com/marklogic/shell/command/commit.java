@@ -0,0 +1,78 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.Transaction;
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+public class commit implements Command {
+
+    public String getName() {
+        return "commit";
+    }
+
+    public String getHelp() {
+        StringBuffer help = new StringBuffer();
+        help.append("usage: commit" + Environment.NEWLINE);
+        help.append("Run the statements buffered since begin against the current database."
+                + Environment.NEWLINE);
+        help.append("The statements are sent as a few requests and each request is one"
+                + Environment.NEWLINE);
+        help.append("transaction, so statements in the same request don't see each other's"
+                + Environment.NEWLINE);
+        help.append("updates and conflicting updates to one document fail the whole request."
+                + Environment.NEWLINE);
+        help.append("If a request fails the requests before it stay committed and the rest"
+                + Environment.NEWLINE);
+        help.append("are discarded. See help begin." + Environment.NEWLINE);
+        return help.toString();
+    }
+
+    public void execute(Environment env, String arg) {
+        Transaction transaction = (env instanceof Shell ? ((Shell) env)
+                .getTransaction() : null);
+        if(transaction == null) {
+            env.outputLine("No transaction. See help begin.");
+            return;
+        }
+        ((Shell) env).setTransaction(null);
+        List requests = transaction.getRequests();
+        Session session = env.getContentSource().newSession();
+        int committed = 0;
+        try {
+            for(Iterator i = requests.iterator(); i.hasNext(); committed++) {
+                AdhocQuery request = session.newAdhocQuery((String) i.next());
+                env.outputResultSequence(session.submitRequest(request));
+            }
+            env.outputLine("Committed " + transaction.size()
+                    + " statement(s) in " + requests.size() + " request(s).");
+        } catch(RequestException e) {
+            env.outputException(e);
+            env.outputError("Request " + (committed + 1) + " of "
+                    + requests.size() + " failed. " + committed
+                    + " request(s) were committed, the rest were discarded.");
+        } finally {
+            session.close();
+        }
+    }
+}
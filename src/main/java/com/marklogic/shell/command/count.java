@@ -0,0 +1,249 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.ForestPartitioner;
+import com.marklogic.shell.Strings;
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import com.marklogic.xcc.exceptions.XQueryException;
+
+public class count implements Command {
+    /**
+     * Error code of a query cts:search can't run against a forest
+     */
+    private static final String UNSEARCHABLE = "XDMP-UNSEARCHABLE";
+
+    private Options options = new Options();
+
+    public count() {
+        Option collection = OptionBuilder.withLongOpt("collection").hasArg()
+                .withDescription("Count the documents in a collection").create(
+                        "c");
+        Option exact = OptionBuilder.withLongOpt("exact").withDescription(
+                "Count the matches instead of estimating from the indexes")
+                .create("e");
+        options.addOption(collection);
+        options.addOption(exact);
+    }
+
+    public String getName() {
+        return "count";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: count [options] [directory|query]"
+                + Environment.NEWLINE);
+        buffer.append("Count the documents in the database, a collection (-c), a directory (ending"
+                + Environment.NEWLINE);
+        buffer.append("in '/') or the matches of a searchable xpath. By default the count is an"
+                + Environment.NEWLINE);
+        buffer.append("estimate resolved from the indexes without reading any fragments. Use -e"
+                + Environment.NEWLINE);
+        buffer.append("for an exact count, which reads every match. With forest-parallel set an"
+                + Environment.NEWLINE);
+        buffer.append("exact count runs in every forest at the same time." + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        if(commandline == null) {
+            commandline = "";
+        }
+        // find the offset of every token so the query keeps its whitespace
+        List tokens = new ArrayList();
+        List offsets = new ArrayList();
+        Matcher m = Pattern.compile("\\S+").matcher(commandline);
+        while(m.find()) {
+            tokens.add(m.group());
+            offsets.add(new Integer(m.start()));
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, (String[]) tokens
+                    .toArray(new String[tokens.size()]), true);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+        String arg = "";
+        if(cmd.getArgList().size() > 0) {
+            int first = tokens.size() - cmd.getArgList().size();
+            arg = commandline.substring(
+                    ((Integer) offsets.get(first)).intValue()).trim();
+        }
+
+        String expression;
+        if(cmd.hasOption("c")) {
+            if(arg.length() > 0) {
+                env.outputError("Give either a collection or a query, not both");
+                return;
+            }
+            expression = "collection("
+                    + Strings.quote(cmd.getOptionValue("c")) + ")";
+        } else {
+            expression = select(arg);
+        }
+
+        try {
+            if(!cmd.hasOption("e")) {
+                env.outputLine(String.valueOf(evaluate(env, "xdmp:estimate("
+                        + expression + ")")));
+            } else if(ForestPartitioner.isEnabled(env)) {
+                env.outputLine(String.valueOf(countByForest(env, expression)));
+            } else {
+                env.outputLine(String.valueOf(evaluate(env, "count("
+                        + expression + ")")));
+            }
+        } catch(RequestException e) {
+            env.outputException(e);
+        } catch(NumberFormatException e) {
+            env.outputError("The query did not return a number: "
+                    + e.getMessage());
+        } catch(InterruptedException e) {
+            env.outputError("Interrupted.");
+        }
+    }
+
+    /**
+     * The expression selecting the documents for an argument: the whole
+     * database, a directory or the argument itself as a query.
+     */
+    static String select(String arg) {
+        if(arg.length() == 0) {
+            return "input()";
+        }
+        if(arg.startsWith("/") && arg.endsWith("/")
+                && arg.indexOf(' ') == -1) {
+            return "xdmp:directory(" + Strings.quote(arg)
+                    + ", \"infinity\")";
+        }
+        return arg;
+    }
+
+    /**
+     * Add up exact counts taken in every forest at the same point in time.
+     * Falls back to a single count when the query can't be searched by
+     * forest; any other error is the query's own and is thrown.
+     */
+    private long countByForest(Environment env, final String expression)
+            throws RequestException, InterruptedException {
+        final long[] total = new long[1];
+        final BigInteger timestamp;
+        Session session = env.getContentSource().newSession();
+        try {
+            timestamp = session.getCurrentServerPointInTime();
+        } finally {
+            session.close();
+        }
+        try {
+            new ForestPartitioner(env.getContentSource())
+                    .forEach(new ForestPartitioner.ForestTask() {
+                        public void run(Session session, String forest)
+                                throws Exception {
+                            long n = evaluate(session, "count(cts:search("
+                                    + expression
+                                    + ", cts:and-query(()), (), (), "
+                                    + "xs:unsignedLong(\"" + forest
+                                    + "\")))", timestamp);
+                            synchronized(total) {
+                                total[0] += n;
+                            }
+                        }
+                    });
+        } catch(XQueryException e) {
+            if(!UNSEARCHABLE.equals(e.getCode())) {
+                throw e;
+            }
+            env.outputError("Can't split the count by forest, counting in one pass: "
+                    + e.getMessage());
+            return evaluate(env, "count(" + expression + ")");
+        } catch(RequestException e) {
+            throw e;
+        } catch(InterruptedException e) {
+            throw e;
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        return total[0];
+    }
+
+    private static long evaluate(Environment env, String query)
+            throws RequestException {
+        Session session = env.getContentSource().newSession();
+        try {
+            return evaluate(session, query);
+        } finally {
+            session.close();
+        }
+    }
+
+    private static long evaluate(Session session, String query)
+            throws RequestException {
+        return evaluate(session, query, null);
+    }
+
+    /**
+     * Evaluate <code>query</code> as of <code>timestamp</code>, or now if
+     * it is null.
+     */
+    private static long evaluate(Session session, String query,
+            BigInteger timestamp) throws RequestException {
+        AdhocQuery request = session.newAdhocQuery(query);
+        if(timestamp != null) {
+            RequestOptions options = new RequestOptions();
+            options.setEffectivePointInTime(timestamp);
+            request.setOptions(options);
+        }
+        ResultSequence rs = session.submitRequest(request);
+        try {
+            String[] values = rs.asStrings();
+            return (values.length == 0 ? 0 : Long.parseLong(values[0].trim()));
+        } finally {
+            rs.close();
+        }
+    }
+}
@@ -15,8 +15,16 @@
  */
 package com.marklogic.shell.command;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -28,11 +36,65 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
 import com.marklogic.shell.Environment;
+import com.marklogic.shell.Pager;
+import com.marklogic.shell.Progress;
+import com.marklogic.shell.QueryPager;
+import com.marklogic.shell.RoleCache;
+import com.marklogic.shell.Settings;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.ShellException;
+import com.marklogic.shell.UriPager;
+import com.marklogic.shell.UriSequence;
+import com.marklogic.shell.WorkQueue;
 import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentCapability;
+import com.marklogic.xcc.ContentCreateOptions;
+import com.marklogic.xcc.ContentFactory;
+import com.marklogic.xcc.ContentPermission;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.DocumentFormat;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultItem;
+import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.RequestException;
 
 public class cp implements Command {
+    /**
+     * Default number of documents to read per request when copying between
+     * hosts
+     */
+    public static final int DEFAULT_BATCH = 100;
+
+    /**
+     * Bytes of documents to buffer before inserting them on the target with
+     * one request
+     */
+    public static final int BATCH_SIZE = 1024 * 1024;
+
+    /**
+     * Returns for every uri in $uris that exists: the uri, format, quality,
+     * the number of collections followed by the collections, the number of
+     * permissions followed by capability and role id pairs and finally the
+     * document itself.
+     */
+    private static final String READ = UriSequence.DECLARE
+            + "for $u in " + UriSequence.TOKENIZE + " "
+            + "let $d := doc($u) "
+            + "where exists($d) "
+            + "return ($u, "
+            + "if($d/binary()) then \"binary\" else if($d/element()) then \"xml\" else \"text\", "
+            + "xs:string(xdmp:document-get-quality($u)), "
+            + "let $c := xdmp:document-get-collections($u) return (xs:string(count($c)), $c), "
+            + "let $p := xdmp:document-get-permissions($u) return (xs:string(count($p)), "
+            + "for $i in $p return (string($i/sec:capability), string($i/sec:role-id))), "
+            + "$d)";
+
+    private static final String EXISTS = UriSequence.DECLARE
+            + "for $u in " + UriSequence.TOKENIZE + " "
+            + "where exists(doc($u)) return $u";
+
     private Options options = new Options();
 
     public cp() {
@@ -40,31 +102,65 @@ public class cp implements Command {
                 "Copy even if the target document exists").create("f");
         Option fromHost = OptionBuilder
                 .withLongOpt("from-host")
+                .hasArg()
                 .withDescription(
-                        "Host server and port to copy from (uses default database for that port)")
+                        "Server to copy from as [user[:password]@]host[:port][/database]")
                 .create("s");
         Option toHost = OptionBuilder
                 .withLongOpt("to-host")
                 .hasArg()
                 .withDescription(
-                        "Target server and port to copy to (uses default database for that port)")
+                        "Server to copy to as [user[:password]@]host[:port][/database]")
                 .create("d");
+        Option query = OptionBuilder.withLongOpt("query").hasArg()
+                .withDescription("Copy the documents returned by an xpath or xquery")
+                .create("x");
+        Option collection = OptionBuilder.withLongOpt("collection").hasArg()
+                .withDescription("Copy all documents in a collection").create(
+                        "c");
+        Option directory = OptionBuilder.withLongOpt("directory").hasArg()
+                .withDescription("Copy all documents in a directory").create(
+                        "r");
+        Option threads = OptionBuilder.withLongOpt("threads").hasArg()
+                .withDescription(
+                        "Number of threads to copy with (default "
+                                + WorkQueue.DEFAULT_THREADS + ")").create("t");
+        Option batch = OptionBuilder.withLongOpt("batch").hasArg()
+                .withDescription(
+                        "Number of documents to read per request (default "
+                                + DEFAULT_BATCH + ")").create("b");
 
         options.addOption(fromHost);
         options.addOption(toHost);
         options.addOption(force);
+        options.addOption(query);
+        options.addOption(collection);
+        options.addOption(directory);
+        options.addOption(threads);
+        options.addOption(batch);
     }
 
     public String getName() {
-        return null;
+        return "cp";
     }
 
     public String getHelp() {
         StringBuffer buffer = new StringBuffer();
         buffer.append("usage: cp [options] <from uri> <to uri>"
                 + Environment.NEWLINE);
+        buffer.append("       cp [options] --to-host|--from-host <server> [-x query|-c collection|"
+                + Environment.NEWLINE);
+        buffer.append("          -r directory|uri ...]" + Environment.NEWLINE);
         buffer.append("Copies the document specified by the <from uri> to the <to uri>"
                         + Environment.NEWLINE);
+        buffer.append("When a remote server is given documents are copied to the same uri on the"
+                        + Environment.NEWLINE);
+        buffer.append("target, keeping their collections, permissions and quality. Documents are"
+                        + Environment.NEWLINE);
+        buffer.append("read in batches on several threads. Small documents are inserted on the"
+                        + Environment.NEWLINE);
+        buffer.append("target together, large ones are streamed from the source on their own."
+                        + Environment.NEWLINE);
         buffer.append("Options: " + Environment.NEWLINE);
         HelpFormatter formatter = new HelpFormatter();
         StringWriter help = new StringWriter();
@@ -74,6 +170,10 @@ public class cp implements Command {
     }
 
     public void execute(Environment env, String commandline) {
+        if(env instanceof Shell && ((Shell) env).getTransaction() != null) {
+            env.outputError("cp can't be used in a transaction. Commit or rollback first.");
+            return;
+        }
         if(commandline != null && commandline.length() > 0) {
             String[] tokens = commandline.split("\\s+");
             CommandLineParser parser = new PosixParser();
@@ -90,8 +190,11 @@ public class cp implements Command {
             String toHost = cmd.getOptionValue("d");
 
             if((fromHost != null && fromHost.length() > 0)
-                    || (toHost != null && fromHost.length() > 0)) {
-                env.outputLine("Copying from or to remote hosts is not implmented yet");
+                    || (toHost != null && toHost.length() > 0)) {
+                copyBetweenHosts(env, cmd, fromHost, toHost, force);
+            } else if(cmd.hasOption("x") || cmd.hasOption("c")
+                    || cmd.hasOption("r")) {
+                env.outputLine("Copying a query, collection or directory needs --to-host or --from-host");
             } else {
                 if(cmd.getArgList().size() == 2) {
                     String source = cmd.getArgList().get(0).toString();
@@ -136,4 +239,277 @@ public class cp implements Command {
             env.outputLine("Please specify document to copy. See help cp.");
         }
     }
+
+    private void copyBetweenHosts(Environment env, CommandLine cmd,
+            String fromHost, String toHost, boolean force) {
+        int threads = WorkQueue.DEFAULT_THREADS;
+        int batch = DEFAULT_BATCH;
+        try {
+            if(cmd.hasOption("t")) {
+                threads = Integer.parseInt(cmd.getOptionValue("t"));
+            }
+            if(cmd.hasOption("b")) {
+                batch = Integer.parseInt(cmd.getOptionValue("b"));
+            }
+        } catch(NumberFormatException e) {
+            env.outputError("Invalid number: " + e.getMessage());
+            return;
+        }
+
+        ContentSource source;
+        ContentSource target;
+        RoleCache roles;
+        try {
+            if(fromHost != null) {
+                source = env.getContentSource(fromHost);
+                roles = RoleCache.getInstance(fromHost);
+            } else {
+                source = env.getContentSource();
+                roles = RoleCache.getInstance(env);
+            }
+            target = (toHost != null ? env.getContentSource(toHost) : env
+                    .getContentSource());
+        } catch(ShellException e) {
+            env.outputException(e);
+            return;
+        }
+
+        Settings settings = env.getSettings();
+        int pageSize = settings.getPageSize();
+        Session session = source.newSession();
+        Pager pager;
+        if(cmd.hasOption("x")) {
+            pager = new QueryPager(session, cmd.getOptionValue("x"), pageSize);
+        } else if(cmd.hasOption("c")) {
+            UriPager uriPager = new UriPager(session, pageSize);
+            uriPager.setCollection(cmd.getOptionValue("c"));
+            pager = uriPager;
+        } else if(cmd.hasOption("r")) {
+            String directory = cmd.getOptionValue("r");
+            if(!directory.endsWith("/")) {
+                directory += "/";
+            }
+            pager = new UriPager(session, directory, null, false, pageSize);
+        } else if(cmd.getArgList().size() > 0) {
+            pager = new ListPager(cmd.getArgList());
+        } else {
+            env.outputLine("Please specify documents to copy. See help cp.");
+            return;
+        }
+
+        int ttl = settings.getRoleCacheTtl();
+        Progress progress = new Progress(env, "documents copied");
+        WorkQueue queue = new WorkQueue(threads);
+        try {
+            List page = pager.nextPage();
+            while(!page.isEmpty()) {
+                for(int i = 0; i < page.size(); i += batch) {
+                    List uris = new ArrayList(page.subList(i, Math.min(i
+                            + batch, page.size())));
+                    queue.submit(new CopyTask(source, target, roles, ttl,
+                            uris, force, progress));
+                }
+                page = pager.nextPage();
+            }
+        } catch(RequestException e) {
+            env.outputException(e);
+        } catch(InterruptedException e) {
+            env.outputError("Interrupted.");
+        } finally {
+            try {
+                queue.finish();
+            } catch(InterruptedException ignored) {
+            }
+        }
+        progress.done();
+        List errors = queue.getErrors();
+        if(!errors.isEmpty()) {
+            env.outputLine(errors.size() + " batch(es) failed. First error:");
+            env.outputException((Exception) errors.get(0));
+        }
+    }
+
+    /**
+     * A single page of uri's given on the command line.
+     */
+    private static class ListPager implements Pager {
+        private List uris;
+
+        public ListPager(List uris) {
+            this.uris = uris;
+        }
+
+        public List nextPage() {
+            List page = uris;
+            uris = new ArrayList();
+            return page;
+        }
+    }
+
+    /**
+     * Copies one batch of documents. The documents are read with a single
+     * streaming request. Documents smaller than BATCH_SIZE are buffered and
+     * inserted on the target together with one request, larger ones are
+     * inserted on their own as they are read so their bytes go from one
+     * connection to the other without being held in memory. Role names are
+     * looked up on their own session since the read is still streaming.
+     */
+    static class CopyTask implements WorkQueue.Task {
+        private ContentSource source;
+        private ContentSource target;
+        private RoleCache roles;
+        private int ttl;
+        private List uris;
+        private boolean force;
+        private Progress progress;
+        private List pending = new ArrayList();
+        private long pendingBytes = 0;
+        private int copied = 0;
+
+        public CopyTask(ContentSource source, ContentSource target,
+                RoleCache roles, int ttl, List uris, boolean force,
+                Progress progress) {
+            this.source = source;
+            this.target = target;
+            this.roles = roles;
+            this.ttl = ttl;
+            this.uris = uris;
+            this.force = force;
+            this.progress = progress;
+        }
+
+        public void run() throws Exception {
+            Session targetSession = target.newSession();
+            Session sourceSession = null;
+            Session roleSession = null;
+            try {
+                if(!force) {
+                    AdhocQuery exists = targetSession.newAdhocQuery(EXISTS);
+                    UriSequence.bind(exists, uris);
+                    String[] existing = targetSession.submitRequest(exists)
+                            .asStrings();
+                    for(int i = 0; i < existing.length; i++) {
+                        uris.remove(existing[i]);
+                    }
+                    if(uris.isEmpty()) {
+                        return;
+                    }
+                }
+
+                sourceSession = source.newSession();
+                roleSession = source.newSession();
+                RequestOptions options = new RequestOptions();
+                options.setCacheResult(false);
+                AdhocQuery read = sourceSession.newAdhocQuery(READ, options);
+                UriSequence.bind(read, uris);
+                ResultSequence rs = sourceSession.submitRequest(read);
+                while(rs.hasNext()) {
+                    String uri = rs.next().asString();
+                    ContentCreateOptions createOptions = new ContentCreateOptions();
+                    String format = rs.next().asString();
+                    if("binary".equals(format)) {
+                        createOptions.setFormat(DocumentFormat.BINARY);
+                    } else if("text".equals(format)) {
+                        createOptions.setFormat(DocumentFormat.TEXT);
+                    } else {
+                        createOptions.setFormat(DocumentFormat.XML);
+                    }
+                    createOptions.setQuality(Integer.parseInt(rs.next()
+                            .asString()));
+                    String[] collections = new String[Integer.parseInt(rs
+                            .next().asString())];
+                    for(int i = 0; i < collections.length; i++) {
+                        collections[i] = rs.next().asString();
+                    }
+                    createOptions.setCollections(collections);
+                    ContentPermission[] permissions = new ContentPermission[Integer
+                            .parseInt(rs.next().asString())];
+                    for(int i = 0; i < permissions.length; i++) {
+                        ContentCapability capability = getCapability(rs
+                                .next().asString());
+                        String role = roles.getName(roleSession, rs.next()
+                                .asString(), ttl);
+                        permissions[i] = new ContentPermission(capability, role);
+                    }
+                    createOptions.setPermissions(permissions);
+
+                    ResultItem doc = rs.next();
+                    InputStream in = doc.asInputStream();
+                    byte[] head = read(in, BATCH_SIZE + 1);
+                    if(head.length <= BATCH_SIZE) {
+                        pending.add(ContentFactory.newContent(uri, head,
+                                createOptions));
+                        pendingBytes += head.length;
+                        if(pendingBytes >= BATCH_SIZE) {
+                            flush(targetSession);
+                        }
+                    } else {
+                        flush(targetSession);
+                        targetSession.insertContent(ContentFactory
+                                .newUnBufferedContent(uri,
+                                        new SequenceInputStream(
+                                                new ByteArrayInputStream(head),
+                                                in), createOptions));
+                        copied++;
+                        progress.add(1);
+                    }
+                }
+                rs.close();
+                flush(targetSession);
+            } catch(Exception e) {
+                progress.fail(uris.size() - copied);
+                throw e;
+            } finally {
+                targetSession.close();
+                if(sourceSession != null) {
+                    sourceSession.close();
+                }
+                if(roleSession != null) {
+                    roleSession.close();
+                }
+            }
+        }
+
+        /**
+         * Insert the buffered documents with one request.
+         */
+        private void flush(Session session) throws RequestException {
+            if(pending.isEmpty()) {
+                return;
+            }
+            session.insertContent((Content[]) pending
+                    .toArray(new Content[pending.size()]));
+            copied += pending.size();
+            progress.add(pending.size());
+            pending.clear();
+            pendingBytes = 0;
+        }
+
+        /**
+         * Read at most <code>max</code> bytes from <code>in</code>.
+         */
+        private static byte[] read(InputStream in, int max)
+                throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while(out.size() < max
+                    && (n = in.read(buf, 0, Math.min(buf.length, max
+                            - out.size()))) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+
+        private ContentCapability getCapability(String capability) {
+            if("execute".equals(capability)) {
+                return ContentCapability.EXECUTE;
+            } else if("insert".equals(capability)) {
+                return ContentCapability.INSERT;
+            } else if("update".equals(capability)) {
+                return ContentCapability.UPDATE;
+            }
+            return ContentCapability.READ;
+        }
+    }
 }
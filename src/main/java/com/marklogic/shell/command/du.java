@@ -0,0 +1,294 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.ForestPartitioner;
+import com.marklogic.shell.MergingPager;
+import com.marklogic.shell.Pager;
+import com.marklogic.shell.Strings;
+import com.marklogic.shell.UriPager;
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+public class du implements Command {
+    /**
+     * Document and fragment counts and the on disk size of every forest of
+     * a database, one tab separated line per forest: name, documents,
+     * active fragments, deleted fragments and megabytes on disk.
+     */
+    static final String FORESTS = "declare namespace fs = \"http://marklogic.com/xdmp/status/forest\" "
+            + "define variable $database as xs:string external "
+            + "define variable $t as xs:string { codepoints-to-string(9) } "
+            + "for $f in xdmp:database-forests(if($database eq \"\") "
+            + "then xdmp:database() else xdmp:database($database)) "
+            + "let $s := xdmp:forest-status($f) "
+            + "let $c := xdmp:forest-counts($f) "
+            + "return string-join((string($s/fs:forest-name), "
+            + "string(sum($c/fs:document-count)), "
+            + "string(sum($c//fs:active-fragment-count)), "
+            + "string(sum($c//fs:deleted-fragment-count)), "
+            + "string(sum($s/fs:stands/fs:stand/fs:disk-size))), $t)";
+
+    /**
+     * Estimated document counts for a newline separated list of
+     * directories.
+     */
+    static final String DIRECTORIES = "define variable $dirs as xs:string external "
+            + "for $d in tokenize($dirs, \"\\n\") "
+            + "return string(xdmp:estimate(xdmp:directory($d, \"infinity\")))";
+
+    private static final int[] FOREST_COLUMNS = new int[] { -24, 12, 12, 9,
+            10 };
+
+    private static final int[] DIRECTORY_COLUMNS = new int[] { 12, 0 };
+
+    private Options options = new Options();
+
+    public du() {
+        Option database = OptionBuilder.withLongOpt("database").hasArg()
+                .withDescription("Report on this database instead of the current one")
+                .create("d");
+        Option collection = OptionBuilder.withLongOpt("collection").hasArg()
+                .withDescription("Report on the documents in a collection")
+                .create("c");
+        options.addOption(database);
+        options.addOption(collection);
+    }
+
+    public String getName() {
+        return "du";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: du [options] [directory]" + Environment.NEWLINE);
+        buffer.append("Without arguments du shows the documents, fragments, percentage of deleted"
+                + Environment.NEWLINE);
+        buffer.append("fragments and megabytes on disk of each forest of the database, read from"
+                + Environment.NEWLINE);
+        buffer.append("the forest status. With a directory it shows the estimated number of"
+                + Environment.NEWLINE);
+        buffer.append("documents under each sub directory, and with -c the estimated number of"
+                + Environment.NEWLINE);
+        buffer.append("documents in a collection. Estimates are resolved from the indexes."
+                + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        String[] tokens = new String[0];
+        if(commandline != null && commandline.trim().length() > 0) {
+            tokens = commandline.trim().split("\\s+");
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, tokens);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+        String[] args = cmd.getArgs();
+        if(args.length > 1 || (args.length == 1 && cmd.hasOption("c"))) {
+            env.outputLine("Please specify one directory or collection. See help du.");
+            return;
+        }
+
+        String database = cmd.getOptionValue("d");
+        try {
+            if(cmd.hasOption("c")) {
+                String collection = cmd.getOptionValue("c");
+                env.outputLine(row(evaluate(env, database,
+                        "string(xdmp:estimate(collection("
+                                + Strings.quote(collection) + ")))")[0],
+                        collection));
+            } else if(args.length == 1) {
+                String dir = (args[0].endsWith("/") ? args[0] : args[0] + "/");
+                directories(env, database, dir);
+            } else {
+                forests(env, cmd.getOptionValue("d", ""));
+            }
+        } catch(RequestException e) {
+            env.outputException(e);
+        }
+    }
+
+    /**
+     * One line per forest and the totals for the database.
+     */
+    private void forests(Environment env, String database)
+            throws RequestException {
+        Session session = env.getContentSource().newSession();
+        String[] lines;
+        try {
+            AdhocQuery request = session.newAdhocQuery(FORESTS);
+            request.setNewStringVariable("database", database);
+            ResultSequence rs = session.submitRequest(request);
+            lines = rs.asStrings();
+            rs.close();
+        } finally {
+            session.close();
+        }
+
+        env.outputLine(Strings.row(new String[] { "forest", "documents",
+                "fragments", "deleted%", "size MB" }, FOREST_COLUMNS));
+        double[] total = new double[4];
+        for(int i = 0; i < lines.length; i++) {
+            String[] record = lines[i].split("\t", -1);
+            if(record.length < 5) {
+                continue;
+            }
+            double[] values = new double[4];
+            for(int j = 0; j < values.length; j++) {
+                values[j] = number(record[j + 1]);
+                total[j] += values[j];
+            }
+            env.outputLine(forestRow(record[0], values));
+        }
+        if(lines.length > 1) {
+            env.outputLine(forestRow("total", total));
+        }
+    }
+
+    private static String forestRow(String name, double[] values) {
+        DecimalFormat format = new DecimalFormat("0.0");
+        double fragments = values[1] + values[2];
+        return Strings.row(new String[] {
+                name,
+                String.valueOf((long) values[0]),
+                String.valueOf((long) values[1]),
+                fragments > 0 ? format.format(100 * values[2] / fragments)
+                        : "-", String.valueOf((long) values[3]) },
+                FOREST_COLUMNS);
+    }
+
+    /**
+     * One line per sub directory of <code>dir</code>, followed by the
+     * total for <code>dir</code>. Documents directly in <code>dir</code>
+     * only count towards the total. Reads <code>database</code>, or the
+     * current database when it is null.
+     */
+    private void directories(Environment env, String database, String dir)
+            throws RequestException {
+        Session session = newSession(env, database);
+        MergingPager merging = null;
+        try {
+            Pager pager;
+            if(ForestPartitioner.isEnabled(env)) {
+                merging = new ForestPartitioner(env.getContentSource(),
+                        database).newUriPager(dir, env.getSettings()
+                        .getPageSize());
+                pager = merging;
+            } else {
+                pager = UriPager.forArgument(session, dir, env.getSettings()
+                        .getPageSize());
+            }
+            for(List page = pager.nextPage(); !page.isEmpty(); page = pager
+                    .nextPage()) {
+                List dirs = new ArrayList();
+                for(Iterator i = page.iterator(); i.hasNext();) {
+                    String uri = (String) i.next();
+                    if(uri.endsWith("/")) {
+                        dirs.add(uri);
+                    }
+                }
+                if(dirs.isEmpty()) {
+                    continue;
+                }
+                StringBuffer buf = new StringBuffer();
+                for(Iterator i = dirs.iterator(); i.hasNext();) {
+                    buf.append((String) i.next());
+                    if(i.hasNext()) {
+                        buf.append('\n');
+                    }
+                }
+                AdhocQuery request = session.newAdhocQuery(DIRECTORIES);
+                request.setNewStringVariable("dirs", buf.toString());
+                ResultSequence rs = session.submitRequest(request);
+                String[] counts = rs.asStrings();
+                rs.close();
+                for(int i = 0; i < dirs.size() && i < counts.length; i++) {
+                    env.outputLine(row(counts[i], (String) dirs.get(i)));
+                }
+            }
+        } finally {
+            if(merging != null) {
+                merging.close();
+            }
+            session.close();
+        }
+        env.outputLine(row(evaluate(env, database,
+                "string(xdmp:estimate(xdmp:directory(" + Strings.quote(dir)
+                        + ", \"infinity\")))")[0], dir));
+    }
+
+    private static String row(String count, String name) {
+        return Strings.row(new String[] { count, name }, DIRECTORY_COLUMNS);
+    }
+
+    private static String[] evaluate(Environment env, String database,
+            String query) throws RequestException {
+        Session session = newSession(env, database);
+        try {
+            ResultSequence rs = session.submitRequest(session
+                    .newAdhocQuery(query));
+            String[] values = rs.asStrings();
+            rs.close();
+            return (values.length == 0 ? new String[] { "0" } : values);
+        } finally {
+            session.close();
+        }
+    }
+
+    private static Session newSession(Environment env, String database) {
+        if(database == null) {
+            return env.getContentSource().newSession();
+        }
+        return env.getContentSource().newSession(database);
+    }
+
+    private static double number(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+}
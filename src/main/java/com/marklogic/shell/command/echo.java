@@ -32,7 +32,7 @@ public class echo implements Command {
 
     public void execute(Environment env, String arg) {
         if(arg != null && arg.length() > 0) {
-            env.outputLine(arg + " = " + env.getProperties().getString(arg));
+            env.outputLine(arg + " = " + env.getSettings().getString(arg));
         }
     }
 }
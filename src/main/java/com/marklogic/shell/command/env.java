@@ -18,6 +18,7 @@ package com.marklogic.shell.command;
 import java.util.Iterator;
 
 import com.marklogic.shell.Environment;
+import com.marklogic.shell.Settings;
 
 public class env implements Command {
     public String getName() {
@@ -33,13 +34,14 @@ public class env implements Command {
     }
 
     public void execute(Environment env, String none) {
-        for(Iterator i = env.getProperties().getKeys(); i.hasNext();) {
+        Settings settings = env.getSettings();
+        for(Iterator i = settings.getKeys(); i.hasNext();) {
             String key = (String) i.next();
             if("password".equals(key)) {
                 env.outputLine(key + " = ********");
             } else {
                 env.outputLine(key + " = "
-                                + env.getProperties().getString(key));
+                                + settings.getString(key));
             }
         }
     }
@@ -15,6 +15,7 @@
  */
 package com.marklogic.shell.command;
 
+import com.marklogic.shell.CommandRegistry;
 import com.marklogic.shell.Environment;
 
 public class help implements Command {
@@ -32,11 +33,11 @@ public class help implements Command {
         help.append("--Document: " + Environment.NEWLINE);
         help.append("  load [file pattern] ..   loads files into database "
                 + Environment.NEWLINE);
-        help.append("  ls [xpath]               list base-uri()'s for nodes returned in 'xpath'"
+        help.append("  ls [uri|xpath]           list uri's matching 'uri' or returned by 'xpath'"
                         + Environment.NEWLINE);
         help.append("  cat [document uri]       display a documents contents"
                 + Environment.NEWLINE);
-        help.append("  rm [-f -x] uri uri ..    remove document(s) from database"
+        help.append("  rm [-f -x -d -c] uri ..  remove document(s) from database"
                         + Environment.NEWLINE);
         help.append(Environment.NEWLINE);
         help.append("--Environment: " + Environment.NEWLINE);
@@ -54,6 +55,30 @@ public class help implements Command {
                 + Environment.NEWLINE);
         help.append("  use [database]           Eval xquery in specified database"
                         + Environment.NEWLINE);
+        help.append("  stats [-r -j]            display client side counters and latencies"
+                        + Environment.NEWLINE);
+        help.append("  top [-d seconds]         monitor hosts, app servers, forests and requests"
+                        + Environment.NEWLINE);
+        help.append("  ps [-u -m -H]            list running requests"
+                        + Environment.NEWLINE);
+        help.append("  cancel [request id] ..   cancel running requests"
+                        + Environment.NEWLINE);
+        help.append("  bench [-n -c] xquery     load test a query and report latencies"
+                        + Environment.NEWLINE);
+        help.append("  capture [start|stop]     record queries and their timings to a log"
+                        + Environment.NEWLINE);
+        help.append("  replay [-r -c] file      replay a capture log and compare latencies"
+                        + Environment.NEWLINE);
+        help.append("  history [-n -p] [text]   list or search previous statements"
+                        + Environment.NEWLINE);
+        help.append("  begin|commit|rollback    buffer updates and send them together"
+                        + Environment.NEWLINE);
+        help.append("  transform -p file query  run a query on batches of matching documents"
+                        + Environment.NEWLINE);
+        help.append("  count [-e -c] [query]    estimate or count matching documents"
+                        + Environment.NEWLINE);
+        help.append("  du [-d -c] [directory]   show forest sizes or documents per directory"
+                        + Environment.NEWLINE);
         help.append("  version                  displays MarkLogic version information"
                         + Environment.NEWLINE);
         help.append("  help [command]           display verbose information on a command"
@@ -70,29 +95,8 @@ public class help implements Command {
             return;
         }
 
-        Command command = null;
-
-        String[] path = env.getProperties().getStringArray("path");
-        if(path != null && path.length > 0) {
-            for(int i = 0; i < path.length; i++) {
-                Class commandClass;
-                try {
-                    commandClass = Class.forName(path[i] + "." + commandString);
-                    command = (Command) commandClass.newInstance();
-                    break;
-                } catch(Exception ignored) {
-                }
-            }
-        }
-
-        if(command == null) {
-            try {
-                Class commandClass = Class.forName(Environment.SYSTEM_PATH
-                        + "." + commandString);
-                command = (Command) commandClass.newInstance();
-            } catch(Exception ignored) {
-            }
-        }
+        Command command = CommandRegistry.getInstance().getCommand(
+                commandString, env.getSettings().getPath());
 
         if(command != null) {
             env.outputLine(command.getHelp());
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.CommandHistory;
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Shell;
+
+public class history implements Command {
+    /**
+     * Default number of entries to list
+     */
+    public static final int DEFAULT_COUNT = 20;
+
+    private Options options = new Options();
+
+    public history() {
+        Option count = OptionBuilder.withLongOpt("count").hasArg()
+                .withDescription(
+                        "Number of entries to list (default " + DEFAULT_COUNT
+                                + ")").create("n");
+        Option prefix = OptionBuilder.withLongOpt("prefix").withDescription(
+                "Only list statements that start with the text").create("p");
+        options.addOption(count);
+        options.addOption(prefix);
+    }
+
+    public String getName() {
+        return "history";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: history [options] [text]" + Environment.NEWLINE);
+        buffer.append("List the most recent statements in the command history, or the most"
+                + Environment.NEWLINE);
+        buffer.append("recent distinct statements containing text. After a search the up arrow"
+                + Environment.NEWLINE);
+        buffer.append("recalls the newest match. The history keeps 'history-size' statements."
+                + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        String[] tokens = new String[0];
+        if(commandline != null && commandline.trim().length() > 0) {
+            tokens = commandline.trim().split("\\s+");
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, tokens, true);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+        CommandHistory history = (env instanceof Shell ? ((Shell) env)
+                .getHistory() : null);
+        if(history == null) {
+            env.outputLine("No command history.");
+            return;
+        }
+        int count = DEFAULT_COUNT;
+        if(cmd.hasOption("n")) {
+            try {
+                count = Integer.parseInt(cmd.getOptionValue("n"));
+            } catch(NumberFormatException e) {
+                env.outputError("Invalid number: " + e.getMessage());
+                return;
+            }
+        }
+
+        // search text keeps its spaces
+        StringBuffer text = new StringBuffer();
+        String[] args = cmd.getArgs();
+        for(int i = 0; i < args.length; i++) {
+            if(i > 0) {
+                text.append(' ');
+            }
+            text.append(args[i]);
+        }
+        if(text.length() == 0) {
+            int size = history.size();
+            // skip this history command
+            for(int i = Math.max(0, size - 1 - count); i < size - 1; i++) {
+                print(env, history, i);
+            }
+            return;
+        }
+
+        List matches = history.search(text.toString(), cmd.hasOption("p"),
+                count + 1);
+        // the newest match is usually this history command
+        int last = history.size() - 1;
+        if(!matches.isEmpty() && ((Integer) matches.get(0)).intValue() == last) {
+            matches.remove(0);
+        } else if(matches.size() > count) {
+            matches.remove(matches.size() - 1);
+        }
+        if(matches.isEmpty()) {
+            env.outputLine("No matching statements.");
+            return;
+        }
+        for(int i = matches.size() - 1; i >= 0; i--) {
+            print(env, history, ((Integer) matches.get(i)).intValue());
+        }
+        history.moveTo(((Integer) matches.get(0)).intValue());
+    }
+
+    private void print(Environment env, CommandHistory history, int index) {
+        String number = String.valueOf(index + 1);
+        StringBuffer line = new StringBuffer();
+        for(int i = number.length(); i < 7; i++) {
+            line.append(' ');
+        }
+        line.append(number).append("  ").append(history.get(index));
+        env.outputLine(line.toString());
+    }
+}
@@ -15,13 +15,25 @@
  */
 package com.marklogic.shell.command;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import javax.xml.transform.Source;
+import javax.xml.transform.SourceLocator;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -30,19 +42,44 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
 import com.marklogic.shell.Environment;
 import com.marklogic.shell.FileScanner;
+import com.marklogic.shell.Progress;
+import com.marklogic.shell.SchemaValidator;
+import com.marklogic.shell.Settings;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.ShellException;
+import com.marklogic.shell.TransformStage;
+import com.marklogic.shell.WorkQueue;
 import com.marklogic.xcc.Content;
 import com.marklogic.xcc.ContentCapability;
 import com.marklogic.xcc.ContentCreateOptions;
 import com.marklogic.xcc.ContentFactory;
 import com.marklogic.xcc.ContentPermission;
+import com.marklogic.xcc.ContentSource;
 import com.marklogic.xcc.DocumentFormat;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.RequestException;
 
 public class load implements Command {
+    /**
+     * Default number of files per insert
+     */
+    public static final int DEFAULT_BATCH = 100;
+
+    /**
+     * Default number of bytes per insert
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1024 * 1024;
+
+    /**
+     * Default size from which files are inserted on their own
+     */
+    public static final int DEFAULT_LARGE_FILE = 16 * 1024 * 1024;
+
     private Options options = new Options();
 
     public load(Options options) {
@@ -77,6 +114,27 @@ public class load implements Command {
         options.addOption(permOption);
         options.addOption(typeOption);
         options.addOption(qualityOption);
+        options.addOption(OptionBuilder.withLongOpt("validate").hasArg()
+                .withDescription(
+                        "validate files against this XML schema before loading")
+                .create("v"));
+        options.addOption(OptionBuilder.withLongOpt("rejects").hasArg()
+                .withDescription(
+                        "write files that failed to transform or validate to this file")
+                .create("r"));
+        options.addOption(OptionBuilder.withLongOpt("transform").hasArg()
+                .withDescription(
+                        "transform files with this stylesheet (.xsl or .xslt) or "
+                                + "DocumentTransform class before loading")
+                .create("s"));
+        options.addOption(OptionBuilder.withLongOpt("threads").hasArg()
+                .withDescription(
+                        "number of threads to load with (default "
+                                + WorkQueue.DEFAULT_THREADS + ")").create("T"));
+        options.addOption(OptionBuilder.withLongOpt("batch").hasArg()
+                .withDescription(
+                        "number of files per insert (default " + DEFAULT_BATCH
+                                + ")").create("b"));
     }
 
     public Options getOptions() {
@@ -93,7 +151,26 @@ public class load implements Command {
                         + Environment.NEWLINE);
         buffer.append("Loads a document into Mark Logic from [file path]. The document uri defaults to"
                         + Environment.NEWLINE);
-        buffer.append("the file name." + Environment.NEWLINE);
+        buffer.append("the file name. Files are loaded in batches on several threads. With --validate"
+                        + Environment.NEWLINE);
+        buffer.append("every file is checked against an XML schema on the loading thread first and"
+                        + Environment.NEWLINE);
+        buffer.append("files that are not valid are reported with the line and column of the error"
+                        + Environment.NEWLINE);
+        buffer.append("instead of being sent to the server. A batch is sent when it has --batch files"
+                        + Environment.NEWLINE);
+        buffer.append("or 'load-batch-size' bytes. Files of 'load-large-file' bytes or more are"
+                        + Environment.NEWLINE);
+        buffer.append("streamed from disk on their own. With --transform every file is run through"
+                        + Environment.NEWLINE);
+        buffer.append("an XSLT stylesheet, with the document uri as the 'uri' parameter, or through"
+                        + Environment.NEWLINE);
+        buffer.append("a com.marklogic.shell.DocumentTransform class found in 'path' before it is"
+                        + Environment.NEWLINE);
+        buffer.append("validated and loaded. Transformed files are read into memory, so files of"
+                        + Environment.NEWLINE);
+        buffer.append("'load-large-file' bytes or more are rejected instead of transformed."
+                        + Environment.NEWLINE);
         buffer.append("Options: " + Environment.NEWLINE);
         HelpFormatter formatter = new HelpFormatter();
         StringWriter help = new StringWriter();
@@ -112,6 +189,10 @@ public class load implements Command {
     }
 
     public void execute(Environment env, String[] args) {
+        if(env instanceof Shell && ((Shell) env).getTransaction() != null) {
+            env.outputError("load can't be used in a transaction. Commit or rollback first.");
+            return;
+        }
         if(args != null && args.length > 0) {
             CommandLineParser parser = new PosixParser();
             CommandLine cmd = null;
@@ -195,43 +276,142 @@ public class load implements Command {
                 contentOptions.setPermissions(cperms);
             }
             
+            int threads = WorkQueue.DEFAULT_THREADS;
+            int batch = DEFAULT_BATCH;
+            try {
+                if(cmd.hasOption("T")) {
+                    threads = Integer.parseInt(cmd.getOptionValue("T"));
+                }
+                if(cmd.hasOption("b")) {
+                    batch = Integer.parseInt(cmd.getOptionValue("b"));
+                }
+            } catch(NumberFormatException e) {
+                env.outputError("Invalid number: " + e.getMessage());
+                return;
+            }
+            if(batch <= 0) {
+                batch = DEFAULT_BATCH;
+            }
+
+            SchemaValidator validator = null;
+            if(cmd.hasOption("v")) {
+                File schema = resolveFile(env, cmd.getOptionValue("v"));
+                try {
+                    validator = SchemaValidator.getInstance(schema);
+                } catch(SAXException e) {
+                    env.outputError("Failed to read schema " + schema + ": "
+                            + e.getMessage());
+                    return;
+                }
+            }
+
+            Settings settings = env.getSettings();
+            TransformStage transform = null;
+            if(cmd.hasOption("s")) {
+                String name = cmd.getOptionValue("s");
+                try {
+                    transform = TransformStage.forName(name, resolveFile(env,
+                            name), settings.getPath());
+                } catch(ShellException e) {
+                    env.outputException(e);
+                    return;
+                }
+            }
+
             env.outputLine("Loading files...");
-            int total = 0;
-            for(Iterator i = cmd.getArgList().iterator(); i.hasNext();) {
-                String path = i.next().toString();
-                List files = FileScanner.findFiles(path);
-                if(files != null && files.size() > 0) {
-                    List list = new ArrayList();
-                    for(Iterator it = files.iterator(); it.hasNext();) {
-                        File f = (File) it.next();
-                        String uri = cmd.getOptionValue("n");
-                        if(uri == null || uri.length() == 0) {
-                            uri = getUri(cmd.getOptionValue("i"), f.getName());
-                        }
-                        list.add(ContentFactory.newContent(uri, f, contentOptions));
+            Progress progress = new Progress(env, "files loaded");
+            List rejects = Collections.synchronizedList(new ArrayList());
+            WorkQueue queue = new WorkQueue(threads);
+            Loader loader = new Loader(env.getContentSource(), queue,
+                    contentOptions, progress);
+            loader.uri = cmd.getOptionValue("n");
+            loader.prefix = cmd.getOptionValue("i");
+            loader.validator = validator;
+            loader.transform = transform;
+            loader.rejects = rejects;
+            loader.batch = batch;
+            loader.batchSize = settings.getInt("load-batch-size",
+                    DEFAULT_BATCH_SIZE);
+            loader.largeFile = settings.getInt("load-large-file",
+                    DEFAULT_LARGE_FILE);
+            try {
+                for(Iterator i = cmd.getArgList().iterator(); i.hasNext();) {
+                    String path = resolveFile(env, i.next().toString())
+                            .getPath();
+                    List files = FileScanner.findFiles(path);
+                    if(files == null || files.size() == 0) {
+                        env.outputLine("No file(s) found at location " + path
+                                + ".");
+                        continue;
                     }
-                    Content[] contentList = new Content[list.size()];
-                    list.toArray(contentList);
-                    Session session = env.getContentSource().newSession();
-                    try {
-                        session.insertContent(contentList);
-                        total += contentList.length;
-                    } catch(RequestException e) {
-                        env.outputException(e);
+                    for(Iterator j = files.iterator(); j.hasNext();) {
+                        loader.add((File) j.next());
                     }
-                } else {
-                    env.outputLine("No file(s) found at location " + path
-                                    + ".");
                 }
+                loader.flush();
+            } catch(InterruptedException e) {
+                env.outputError("Interrupted.");
+            } finally {
+                try {
+                    queue.finish();
+                } catch(InterruptedException ignored) {
+                }
+            }
+            if(progress.getCount() > 0 || progress.getFailed() > 0) {
+                progress.done();
             }
-            if(total > 0) {
-                env.outputLine("Done. Loaded " + total + " file(s).");
+            reportRejects(env, rejects, cmd.getOptionValue("r"));
+            List errors = queue.getErrors();
+            if(!errors.isEmpty()) {
+                env.outputLine(errors.size() + " batch(es) failed. First error:");
+                env.outputException((Exception) errors.get(0));
             }
         } else {
             env.outputLine("You must specify a file path to load.");
         }
     }
 
+    /**
+     * Print the files that failed to transform or validate, or write them to
+     * <code>report</code> one per line as: path, line, column and message
+     * separated by tabs.
+     */
+    private void reportRejects(Environment env, List rejects, String report) {
+        if(rejects.isEmpty()) {
+            return;
+        }
+        if(report == null) {
+            env.outputLine(rejects.size() + " file(s) rejected:");
+            for(Iterator i = rejects.iterator(); i.hasNext();) {
+                String[] reject = (String[]) i.next();
+                env.outputLine(reject[0] + ":" + reject[1] + ":" + reject[2]
+                        + ": " + reject[3]);
+            }
+            return;
+        }
+        File file = resolveFile(env, report);
+        try {
+            PrintWriter writer = new PrintWriter(new FileWriter(file));
+            for(Iterator i = rejects.iterator(); i.hasNext();) {
+                String[] reject = (String[]) i.next();
+                writer.println(reject[0] + "\t" + reject[1] + "\t" + reject[2]
+                        + "\t" + reject[3].replace('\t', ' ').replace('\n', ' '));
+            }
+            writer.close();
+            env.outputLine(rejects.size()
+                    + " file(s) rejected, see " + file);
+        } catch(IOException e) {
+            env.outputException(e);
+        }
+    }
+
+    private static File resolveFile(Environment env, String path) {
+        if(env instanceof Shell) {
+            return ((Shell) env).resolveFile(path);
+        }
+        return new File(path);
+    }
+
     public String getUri(String prefix, String filename) {
         String uri = "";
         if(prefix == null || prefix.length() == 0) {
@@ -246,4 +426,185 @@ public class load implements Command {
 
         return uri;
     }
+
+    /**
+     * Packs files into batches and queues them on the worker threads. A
+     * batch is sent when it has <code>batch</code> files or
+     * <code>batchSize</code> bytes, so millions of tiny files make few dense
+     * requests. Files of <code>largeFile</code> bytes or more are streamed
+     * from disk in a request of their own instead of joining a batch.
+     */
+    private class Loader {
+        ContentSource contentSource;
+        WorkQueue queue;
+        ContentCreateOptions options;
+        Progress progress;
+        String uri;
+        String prefix;
+        SchemaValidator validator;
+        TransformStage transform;
+        List rejects;
+        int batch = DEFAULT_BATCH;
+        long batchSize = DEFAULT_BATCH_SIZE;
+        long largeFile = DEFAULT_LARGE_FILE;
+
+        private List files = new ArrayList();
+        private long bytes = 0;
+
+        public Loader(ContentSource contentSource, WorkQueue queue,
+                ContentCreateOptions options, Progress progress) {
+            this.contentSource = contentSource;
+            this.queue = queue;
+            this.options = options;
+            this.progress = progress;
+        }
+
+        public void add(File file) throws InterruptedException {
+            long length = file.length();
+            if(length >= largeFile) {
+                List list = new ArrayList();
+                list.add(file);
+                queue.submit(new LoadTask(this, list));
+                return;
+            }
+            files.add(file);
+            bytes += length;
+            if(files.size() >= batch || bytes >= batchSize) {
+                flush();
+            }
+        }
+
+        public void flush() throws InterruptedException {
+            if(!files.isEmpty()) {
+                queue.submit(new LoadTask(this, files));
+                files = new ArrayList();
+                bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads, transforms, validates and inserts one batch of files. Files
+     * smaller than the batch size, and every file when there is a
+     * transform, are read into memory in one go. Other files are streamed
+     * from disk by the insert. Files that fail to transform or validate are
+     * added to the rejects and left out of the batch, so bad data never
+     * costs a round trip. When there is a transform, files of the large
+     * file size or more are rejected so only smaller files are ever read
+     * into memory.
+     */
+    private class LoadTask implements WorkQueue.Task {
+        private Loader loader;
+        private List files;
+
+        public LoadTask(Loader loader, List files) {
+            this.loader = loader;
+            this.files = files;
+        }
+
+        public void run() throws Exception {
+            List list = new ArrayList();
+            for(Iterator i = files.iterator(); i.hasNext();) {
+                File f = (File) i.next();
+                String name = loader.uri;
+                if(name == null || name.length() == 0) {
+                    name = getUri(loader.prefix, f.getName());
+                }
+                if(loader.transform != null && f.length() >= loader.largeFile) {
+                    reject(f, -1, -1, "Too large to transform, load-large-file is "
+                            + loader.largeFile + " bytes");
+                    continue;
+                }
+                byte[] data = null;
+                if(loader.transform != null || f.length() < loader.batchSize) {
+                    data = read(f);
+                }
+                if(loader.transform != null) {
+                    try {
+                        data = loader.transform.transform(name, f, data);
+                    } catch(TransformerException e) {
+                        SourceLocator locator = e.getLocator();
+                        if(locator != null) {
+                            reject(f, locator.getLineNumber(), locator
+                                    .getColumnNumber(), e.getMessage());
+                        } else {
+                            reject(f, -1, -1, e.getMessage());
+                        }
+                        continue;
+                    } catch(Exception e) {
+                        reject(f, -1, -1, e.toString());
+                        continue;
+                    }
+                    if(data == null) {
+                        continue;
+                    }
+                }
+                if(loader.validator != null && !isValid(f, data)) {
+                    continue;
+                }
+                if(data != null) {
+                    list.add(ContentFactory.newContent(name, data,
+                            loader.options));
+                } else {
+                    list.add(ContentFactory.newContent(name, f,
+                            loader.options));
+                }
+            }
+            if(list.isEmpty()) {
+                return;
+            }
+            Content[] contentList = new Content[list.size()];
+            list.toArray(contentList);
+            Session session = loader.contentSource.newSession();
+            try {
+                session.insertContent(contentList);
+                loader.progress.add(contentList.length);
+            } catch(RequestException e) {
+                loader.progress.fail(contentList.length);
+                throw e;
+            } finally {
+                session.close();
+            }
+        }
+
+        private byte[] read(File f) throws IOException {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                FileChannel channel = in.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while(buffer.hasRemaining() && channel.read(buffer) != -1) {
+                }
+                return buffer.array();
+            } finally {
+                in.close();
+            }
+        }
+
+        private boolean isValid(File f, byte[] data) throws IOException {
+            Source source;
+            if(data != null) {
+                source = new StreamSource(new ByteArrayInputStream(data), f
+                        .toURI().toString());
+            } else {
+                source = new StreamSource(f);
+            }
+            try {
+                loader.validator.validate(source);
+                return true;
+            } catch(SAXParseException e) {
+                reject(f, e.getLineNumber(), e.getColumnNumber(), e
+                        .getMessage());
+            } catch(SAXException e) {
+                reject(f, -1, -1, e.getMessage());
+            }
+            return false;
+        }
+
+        private void reject(File f, int line, int column, String message) {
+            loader.rejects.add(new String[] { f.getPath(),
+                    String.valueOf(line), String.valueOf(column),
+                    String.valueOf(message) });
+            loader.progress.fail(1);
+        }
+    }
 }
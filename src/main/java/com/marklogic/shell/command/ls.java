@@ -17,6 +17,9 @@ package com.marklogic.shell.command;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -28,7 +31,16 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
 import com.marklogic.shell.Environment;
+import com.marklogic.shell.ForestPartitioner;
+import com.marklogic.shell.MergingPager;
+import com.marklogic.shell.Pager;
+import com.marklogic.shell.RoleCache;
+import com.marklogic.shell.Settings;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.UriPager;
+import com.marklogic.shell.UriSequence;
 import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.RequestException;
 
@@ -48,11 +60,22 @@ public class ls implements Command {
 
     public String getHelp() {
         StringBuffer help = new StringBuffer();
-        help.append("usage: ls [xpath]" + Environment.NEWLINE);
-        help.append("List base-uri's for nodes returned in [xpath]. By default this command is"
+        help.append("usage: ls [uri pattern | directory/ | xpath]" + Environment.NEWLINE);
+        help.append("List document uri's. With no arguments every uri in the database is listed"
                         + Environment.NEWLINE);
-        help.append("equivalent to running: for $i in input() order by base-uri($i) return base-uri($i) "
+        help.append("from the uri lexicon a page at a time. A uri ending in '/' lists the contents"
                         + Environment.NEWLINE);
+        help.append("of that directory and a uri containing '*' or '?' lists the uri's matching"
+                        + Environment.NEWLINE);
+        help.append("the pattern. Anything else is treated as an xpath and the base-uri's of the"
+                        + Environment.NEWLINE);
+        help.append("nodes it returns are listed. The number of uri's fetched per request can be"
+                        + Environment.NEWLINE);
+        help.append("configured by setting the 'page-size' environment variable. The uri lexicon"
+                        + Environment.NEWLINE);
+        help.append("must be enabled for the database. In long format role names are cached for"
+                        + Environment.NEWLINE);
+        help.append("'role-cache-ttl' seconds (default 300)." + Environment.NEWLINE);
         help.append("Options: " + Environment.NEWLINE);
         HelpFormatter formatter = new HelpFormatter();
         StringWriter buf = new StringWriter();
@@ -63,7 +86,7 @@ public class ls implements Command {
 
     public void execute(Environment env, String commandLine) {
         if(commandLine == null || commandLine.length() == 0) {
-            commandLine = "input()";
+            commandLine = "";
         }
 
         String[] tokens = commandLine.split("\\s+");
@@ -83,40 +106,182 @@ public class ls implements Command {
             for(int i = 0; i < args.length; i++) {
                 xpath += args[i] + " ";
             }
-        } else {
-            xpath = "input()";
+            xpath = xpath.trim();
         }
 
-        StringBuffer xquery = new StringBuffer();
-        // XXX format this better or abstract out into a file.
-        if(cmd.hasOption("l")) {
-            xquery.append("let $roles := xdmp:eval-in('<roles>{ ");
-            xquery.append("for $i in //sec:role ");
-            xquery.append("return <role id=\"{ data($i/sec:role-id) }\" name=\"{ ");
-            xquery.append("data($i/sec:role-name) }\">{ data($i/sec:description) }</role> ");
-            xquery.append("}</roles>', xdmp:database(\"Security\")) ");
-            xquery.append("let $max := max(for $i in input() return string-length(base-uri($i))) ");
-            xquery.append("for $i in " + xpath + " ");
-            xquery.append("let $name := string(base-uri($i)) ");
-            xquery.append("order by $name ");
-            xquery.append("return concat($name, string-join(for $z in (1 to $max - ");
-            xquery.append("string-length($name) + 3) return \" \", \"\"), string-join( ");
-            xquery.append("for $perm in xdmp:document-get-permissions($name) ");
-            xquery.append("return ");
-            xquery.append("concat(substring($perm/sec:capability, 1, 1), \":\", ");
-            xquery.append("$roles/role[@id = $perm/sec:role-id]/@name), \",\")) ");
-        } else {
-            xquery.append("distinct-values(for $i in "
-                            + xpath
-                            + " let $name := string(base-uri($i)) order by $name return $name)");
+        boolean longFormat = cmd.hasOption("l");
+        if(xpath.length() == 0 || isUri(xpath)) {
+            listUris(env, xpath, longFormat);
+            return;
+        }
+
+        String xquery = "distinct-values(for $i in " + xpath
+                + " let $name := string(base-uri($i)) order by $name return $name)";
+
+        Session session = env.getContentSource().newSession();
+        AdhocQuery request = session.newAdhocQuery(xquery);
+        try {
+            if(longFormat) {
+                ResultSequence rs = session.submitRequest(request);
+                Listing listing = new Listing(env, session, true);
+                int pageSize = getPageSize(env);
+                List page = new ArrayList();
+                while(rs.hasNext()) {
+                    page.add(rs.next().asString());
+                    if(page.size() >= pageSize || !rs.hasNext()) {
+                        if(!listing.print(page)) {
+                            break;
+                        }
+                        page.clear();
+                    }
+                }
+                rs.close();
+            } else {
+                env.outputResultSequence(session.submitRequest(request));
+            }
+        } catch(RequestException e) {
+            env.outputException(e);
+        }
+    }
+
+    /**
+     * True if the argument should be listed from the uri lexicon rather than
+     * evaluated as an xpath.
+     */
+    private boolean isUri(String arg) {
+        // allow scheme separators such as http:// in uri's
+        String path = arg.replaceAll("^[a-zA-Z][a-zA-Z0-9+.-]*://", "");
+        if(path.indexOf("//") != -1 || path.indexOf("::") != -1) {
+            return false;
+        }
+        for(int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if(Character.isWhitespace(c) || "()[]@'\"=".indexOf(c) != -1) {
+                return false;
+            }
         }
+        return arg.endsWith("/") || UriPager.isGlob(arg);
+    }
 
+    private void listUris(Environment env, String arg, boolean longFormat) {
         Session session = env.getContentSource().newSession();
-        AdhocQuery request = session.newAdhocQuery(xquery.toString());
+        Listing listing = new Listing(env, session, longFormat);
+        MergingPager merging = null;
         try {
-            env.outputResultSequence(session.submitRequest(request));
+            Pager pager;
+            if(ForestPartitioner.isEnabled(env)) {
+                merging = new ForestPartitioner(env.getContentSource())
+                        .newUriPager(arg, getPageSize(env));
+                pager = merging;
+            } else {
+                pager = UriPager.forArgument(session, arg, getPageSize(env));
+            }
+            List page = pager.nextPage();
+            while(!page.isEmpty() && listing.print(page)) {
+                page = pager.nextPage();
+            }
         } catch(RequestException e) {
             env.outputException(e);
+        } finally {
+            if(merging != null) {
+                merging.close();
+            }
+            session.close();
+        }
+    }
+
+    private int getPageSize(Environment env) {
+        return env.getSettings().getPageSize();
+    }
+
+    /**
+     * Prints pages of uri's, optionally with their permissions. The
+     * permissions for a page are fetched in one request and role ids are
+     * resolved to names with the {@link RoleCache}. The uri column grows to
+     * fit the longest uri seen so far.
+     */
+    private static class Listing {
+        private static final String PERMISSIONS = UriSequence.DECLARE
+                + "for $uri in " + UriSequence.TOKENIZE + " "
+                + "return string-join(for $perm in xdmp:document-get-permissions($uri) "
+                + "return concat(substring($perm/sec:capability, 1, 1), \":\", "
+                + "data($perm/sec:role-id)), \",\")";
+
+        private Environment env;
+        private Session session;
+        private Settings settings;
+        private boolean longFormat;
+        private int lineCount = 0;
+        private int width = 0;
+
+        public Listing(Environment env, Session session, boolean longFormat) {
+            this.env = env;
+            this.session = session;
+            this.settings = env.getSettings();
+            this.longFormat = longFormat;
+        }
+
+        /**
+         * Print a page of uri's. Returns false if the user stopped scrolling.
+         */
+        public boolean print(List uris) throws RequestException {
+            String[] perms = null;
+            if(longFormat) {
+                perms = getPermissions(uris);
+                for(Iterator i = uris.iterator(); i.hasNext();) {
+                    width = Math.max(width, ((String) i.next()).length());
+                }
+            }
+            int n = 0;
+            for(Iterator i = uris.iterator(); i.hasNext(); n++) {
+                String uri = (String) i.next();
+                if(longFormat) {
+                    StringBuffer line = new StringBuffer(uri);
+                    for(int pad = uri.length(); pad < width + 3; pad++) {
+                        line.append(' ');
+                    }
+                    line.append(n < perms.length ? perms[n] : "");
+                    env.outputLine(line.toString());
+                } else {
+                    env.outputLine(uri);
+                }
+                lineCount++;
+                if(env instanceof Shell
+                        && ((Shell) env).checkStopScroll(lineCount, settings
+                                .getScroll())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String[] getPermissions(List uris) throws RequestException {
+            AdhocQuery request = session.newAdhocQuery(PERMISSIONS);
+            UriSequence.bind(request, uris);
+            ResultSequence rs = session.submitRequest(request);
+            String[] perms = rs.asStrings();
+            rs.close();
+
+            RoleCache roles = RoleCache.getInstance(env);
+            int ttl = settings.getRoleCacheTtl();
+            for(int i = 0; i < perms.length; i++) {
+                if(perms[i].length() == 0) {
+                    continue;
+                }
+                String[] list = perms[i].split(",");
+                StringBuffer buf = new StringBuffer();
+                for(int j = 0; j < list.length; j++) {
+                    int colon = list[j].indexOf(':');
+                    if(j > 0) {
+                        buf.append(',');
+                    }
+                    buf.append(list[j].substring(0, colon + 1));
+                    buf.append(roles.getName(session, list[j]
+                            .substring(colon + 1), ttl));
+                }
+                perms[i] = buf.toString();
+            }
+            return perms;
         }
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+public class ps implements Command {
+    /**
+     * Lists the requests running on every app server of every host in one
+     * request, as N (server time), R (request) and U (user id and name)
+     * records in the same format as {@link top#STATUS}. Only the users
+     * running those requests are looked up in the security database.
+     */
+    static final String REQUESTS = "declare namespace ss = \"http://marklogic.com/xdmp/status/server\" "
+            + "define variable $t as xs:string { codepoints-to-string(9) } "
+            + "define function local:clean($s as item()*) as xs:string { "
+            + "replace(string($s[1]), \"\\s+\", \" \") } "
+            + "let $requests := for $h in xdmp:hosts(), $srv in xdmp:servers() "
+            + "let $ss := xdmp:server-status($h, $srv) "
+            + "for $r in $ss/ss:request-statuses/ss:request-status "
+            + "return string-join((\"R\", xdmp:host-name($h), local:clean($ss/ss:server-name), "
+            + "local:clean($r/ss:request-id), local:clean($r/ss:user), local:clean($r/ss:start-time), "
+            + "local:clean(($r/ss:request-text, $r/ss:uri))), $t) "
+            + "let $ids := distinct-values(for $r in $requests return tokenize($r, $t)[5]) "
+            + "return (string-join((\"N\", string(current-dateTime())), $t), $requests, "
+            + "if(empty($ids)) then () else "
+            + "xdmp:eval-in('define variable $ids as xs:string external "
+            + "for $u in /sec:user[sec:user-id = tokenize($ids, \" \")] "
+            + "return concat(\"U\", codepoints-to-string(9), data($u/sec:user-id), "
+            + "codepoints-to-string(9), data($u/sec:user-name))', "
+            + "xdmp:database(\"Security\"), "
+            + "(xs:QName(\"ids\"), string-join($ids, \" \"))))";
+
+    private Options options = new Options();
+
+    public ps() {
+        Option user = OptionBuilder.withLongOpt("user").hasArg()
+                .withDescription("Only list requests run by this user")
+                .create("u");
+        Option time = OptionBuilder.withLongOpt("min-time").hasArg()
+                .withDescription(
+                        "Only list requests running for at least this many seconds")
+                .create("m");
+        Option host = OptionBuilder.withLongOpt("host").hasArg()
+                .withDescription("Only list requests on this host").create(
+                        "H");
+        options.addOption(user);
+        options.addOption(time);
+        options.addOption(host);
+    }
+
+    public String getName() {
+        return "ps";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: ps [options]" + Environment.NEWLINE);
+        buffer.append("List the requests running on all app servers in the cluster, longest running"
+                + Environment.NEWLINE);
+        buffer.append("first. Use the request id with cancel to stop a request."
+                + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        String[] tokens = new String[0];
+        if(commandline != null && commandline.trim().length() > 0) {
+            tokens = commandline.trim().split("\\s+");
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, tokens);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+
+        String user = cmd.getOptionValue("u");
+        String host = cmd.getOptionValue("H");
+        double minTime = 0;
+        if(cmd.hasOption("m")) {
+            try {
+                minTime = Double.parseDouble(cmd.getOptionValue("m"));
+            } catch(NumberFormatException e) {
+                env.outputError("Invalid number of seconds: "
+                        + cmd.getOptionValue("m"));
+                return;
+            }
+        }
+
+        Session session = env.getContentSource().newSession();
+        AdhocQuery request = session.newAdhocQuery(REQUESTS);
+        String[] lines;
+        try {
+            ResultSequence rs = session.submitRequest(request);
+            lines = rs.asStrings();
+            rs.close();
+        } catch(RequestException e) {
+            env.outputException(e);
+            return;
+        }
+
+        Map users = new HashMap();
+        for(int i = 0; i < lines.length; i++) {
+            String[] record = lines[i].split("\t", -1);
+            if("U".equals(record[0]) && record.length >= 3) {
+                users.put(record[1], record[2]);
+            }
+        }
+
+        top.Sample sample = top.Sample.parse(lines);
+        DecimalFormat format = new DecimalFormat("0.0");
+        env.outputLine(pad("id", -22) + pad("host", -20) + pad("server", -16)
+                + pad("user", -12) + pad("elapsed", 9) + "  query");
+        int count = 0;
+        for(Iterator i = sample.requests.iterator(); i.hasNext();) {
+            String[] r = (String[]) i.next();
+            String name = (String) users.get(r[4]);
+            if(name == null) {
+                name = r[4];
+            }
+            double elapsed = sample.elapsed(r);
+            if((host != null && !host.equals(r[1]))
+                    || (user != null && !user.equals(name) && !user
+                            .equals(r[4])) || elapsed < minTime) {
+                continue;
+            }
+            env.outputLine(pad(r[3], -22) + pad(r[1], -20) + pad(r[2], -16)
+                    + pad(name, -12) + pad(format.format(elapsed), 9) + "  "
+                    + r[6]);
+            count++;
+        }
+        env.outputLine(count + " request(s).");
+    }
+
+    /**
+     * Pad <code>s</code> to <code>width</code> characters, on the left
+     * for a positive width and on the right for a negative width.
+     */
+    private String pad(String s, int width) {
+        StringBuffer buf = new StringBuffer();
+        for(int i = s.length(); i < Math.abs(width); i++) {
+            buf.append(' ');
+        }
+        return (width < 0 ? s + buf : buf + s) + " ";
+    }
+}
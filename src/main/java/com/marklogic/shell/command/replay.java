@@ -0,0 +1,389 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.Capture;
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Progress;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.WorkQueue;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.types.ValueType;
+
+public class replay implements Command {
+    /**
+     * Number of queries listed in the slowdown report
+     */
+    public static final int TOP_QUERIES = 10;
+
+    private Options options = new Options();
+
+    public replay() {
+        Option rate = OptionBuilder.withLongOpt("rate").hasArg()
+                .withDescription(
+                        "Speed up (or slow down) the original pacing by this factor. 0 sends requests as fast as possible (default 1)")
+                .create("r");
+        Option concurrency = OptionBuilder.withLongOpt("concurrency")
+                .hasArg().withDescription(
+                        "Maximum number of requests in flight (default "
+                                + WorkQueue.DEFAULT_THREADS + ")").create("c");
+        options.addOption(rate);
+        options.addOption(concurrency);
+    }
+
+    public String getName() {
+        return "replay";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: replay [options] file" + Environment.NEWLINE);
+        buffer.append("Run the queries and module invokes of a capture log against the current"
+                + Environment.NEWLINE);
+        buffer.append("server with their original pacing, database and external variables,"
+                + Environment.NEWLINE);
+        buffer.append("then compare the replayed latencies with the captured ones. Requests run"
+                + Environment.NEWLINE);
+        buffer.append("as the current user. Inserts and commands are skipped. See help capture."
+                + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        String[] tokens = new String[0];
+        if(commandline != null && commandline.trim().length() > 0) {
+            tokens = commandline.trim().split("\\s+");
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, tokens);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+        if(cmd.getArgs().length != 1) {
+            env.outputLine("Please specify a capture file. See help replay.");
+            return;
+        }
+
+        double rate = 1;
+        int concurrency = WorkQueue.DEFAULT_THREADS;
+        try {
+            if(cmd.hasOption("r")) {
+                rate = Double.parseDouble(cmd.getOptionValue("r"));
+            }
+            if(cmd.hasOption("c")) {
+                concurrency = Integer.parseInt(cmd.getOptionValue("c"));
+            }
+        } catch(NumberFormatException e) {
+            env.outputError("Invalid number: " + e.getMessage());
+            return;
+        }
+        if(rate < 0 || concurrency <= 0) {
+            env.outputError("The rate must not be negative and the concurrency must be positive.");
+            return;
+        }
+
+        String path = cmd.getArgs()[0];
+        File file = (env instanceof Shell ? ((Shell) env).resolveFile(path)
+                : new File(path));
+        Run run = new Run(new Progress(env, "requests"));
+        WorkQueue queue = new WorkQueue(concurrency);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            if(line == null || !line.startsWith(Capture.HEADER)) {
+                env.outputError(file + " is not a capture log.");
+                return;
+            }
+            env.outputLine("Replaying " + file
+                    + (rate == 0 ? " as fast as possible" : " at " + rate
+                            + "x") + " with up to " + concurrency
+                    + " requests in flight...");
+            ContentSource source = env.getContentSource();
+            long begin = System.nanoTime();
+            // offsets start again at every session of an appended log, so
+            // each session is scheduled right after the one before it
+            long base = 0;
+            long first = -1;
+            long last = 0;
+            while((line = reader.readLine()) != null) {
+                if(line.startsWith(Capture.SESSION)) {
+                    base = last;
+                    first = -1;
+                    continue;
+                }
+                Capture.Entry entry = Capture.Entry.parse(line);
+                if(entry == null) {
+                    continue;
+                }
+                if(entry.type != 'Q' && entry.type != 'M') {
+                    run.skipped++;
+                    continue;
+                }
+                if(first == -1) {
+                    first = entry.offset;
+                }
+                last = Math.max(last, base + entry.offset - first);
+                if(rate > 0) {
+                    long due = begin
+                            + (long) ((base + entry.offset - first) * 1000
+                                    / rate);
+                    long wait = due - System.nanoTime();
+                    if(wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } else {
+                        run.lag(-wait);
+                    }
+                }
+                queue.submit(new Replay(run, source, entry));
+            }
+            queue.finish();
+            run.end = System.nanoTime();
+            run.begin = begin;
+        } catch(IOException e) {
+            queue.cancel();
+            env.outputError("Failed to read " + file + ": " + e.getMessage());
+            return;
+        } catch(InterruptedException e) {
+            queue.cancel();
+            env.outputError("Interrupted.");
+            return;
+        } finally {
+            if(reader != null) {
+                try {
+                    reader.close();
+                } catch(IOException ignored) {
+                }
+            }
+        }
+        run.progress.done();
+        report(env, run);
+    }
+
+    private void report(Environment env, Run run) {
+        DecimalFormat format = new DecimalFormat("###,##0.00");
+        int count = run.original.size();
+        env.outputLine("Requests:    " + count + " (" + run.skipped
+                + " inserts and commands skipped)");
+        env.outputLine("Errors:      " + run.errors + " (" + run.originalErrors
+                + " when captured)");
+        double seconds = (run.end - run.begin) / 1e9;
+        env.outputLine("Time:        " + format.format(seconds) + " sec");
+        env.outputLine("Max lag:     " + bench.millis(run.maxLag)
+                + " ms behind the captured schedule");
+        if(count == 0) {
+            return;
+        }
+        env.outputLine("Latency (ms)   p50       p90       p99       max       mean");
+        env.outputLine(latencies("captured ", run.original));
+        env.outputLine(latencies("replayed ", run.replayed));
+
+        List queries = new ArrayList(run.queries.values());
+        Collections.sort(queries, new Comparator() {
+            public int compare(Object a, Object b) {
+                long d = ((QueryStats) b).increase()
+                        - ((QueryStats) a).increase();
+                return (d > 0 ? 1 : (d < 0 ? -1 : 0));
+            }
+        });
+        env.outputLine("Largest mean latency increases (ms):");
+        int n = 0;
+        for(Iterator i = queries.iterator(); i.hasNext() && n < TOP_QUERIES; n++) {
+            QueryStats stats = (QueryStats) i.next();
+            String text = stats.text.replaceAll("\\s+", " ").trim();
+            if(text.length() > 50) {
+                text = text.substring(0, 47) + "...";
+            }
+            env.outputLine("    " + pad(bench.millis(stats.originalTotal
+                    / stats.count), 9)
+                    + " -> "
+                    + pad(bench.millis(stats.replayedTotal / stats.count), 9)
+                    + "  x" + pad(String.valueOf(stats.count), 6) + "  "
+                    + text);
+        }
+    }
+
+    private String latencies(String label, List values) {
+        long[] sorted = new long[values.size()];
+        long total = 0;
+        for(int i = 0; i < sorted.length; i++) {
+            sorted[i] = ((Long) values.get(i)).longValue();
+            total += sorted[i];
+        }
+        Arrays.sort(sorted);
+        return "    " + label + " "
+                + pad(bench.millis(bench.percentile(sorted, 0.5)), -10)
+                + pad(bench.millis(bench.percentile(sorted, 0.9)), -10)
+                + pad(bench.millis(bench.percentile(sorted, 0.99)), -10)
+                + pad(bench.millis(sorted[sorted.length - 1]), -10)
+                + bench.millis(total / sorted.length);
+    }
+
+    private String pad(String s, int width) {
+        StringBuffer buf = new StringBuffer();
+        for(int i = s.length(); i < Math.abs(width); i++) {
+            buf.append(' ');
+        }
+        return (width < 0 ? s + buf : buf + s);
+    }
+
+    /**
+     * Latencies of one distinct query, in nanoseconds.
+     */
+    static class QueryStats {
+        String text;
+        int count = 0;
+        long originalTotal = 0;
+        long replayedTotal = 0;
+
+        long increase() {
+            return (replayedTotal - originalTotal) / count;
+        }
+    }
+
+    /**
+     * The results of a replay. Latencies are in nanoseconds.
+     */
+    static class Run {
+        Progress progress;
+        long begin = 0;
+        long end = 0;
+        long maxLag = 0;
+        int skipped = 0;
+        int errors = 0;
+        int originalErrors = 0;
+        List original = new ArrayList();
+        List replayed = new ArrayList();
+        Map queries = new HashMap();
+
+        Run(Progress progress) {
+            this.progress = progress;
+        }
+
+        synchronized void lag(long nanos) {
+            maxLag = Math.max(maxLag, nanos);
+        }
+
+        synchronized void add(Capture.Entry entry, long latency, boolean failed) {
+            long captured = entry.latency * 1000;
+            original.add(new Long(captured));
+            replayed.add(new Long(latency));
+            if(entry.items == Capture.FAILED) {
+                originalErrors++;
+            }
+            if(failed) {
+                errors++;
+                progress.fail(1);
+            }
+            QueryStats stats = (QueryStats) queries.get(entry.text);
+            if(stats == null) {
+                stats = new QueryStats();
+                stats.text = entry.text;
+                queries.put(entry.text, stats);
+            }
+            stats.count++;
+            stats.originalTotal += captured;
+            stats.replayedTotal += latency;
+            progress.add(1);
+        }
+    }
+
+    /**
+     * Replays a single captured request.
+     */
+    static class Replay implements WorkQueue.Task {
+        private Run run;
+        private ContentSource source;
+        private Capture.Entry entry;
+
+        Replay(Run run, ContentSource source, Capture.Entry entry) {
+            this.run = run;
+            this.source = source;
+            this.entry = entry;
+        }
+
+        public void run() {
+            Session session = (entry.database.length() > 0 ? source
+                    .newSession(entry.database) : source.newSession());
+            try {
+                Request request = (entry.type == 'M' ? (Request) session
+                        .newModuleInvoke(entry.text) : (Request) session
+                        .newAdhocQuery(entry.text));
+                for(int i = 0; i < entry.variables.length; i++) {
+                    String[] v = entry.variables[i];
+                    ValueType type = null;
+                    try {
+                        type = ValueType.valueOf(v[1]);
+                    } catch(IllegalArgumentException ignored) {
+                        // not an atomic type name, bind the text
+                    }
+                    if(type == null) {
+                        request.setNewStringVariable(v[0], v[2]);
+                    } else {
+                        request.setNewVariable(v[0], type, v[2]);
+                    }
+                }
+                long started = System.nanoTime();
+                boolean failed = false;
+                try {
+                    ResultSequence rs = session.submitRequest(request);
+                    rs.close();
+                } catch(Exception e) {
+                    failed = true;
+                }
+                run.add(entry, System.nanoTime() - started, failed);
+            } finally {
+                session.close();
+            }
+        }
+    }
+}
@@ -15,10 +15,19 @@
  */
 package com.marklogic.shell.command;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -30,12 +39,38 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
 import com.marklogic.shell.Environment;
+import com.marklogic.shell.ForestPartitioner;
+import com.marklogic.shell.Progress;
+import com.marklogic.shell.QueryPager;
 import com.marklogic.shell.Shell;
+import com.marklogic.shell.Strings;
+import com.marklogic.shell.Transaction;
+import com.marklogic.shell.UriSequence;
+import com.marklogic.shell.WorkQueue;
 import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.RequestException;
 
 public class rm implements Command {
+    /**
+     * Default number of documents to delete per transaction
+     */
+    public static final int DEFAULT_BATCH = 100;
+
+    /**
+     * Deletes the documents in $uris that exist and returns how many were
+     * deleted.
+     */
+    static final String DELETE = UriSequence.DECLARE
+            + "let $found := for $u in " + UriSequence.TOKENIZE + " "
+            + "where exists(doc($u)) return $u "
+            + "return (for $u in $found return xdmp:document-delete($u), "
+            + "count($found))";
+
+    private static final String URI_VARIABLE = "define variable $uri as xs:string external ";
+
     private Options options = new Options();
 
     public rm() {
@@ -43,20 +78,51 @@ public class rm implements Command {
                 "Attempt to remove files without confirmation").create("f");
         Option xpath = OptionBuilder.withLongOpt("xpath").hasArg()
                 .withDescription("Remove files that match xpath").create("x");
+        Option directory = OptionBuilder.withLongOpt("directory").hasArg()
+                .withDescription("Remove a directory and everything in it")
+                .create("d");
+        Option collection = OptionBuilder.withLongOpt("collection").hasArg()
+                .withDescription("Remove all documents in a collection")
+                .create("c");
+        Option input = OptionBuilder.withLongOpt("input").hasArg()
+                .withDescription(
+                        "Remove the uri's listed one per line in a file ('-' reads standard input)")
+                .create("i");
+        Option threads = OptionBuilder.withLongOpt("threads").hasArg()
+                .withDescription(
+                        "Number of threads to delete with when using -x (default "
+                                + WorkQueue.DEFAULT_THREADS + ")").create("t");
+        Option batch = OptionBuilder.withLongOpt("batch").hasArg()
+                .withDescription(
+                        "Number of documents to delete per request (default "
+                                + DEFAULT_BATCH + ")").create("b");
 
         options.addOption(force);
         options.addOption(xpath);
+        options.addOption(directory);
+        options.addOption(collection);
+        options.addOption(input);
+        options.addOption(threads);
+        options.addOption(batch);
     }
 
     public String getName() {
-        return null;
+        return "rm";
     }
 
     public String getHelp() {
         StringBuffer buffer = new StringBuffer();
         buffer.append("usage: rm [options] [uri uri ...]"
                         + Environment.NEWLINE);
-        buffer.append("Remove documents from the database."
+        buffer.append("Remove documents from the database. When removing documents that match an"
+                + Environment.NEWLINE);
+        buffer.append("xpath the matching uri's are listed first, then deleted in batches that are"
+                + Environment.NEWLINE);
+        buffer.append("committed separately. If the command fails it can be run again to remove"
+                + Environment.NEWLINE);
+        buffer.append("the documents that are left. Uri's given as arguments or read from a file are"
+                + Environment.NEWLINE);
+        buffer.append("removed in batches with one request and one confirmation per batch."
                 + Environment.NEWLINE);
         buffer.append("Options: " + Environment.NEWLINE);
         HelpFormatter formatter = new HelpFormatter();
@@ -82,65 +148,76 @@ public class rm implements Command {
                     return;
                 }
 
+                boolean force = cmd.hasOption("f");
                 String xpath = cmd.getOptionValue("x");
-                if(xpath != null && xpath.length() > 0) {
-                    String key = "n";
-                    if(cmd.hasOption("f")) {
-                        key = "y";
-                    } else {
-                        try {
-                            key = shell.getConsole().readLine(
-                                    "remove all documents matching '" + xpath
-                                            + "'? (N|y) ");
-                        } catch(IOException e) {
-                            shell.outputLine("Failed to read char from console");
-                            shell.outputException(e);
+                String directory = cmd.getOptionValue("d");
+                String collection = cmd.getOptionValue("c");
+                if(xpath != null && xpath.length() > 0
+                        && shell.getTransaction() != null) {
+                    shell.outputError("rm -x can't be used in a transaction. Commit or rollback first.");
+                } else if(xpath != null && xpath.length() > 0) {
+                    int threads = WorkQueue.DEFAULT_THREADS;
+                    int batch = DEFAULT_BATCH;
+                    try {
+                        if(cmd.hasOption("t")) {
+                            threads = Integer.parseInt(cmd.getOptionValue("t"));
                         }
-                    }
-                    if(key.equalsIgnoreCase("y")) {
-                        String query = "concat(xs:string(count(for $n in ("
-                                + xpath
-                                + ")"
-                                + " return (xdmp:document-delete(base-uri($n)), <done/>))), "
-                                + "\" documents removed.\");";
-                        Session session = shell.getContentSource().newSession();
-                        AdhocQuery request = session.newAdhocQuery(query);
-                        try {
-                            shell.outputResultSequence(session.submitRequest(request));
-                        } catch(RequestException e) {
-                            shell.outputException(e);
+                        if(cmd.hasOption("b")) {
+                            batch = Integer.parseInt(cmd.getOptionValue("b"));
                         }
-                    } else {
-                        shell.outputLine("");
+                    } catch(NumberFormatException e) {
+                        shell.outputError("Invalid number: " + e.getMessage());
+                        return;
+                    }
+                    removeMatching(shell, xpath, force, threads, batch);
+                } else if(directory != null && directory.length() > 0) {
+                    if(!directory.endsWith("/")) {
+                        directory += "/";
                     }
+                    String query = URI_VARIABLE
+                            + "let $count := xdmp:estimate(xdmp:directory($uri, \"infinity\")) "
+                            + "return (xdmp:directory-delete($uri), "
+                            + "concat(xs:string($count), \" documents removed.\"))";
+                    removeAll(shell, query, directory, "remove directory '"
+                            + directory + "' and everything in it?", force);
+                } else if(collection != null && collection.length() > 0) {
+                    String query = URI_VARIABLE
+                            + "let $count := xdmp:estimate(collection($uri)) "
+                            + "return (xdmp:collection-delete($uri), "
+                            + "concat(xs:string($count), \" documents removed.\"))";
+                    removeAll(shell, query, collection,
+                            "remove all documents in collection '" + collection
+                                    + "'?", force);
                 } else {
-                    for(Iterator i = cmd.getArgList().iterator(); i.hasNext();) {
-                        String uri = (String) i.next();
-                        String key = "n";
-                        if(cmd.hasOption("f")) {
-                            key = "y";
-                        } else {
-                            try {
-                                key = shell.getConsole().readLine(
-                                        "remove '" + uri + "'? (N|y) ");
-                            } catch(IOException e) {
-                                shell.outputLine("Failed to read char from console");
-                                shell.outputException(e);
-                            }
+                    int batch = DEFAULT_BATCH;
+                    try {
+                        if(cmd.hasOption("b")) {
+                            batch = Integer.parseInt(cmd.getOptionValue("b"));
                         }
-                        if(key.equalsIgnoreCase("y")) {
-                            String query = "if(doc(\"" + uri
-                                    + "\")) then xdmp:document-delete(\"" + uri
-                                    + "\") " + "else \"Document not found.\"";
-                            Session session = shell.getContentSource().newSession();
-                            AdhocQuery request = session.newAdhocQuery(query);
+                    } catch(NumberFormatException e) {
+                        shell.outputError("Invalid number: " + e.getMessage());
+                        return;
+                    }
+                    BufferedReader reader = null;
+                    String input = cmd.getOptionValue("i");
+                    try {
+                        if("-".equals(input)) {
+                            reader = new BufferedReader(new InputStreamReader(
+                                    shell.getInputStream()));
+                        } else if(input != null) {
+                            reader = new BufferedReader(new FileReader(input));
+                        }
+                        removeUris(shell, cmd.getArgList(), reader, force,
+                                batch);
+                    } catch(IOException e) {
+                        shell.outputError("Failed to read uri's from " + input
+                                + ": " + e.getMessage());
+                    } finally {
+                        if(reader != null && !"-".equals(input)) {
                             try {
-                                shell.outputResultSequence(session.submitRequest(request));
-                            } catch(RequestException e) {
-                                shell.outputException(e);
+                                reader.close();
+                            } catch(IOException ignored) {
                             }
-                        } else {
-                            shell.outputLine("");
                         }
                     }
                 }
@@ -149,4 +226,345 @@ public class rm implements Command {
             env.outputLine("Please specify document(s) to remove. See help rm.");
         }
     }
+
+    /**
+     * Remove the uri's in <code>args</code> followed by the uri's read one
+     * per line from <code>reader</code>. The uri's are removed
+     * <code>batch</code> at a time with one request per batch, and unless
+     * <code>force</code> is set the user confirms each batch.
+     */
+    private void removeUris(Shell shell, List args, BufferedReader reader,
+            boolean force, int batch) throws IOException {
+        Session session = shell.getContentSource().newSession();
+        long removed = 0;
+        long requested = 0;
+        List uris = new ArrayList();
+        Iterator i = args.iterator();
+        try {
+            while(true) {
+                String uri = null;
+                if(i.hasNext()) {
+                    uri = (String) i.next();
+                } else if(reader != null) {
+                    uri = reader.readLine();
+                }
+                if(uri != null) {
+                    uri = uri.trim();
+                    if(uri.length() > 0) {
+                        uris.add(uri);
+                    }
+                }
+                if(uris.size() > 0 && (uri == null || uris.size() >= batch)) {
+                    requested += uris.size();
+                    long count = removeBatch(shell, session, uris, force);
+                    if(count < 0) {
+                        requested -= uris.size();
+                    } else {
+                        removed += count;
+                    }
+                    uris = new ArrayList();
+                }
+                if(uri == null) {
+                    break;
+                }
+            }
+        } finally {
+            session.close();
+        }
+        if(requested > 0 && shell.getTransaction() != null) {
+            shell.outputLine(requested
+                    + " document(s) will be removed on commit.");
+        } else if(requested > 0) {
+            shell.outputLine(removed + " document(s) removed"
+                    + (requested > removed ? ", " + (requested - removed)
+                            + " not found." : "."));
+        } else if(args.isEmpty() && reader == null) {
+            shell.outputLine("Please specify document(s) to remove. See help rm.");
+        }
+    }
+
+    /**
+     * Remove one batch of uri's. Returns the number of documents removed or
+     * -1 if the user did not confirm.
+     */
+    private long removeBatch(Shell shell, Session session, List uris,
+            boolean force) {
+        String question;
+        if(uris.size() == 1) {
+            question = "remove '" + uris.get(0) + "'?";
+        } else {
+            question = "remove " + uris.size() + " documents ('"
+                    + uris.get(0) + "' ... '" + uris.get(uris.size() - 1)
+                    + "')?";
+        }
+        if(!confirm(shell, question, force)) {
+            return -1;
+        }
+        Transaction transaction = shell.getTransaction();
+        if(transaction != null) {
+            StringBuffer list = new StringBuffer();
+            for(Iterator i = uris.iterator(); i.hasNext();) {
+                list.append(Strings.quote((String) i.next()));
+                list.append(i.hasNext() ? ", " : "");
+            }
+            transaction.add("let $found := for $u in (" + list + ") "
+                    + "where exists(doc($u)) return $u "
+                    + "return (for $u in $found return xdmp:document-delete($u), "
+                    + "concat(xs:string(count($found)), \" document(s) removed.\"))");
+            return uris.size();
+        }
+        AdhocQuery request = session.newAdhocQuery(DELETE);
+        UriSequence.bind(request, uris);
+        try {
+            ResultSequence rs = session.submitRequest(request);
+            try {
+                return Long.parseLong(rs.asString());
+            } finally {
+                rs.close();
+            }
+        } catch(RequestException e) {
+            shell.outputException(e);
+            return 0;
+        }
+    }
+
+    /**
+     * Ask the user to confirm a delete unless <code>force</code> is set.
+     */
+    private boolean confirm(Shell shell, String question, boolean force) {
+        if(force) {
+            return true;
+        }
+        if(shell.getConsole() == null) {
+            // piped or embedded, the input belongs to the statements
+            shell.outputError("No console to confirm with, use -f to remove without asking.");
+            return false;
+        }
+        String key = "n";
+        try {
+            key = shell.getConsole().readLine(question + " (N|y) ");
+        } catch(IOException e) {
+            shell.outputLine("Failed to read char from console");
+            shell.outputException(e);
+        }
+        return key != null && key.equalsIgnoreCase("y");
+    }
+
+    /**
+     * Remove a whole directory or collection with one server side call.
+     */
+    private void removeAll(Shell shell, String query, String uri,
+            String question, boolean force) {
+        if(!confirm(shell, question, force)) {
+            shell.outputLine("");
+            return;
+        }
+        Transaction transaction = shell.getTransaction();
+        if(transaction != null) {
+            transaction.add("let $uri := " + Strings.quote(uri) + " "
+                    + query.substring(URI_VARIABLE.length()));
+            shell.outputLine("Buffered (" + transaction.size()
+                    + " statement(s) to commit).");
+            return;
+        }
+        Session session = shell.getContentSource().newSession();
+        AdhocQuery request = session.newAdhocQuery(query);
+        request.setNewStringVariable("uri", uri);
+        try {
+            shell.outputResultSequence(session.submitRequest(request));
+        } catch(RequestException e) {
+            shell.outputException(e);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Remove every document matching <code>xpath</code>. The matching uri's
+     * are read a page at a time from a single point in time and spooled to a
+     * temporary file, then deleted in batches of <code>batch</code> uri's on
+     * <code>threads</code> worker threads. Every batch is its own
+     * transaction so a failure only rolls back that batch.
+     */
+    private void removeMatching(Shell shell, String xpath, boolean force,
+            int threads, int batch) {
+        File spool = null;
+        try {
+            spool = File.createTempFile("cqsh-rm", ".txt");
+            spool.deleteOnExit();
+            long total;
+            if(ForestPartitioner.isEnabled(shell)) {
+                try {
+                    total = listMatchingByForest(shell, xpath, spool);
+                } catch(Exception e) {
+                    shell.outputError("Can't split '" + xpath
+                            + "' by forest, listing it in one pass: "
+                            + e.getMessage());
+                    total = listMatching(shell, xpath, spool);
+                }
+            } else {
+                total = listMatching(shell, xpath, spool);
+            }
+            if(total == 0) {
+                shell.outputLine("No documents match '" + xpath + "'.");
+                return;
+            }
+            if(!confirm(shell, "remove " + total + " documents matching '"
+                    + xpath + "'?", force)) {
+                shell.outputLine("");
+                return;
+            }
+            deleteAll(shell, spool, threads, batch);
+        } catch(RequestException e) {
+            shell.outputException(e);
+        } catch(IOException e) {
+            shell.outputError("Failed to spool uri's: " + e.getMessage());
+        } catch(InterruptedException e) {
+            shell.outputError("Interrupted.");
+        } finally {
+            if(spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    private long listMatching(Shell shell, String xpath, File spool)
+            throws RequestException, IOException {
+        int pageSize = shell.getSettings().getPageSize();
+        Session session = shell.getContentSource().newSession();
+        QueryPager pager = new QueryPager(session, xpath, pageSize);
+        Progress progress = new Progress(shell, "documents found");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(spool));
+            List uris = pager.nextPage();
+            while(!uris.isEmpty()) {
+                for(Iterator i = uris.iterator(); i.hasNext();) {
+                    writer.write((String) i.next());
+                    writer.newLine();
+                }
+                progress.add(uris.size());
+                uris = pager.nextPage();
+            }
+        } finally {
+            if(writer != null) {
+                writer.close();
+            }
+            session.close();
+        }
+        progress.done();
+        return progress.getCount();
+    }
+
+    /**
+     * List the uri's matching <code>xpath</code> in every forest at the
+     * same time, all at one point in time. The xpath must be searchable.
+     */
+    private long listMatchingByForest(Shell shell, final String xpath,
+            File spool) throws Exception {
+        final int pageSize = shell.getSettings().getPageSize();
+        final Progress progress = new Progress(shell, "documents found");
+        final BufferedWriter writer = new BufferedWriter(new FileWriter(spool));
+        Session session = shell.getContentSource().newSession();
+        final BigInteger timestamp;
+        try {
+            timestamp = session.getCurrentServerPointInTime();
+        } finally {
+            session.close();
+        }
+        try {
+            new ForestPartitioner(shell.getContentSource())
+                    .forEach(new ForestPartitioner.ForestTask() {
+                        public void run(Session session, String forest)
+                                throws Exception {
+                            QueryPager pager = new QueryPager(session, xpath,
+                                    pageSize, forest);
+                            pager.setPointInTime(timestamp);
+                            List uris = pager.nextPage();
+                            while(!uris.isEmpty()) {
+                                synchronized(writer) {
+                                    for(Iterator i = uris.iterator(); i
+                                            .hasNext();) {
+                                        writer.write((String) i.next());
+                                        writer.newLine();
+                                    }
+                                }
+                                progress.add(uris.size());
+                                uris = pager.nextPage();
+                            }
+                        }
+                    });
+        } finally {
+            writer.close();
+        }
+        progress.done();
+        return progress.getCount();
+    }
+
+    private void deleteAll(Shell shell, File spool, int threads, int batch)
+            throws IOException, InterruptedException {
+        final ContentSource contentSource = shell.getContentSource();
+        final Progress progress = new Progress(shell, "documents removed");
+        WorkQueue queue = new WorkQueue(threads);
+        BufferedReader reader = new BufferedReader(new FileReader(spool));
+        try {
+            List uris = new ArrayList();
+            String uri;
+            while((uri = reader.readLine()) != null) {
+                uris.add(uri);
+                if(uris.size() >= batch) {
+                    queue.submit(new DeleteTask(contentSource, uris, progress));
+                    uris = new ArrayList();
+                }
+            }
+            if(!uris.isEmpty()) {
+                queue.submit(new DeleteTask(contentSource, uris, progress));
+            }
+        } finally {
+            reader.close();
+            queue.finish();
+        }
+        progress.done();
+        List errors = queue.getErrors();
+        if(!errors.isEmpty()) {
+            shell.outputLine(errors.size()
+                    + " batch(es) failed. Run the command again to retry. First error:");
+            shell.outputException((Exception) errors.get(0));
+        }
+    }
+
+    /**
+     * Deletes one batch of uri's in its own transaction.
+     */
+    static class DeleteTask implements WorkQueue.Task {
+        private ContentSource contentSource;
+        private List uris;
+        private Progress progress;
+
+        public DeleteTask(ContentSource contentSource, List uris,
+                Progress progress) {
+            this.contentSource = contentSource;
+            this.uris = uris;
+            this.progress = progress;
+        }
+
+        public void run() throws Exception {
+            Session session = contentSource.newSession();
+            try {
+                AdhocQuery request = session.newAdhocQuery(DELETE);
+                UriSequence.bind(request, uris);
+                ResultSequence rs = session.submitRequest(request);
+                try {
+                    progress.add(Long.parseLong(rs.asString()));
+                } finally {
+                    rs.close();
+                }
+            } catch(RequestException e) {
+                progress.fail(uris.size());
+                throw e;
+            } finally {
+                session.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.Transaction;
+
+public class rollback implements Command {
+
+    public String getName() {
+        return "rollback";
+    }
+
+    public String getHelp() {
+        StringBuffer help = new StringBuffer();
+        help.append("usage: rollback" + Environment.NEWLINE);
+        help.append("Discard the statements buffered since begin. See help begin."
+                + Environment.NEWLINE);
+        return help.toString();
+    }
+
+    public void execute(Environment env, String arg) {
+        Transaction transaction = (env instanceof Shell ? ((Shell) env)
+                .getTransaction() : null);
+        if(transaction == null) {
+            env.outputLine("No transaction. See help begin.");
+            return;
+        }
+        ((Shell) env).setTransaction(null);
+        env.outputLine("Discarded " + transaction.size() + " statement(s).");
+    }
+}
@@ -39,7 +39,7 @@ public class set implements Command {
                 name = name.replaceAll("\\s+$", "");
                 value = value.replaceAll("^\\s+", "");
                 value = value.replaceAll("\\s+$", "");
-                env.getProperties().setProperty(name, value);
+                env.setProperty(name, value);
             } else {
                 env.outputLine("Nothing to set. Try: set name=value");
             }
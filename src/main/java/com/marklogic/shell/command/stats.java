@@ -0,0 +1,130 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.util.Iterator;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Metrics;
+
+public class stats implements Command {
+    private Options options = new Options();
+
+    public stats() {
+        Option reset = OptionBuilder.withLongOpt("reset").withDescription(
+                "Clear all counters and timers").create("r");
+        Option json = OptionBuilder.withLongOpt("json").withDescription(
+                "Print the metrics as JSON").create("j");
+        options.addOption(reset);
+        options.addOption(json);
+    }
+
+    public String getName() {
+        return "stats";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: stats [options]" + Environment.NEWLINE);
+        buffer.append("Display counters and request latencies recorded since the shell started or"
+                + Environment.NEWLINE);
+        buffer.append("the last reset. Times are in milliseconds. Set 'stats-file' to write the"
+                + Environment.NEWLINE);
+        buffer.append("metrics as JSON on exit and 'stats-jmx=true' to publish them over JMX."
+                + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        String[] tokens = new String[0];
+        if(commandline != null && commandline.trim().length() > 0) {
+            tokens = commandline.trim().split("\\s+");
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, tokens);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+
+        Metrics metrics = Metrics.getInstance();
+        if(cmd.hasOption("j")) {
+            env.outputLine(metrics.getJson());
+        } else if(!cmd.hasOption("r")) {
+            print(env, metrics);
+        }
+        if(cmd.hasOption("r")) {
+            metrics.reset();
+            env.outputLine("Stats reset.");
+        }
+    }
+
+    private void print(Environment env, Metrics metrics) {
+        DecimalFormat format = new DecimalFormat("0.00");
+        env.outputLine(pad("timer", -24) + pad("count", 10) + pad("mean", 10)
+                + pad("p50", 10) + pad("p95", 10) + pad("p99", 10)
+                + pad("max", 10));
+        for(Iterator i = metrics.getTimerNames().iterator(); i.hasNext();) {
+            String name = (String) i.next();
+            Metrics.Timer timer = metrics.getTimer(name);
+            env.outputLine(pad(name, -24)
+                    + pad(String.valueOf(timer.getCount()), 10)
+                    + pad(format.format(timer.getMean()), 10)
+                    + pad(format.format(timer.getPercentile(0.5)), 10)
+                    + pad(format.format(timer.getPercentile(0.95)), 10)
+                    + pad(format.format(timer.getPercentile(0.99)), 10)
+                    + pad(format.format(timer.getMax()), 10));
+        }
+        env.outputLine("");
+        env.outputLine(pad("counter", -24) + pad("value", 10));
+        for(Iterator i = metrics.getCounterNames().iterator(); i.hasNext();) {
+            String name = (String) i.next();
+            env.outputLine(pad(name, -24)
+                    + pad(String.valueOf(metrics.getCounter(name)), 10));
+        }
+    }
+
+    /**
+     * Pad <code>s</code> to <code>width</code> characters, on the left
+     * for a positive width and on the right for a negative width.
+     */
+    private String pad(String s, int width) {
+        StringBuffer buf = new StringBuffer();
+        for(int i = s.length(); i < Math.abs(width); i++) {
+            buf.append(' ');
+        }
+        return (width < 0 ? s + buf : buf + s);
+    }
+}
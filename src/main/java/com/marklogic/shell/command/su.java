@@ -16,8 +16,12 @@
 package com.marklogic.shell.command;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.marklogic.shell.Environment;
+import com.marklogic.shell.RoleCache;
+import com.marklogic.shell.Settings;
 import com.marklogic.shell.Shell;
 import com.marklogic.shell.ShellException;
 
@@ -54,13 +58,15 @@ public class su implements Command {
                             .outputLine("Failed to switch user. Error reading password.");
                 } else {
                     try {
-                        shell.checkConnection(user, password, shell
-                                .getProperties().getString("host"), shell
-                                .getProperties().getInt("port",
-                                        Shell.DEFAULT_PORT));
+                        Settings settings = shell.getSettings();
+                        shell.checkConnection(user, password, settings
+                                .getHost(), settings.getPort());
 
-                        shell.getProperties().setProperty("user", user);
-                        shell.getProperties().setProperty("password", password);
+                        Map properties = new HashMap();
+                        properties.put("user", user);
+                        properties.put("password", password);
+                        shell.setProperties(properties);
+                        RoleCache.invalidateAll();
                     } catch(ShellException e) {
                         shell.outputLine("Failed to switch to user: " + user);
                         shell.outputException(e);
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Settings;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.Strings;
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+public class top implements Command {
+    /**
+     * Default number of seconds between samples
+     */
+    public static final int DEFAULT_DELAY = 2;
+
+    private static final String ESC = "\u001b[";
+
+    /**
+     * Fetches the status of every host, app server and forest in one request.
+     * Each line is a tab separated record: N (server time), H (host), S (app
+     * server), R (request) or F (forest).
+     */
+    static final String STATUS = "declare namespace hs = \"http://marklogic.com/xdmp/status/host\" "
+            + "declare namespace ss = \"http://marklogic.com/xdmp/status/server\" "
+            + "declare namespace fs = \"http://marklogic.com/xdmp/status/forest\" "
+            + "define variable $t as xs:string { codepoints-to-string(9) } "
+            + "define function local:clean($s as item()*) as xs:string { "
+            + "replace(string($s[1]), \"\\s+\", \" \") } "
+            + "(string-join((\"N\", string(current-dateTime())), $t), "
+            + "for $h in xdmp:hosts() "
+            + "let $s := xdmp:host-status($h) "
+            + "return (string-join((\"H\", local:clean($s/hs:host-name), "
+            + "local:clean($s/hs:total-cpu-stat-user), local:clean($s/hs:total-cpu-stat-system), "
+            + "local:clean($s/hs:memory-process-rss)), $t), "
+            + "for $srv in xdmp:servers() "
+            + "let $ss := xdmp:server-status($h, $srv) "
+            + "return (string-join((\"S\", local:clean($s/hs:host-name), local:clean($ss/ss:server-name), "
+            + "local:clean($ss/ss:expanded-tree-cache-hits), local:clean($ss/ss:expanded-tree-cache-misses), "
+            + "local:clean($ss/ss:request-count)), $t), "
+            + "for $r in $ss/ss:request-statuses/ss:request-status "
+            + "return string-join((\"R\", local:clean($s/hs:host-name), local:clean($ss/ss:server-name), "
+            + "local:clean($r/ss:request-id), local:clean($r/ss:user), local:clean($r/ss:start-time), "
+            + "local:clean(($r/ss:request-text, $r/ss:uri))), $t))), "
+            + "for $f in xdmp:forests() "
+            + "let $s := xdmp:forest-status($f) "
+            + "return string-join((\"F\", local:clean($s/fs:forest-name), local:clean($s/fs:state), "
+            + "string(count($s/fs:merges/fs:merge)), local:clean($s/fs:reindexing), "
+            + "local:clean($s/fs:list-cache-hits), local:clean($s/fs:list-cache-misses)), $t))";
+
+    private Options options = new Options();
+
+    public top() {
+        Option delay = OptionBuilder.withLongOpt("delay").hasArg()
+                .withDescription(
+                        "Seconds between updates (default " + DEFAULT_DELAY
+                                + ")").create("d");
+        Option iterations = OptionBuilder.withLongOpt("iterations").hasArg()
+                .withDescription("Exit after this many updates").create("n");
+        Option batch = OptionBuilder.withLongOpt("batch").withDescription(
+                "Print each update instead of redrawing the screen").create(
+                "b");
+        options.addOption(delay);
+        options.addOption(iterations);
+        options.addOption(batch);
+    }
+
+    public String getName() {
+        return "top";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: top [options]" + Environment.NEWLINE);
+        buffer.append("Display server activity, refreshed every few seconds. Shows the cpu and memory"
+                + Environment.NEWLINE);
+        buffer.append("of each host, requests per second and cache hit ratios of each app server,"
+                + Environment.NEWLINE);
+        buffer.append("merge and reindex activity of each forest and the running requests, longest"
+                + Environment.NEWLINE);
+        buffer.append("running first. Rates and ratios are for the time since the previous update,"
+                + Environment.NEWLINE);
+        buffer.append("taken from the cumulative counters of each app server."
+                + Environment.NEWLINE);
+        buffer.append("Press 'q' to quit or space to update now." + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        String[] tokens = new String[0];
+        if(commandline != null && commandline.trim().length() > 0) {
+            tokens = commandline.trim().split("\\s+");
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, tokens);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+
+        int delay = DEFAULT_DELAY;
+        int iterations = 0;
+        try {
+            if(cmd.hasOption("d")) {
+                delay = Integer.parseInt(cmd.getOptionValue("d"));
+            }
+            if(cmd.hasOption("n")) {
+                iterations = Integer.parseInt(cmd.getOptionValue("n"));
+            }
+        } catch(NumberFormatException e) {
+            env.outputError("Invalid number: " + e.getMessage());
+            return;
+        }
+
+        jline.ConsoleReader console = null;
+        if(env instanceof Shell) {
+            console = ((Shell) env).getConsole();
+        }
+        Screen screen = null;
+        if(!cmd.hasOption("b") && console != null) {
+            screen = new Screen(env, console);
+        }
+
+        Settings settings = env.getSettings();
+        String title = "cqsh top - " + settings.getHost() + ":"
+                + settings.getPort();
+        Session session = env.getContentSource().newSession();
+        Sample last = null;
+        try {
+            for(int n = 1; iterations == 0 || n <= iterations; n++) {
+                Sample sample = Sample.fetch(session);
+                if(screen != null) {
+                    screen.draw(format(title, sample, last, screen.width,
+                            screen.height));
+                } else {
+                    List lines = format(title, sample, last, 0, 0);
+                    for(Iterator i = lines.iterator(); i.hasNext();) {
+                        env.outputLine((String) i.next());
+                    }
+                    env.outputLine("");
+                }
+                last = sample;
+                if(iterations != 0 && n == iterations) {
+                    break;
+                }
+                if(!pause(delay, console)) {
+                    break;
+                }
+            }
+        } catch(RequestException e) {
+            if(screen != null) {
+                screen.close();
+                screen = null;
+            }
+            env.outputException(e);
+        } finally {
+            if(screen != null) {
+                screen.close();
+            }
+        }
+    }
+
+    /**
+     * Wait <code>delay</code> seconds or until a key is pressed. Returns
+     * false if the user wants to quit.
+     */
+    private boolean pause(int delay, jline.ConsoleReader console) {
+        long end = System.currentTimeMillis() + delay * 1000L;
+        try {
+            InputStream in = (console == null ? null : console.getInput());
+            while(System.currentTimeMillis() < end) {
+                if(in != null && in.available() > 0) {
+                    int key = in.read();
+                    if(key == 'q' || key == 'Q') {
+                        return false;
+                    } else if(key == ' ') {
+                        return true;
+                    }
+                }
+                Thread.sleep(Math.min(100, delay * 1000L));
+            }
+        } catch(IOException e) {
+            return false;
+        } catch(InterruptedException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The lines of the display. A <code>width</code> or
+     * <code>height</code> of 0 means no limit.
+     */
+    List format(String title, Sample sample, Sample last, int width,
+            int height) {
+        List lines = new ArrayList();
+        DecimalFormat format = new DecimalFormat("0.0");
+        double seconds = (last == null ? 0 : (sample.time - last.time) / 1000.0);
+        lines.add(title + "  "
+                + new SimpleDateFormat("HH:mm:ss").format(new Date(sample.time))
+                + "  " + sample.requests.size() + " running");
+        lines.add("");
+
+        lines.add(Strings.row(new String[] { "host", "cpu%", "rss MB" },
+                new int[] { -32, 8, 10 }));
+        for(Iterator i = sample.hosts.iterator(); i.hasNext();) {
+            String[] h = (String[]) i.next();
+            double cpu = number(h[2]) + number(h[3]);
+            lines.add(Strings.row(new String[] { h[1],
+                    format.format(cpu), h[4] }, new int[] { -32, 8, 10 }));
+        }
+        lines.add("");
+
+        lines.add(Strings.row(new String[] { "server", "host", "running",
+                "req/s", "tree hit%" }, new int[] { -20, -24, 8, 8, 10 }));
+        for(Iterator i = sample.servers.iterator(); i.hasNext();) {
+            String[] s = (String[]) i.next();
+            String key = s[1] + "\t" + s[2];
+            String rate = "-";
+            String hits = "-";
+            String[] prev = (last == null ? null : (String[]) last.serverIndex
+                    .get(key));
+            if(prev != null && seconds > 0) {
+                rate = rate(s, prev, seconds);
+                hits = ratio(s[3], s[4], prev[3], prev[4]);
+            }
+            lines.add(Strings.row(new String[] { s[2], s[1],
+                    String.valueOf(sample.running(key)), rate, hits },
+                    new int[] { -20, -24, 8, 8, 10 }));
+        }
+        lines.add("");
+
+        lines.add(Strings.row(new String[] { "forest", "state", "merges",
+                "reindex", "list hit%" }, new int[] { -24, -12, 8, 8, 10 }));
+        for(Iterator i = sample.forests.iterator(); i.hasNext();) {
+            String[] f = (String[]) i.next();
+            String hits = "-";
+            if(last != null) {
+                String[] prev = (String[]) last.forestIndex.get(f[1]);
+                if(prev != null) {
+                    hits = ratio(f[5], f[6], prev[5], prev[6]);
+                }
+            }
+            lines.add(Strings.row(new String[] { f[1], f[2], f[3],
+                    "true".equals(f[4]) ? "yes" : "no", hits }, new int[] {
+                    -24, -12, 8, 8, 10 }));
+        }
+        lines.add("");
+
+        lines.add(Strings.row(new String[] { "elapsed", "id", "server",
+                "user", "query" }, new int[] { 8, -22, -16, -10, 0 }));
+        for(Iterator i = sample.requests.iterator(); i.hasNext();) {
+            if(height > 0 && lines.size() >= height - 1) {
+                break;
+            }
+            String[] r = (String[]) i.next();
+            lines.add(Strings.row(new String[] {
+                    format.format(sample.elapsed(r)), r[3], r[2], r[4], r[6] },
+                    new int[] { 8, -22, -16, -10, 0 }));
+        }
+
+        if(width > 0) {
+            for(int i = 0; i < lines.size(); i++) {
+                String line = (String) lines.get(i);
+                if(line.length() >= width) {
+                    lines.set(i, line.substring(0, width - 1));
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Requests per second handled by an app server between two samples of
+     * its cumulative request count.
+     */
+    private static String rate(String[] server, String[] last, double seconds) {
+        if(server.length < 6 || last.length < 6
+                || server[5].length() == 0 || last[5].length() == 0) {
+            return "-";
+        }
+        double requests = number(server[5]) - number(last[5]);
+        if(requests < 0) {
+            // the server restarted
+            return "-";
+        }
+        return new DecimalFormat("0.0").format(requests / seconds);
+    }
+
+    /**
+     * Hit ratio between two samples of cumulative hit and miss counters.
+     */
+    private static String ratio(String hits, String misses, String lastHits,
+            String lastMisses) {
+        double h = number(hits) - number(lastHits);
+        double m = number(misses) - number(lastMisses);
+        if(h + m <= 0) {
+            return "-";
+        }
+        return new DecimalFormat("0.0").format(100 * h / (h + m));
+    }
+
+    private static double number(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * One status sample of the cluster.
+     */
+    static class Sample {
+        private static DatatypeFactory datatypes;
+
+        long time;
+        List hosts = new ArrayList();
+        List servers = new ArrayList();
+        List forests = new ArrayList();
+        List requests = new ArrayList();
+        Map serverIndex = new HashMap();
+        Map forestIndex = new HashMap();
+
+        static Sample fetch(Session session) throws RequestException {
+            AdhocQuery request = session.newAdhocQuery(STATUS);
+            ResultSequence rs = session.submitRequest(request);
+            String[] lines = rs.asStrings();
+            rs.close();
+            return parse(lines);
+        }
+
+        static Sample parse(String[] lines) {
+            final Sample sample = new Sample();
+            sample.time = System.currentTimeMillis();
+            for(int i = 0; i < lines.length; i++) {
+                String[] record = lines[i].split("\t", -1);
+                String type = record[0];
+                if("N".equals(type) && record.length >= 2) {
+                    sample.time = parseTime(record[1], sample.time);
+                } else if("H".equals(type) && record.length >= 5) {
+                    sample.hosts.add(record);
+                } else if("S".equals(type) && record.length >= 5) {
+                    sample.servers.add(record);
+                    sample.serverIndex.put(record[1] + "\t" + record[2],
+                            record);
+                } else if("R".equals(type) && record.length >= 7) {
+                    sample.requests.add(record);
+                } else if("F".equals(type) && record.length >= 7) {
+                    sample.forests.add(record);
+                    sample.forestIndex.put(record[1], record);
+                }
+            }
+            Collections.sort(sample.requests, new Comparator() {
+                public int compare(Object a, Object b) {
+                    double diff = sample.elapsed((String[]) b)
+                            - sample.elapsed((String[]) a);
+                    return (diff > 0 ? 1 : (diff < 0 ? -1 : 0));
+                }
+            });
+            return sample;
+        }
+
+        /**
+         * Seconds a request has been running at the time of the sample.
+         */
+        double elapsed(String[] request) {
+            long start = parseTime(request[5], time);
+            return Math.max(0, (time - start) / 1000.0);
+        }
+
+        /**
+         * Requests running on an app server.
+         */
+        int running(String key) {
+            int count = 0;
+            for(Iterator i = requests.iterator(); i.hasNext();) {
+                String[] r = (String[]) i.next();
+                if(key.equals(r[1] + "\t" + r[2])) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static long parseTime(String dateTime, long defaultTime) {
+            try {
+                synchronized(Sample.class) {
+                    if(datatypes == null) {
+                        datatypes = DatatypeFactory.newInstance();
+                    }
+                }
+                return datatypes.newXMLGregorianCalendar(dateTime)
+                        .toGregorianCalendar().getTimeInMillis();
+            } catch(DatatypeConfigurationException e) {
+                return defaultTime;
+            } catch(IllegalArgumentException e) {
+                return defaultTime;
+            }
+        }
+    }
+
+    /**
+     * Full screen display that only rewrites the rows that changed since
+     * the previous update.
+     */
+    private static class Screen {
+        private Environment env;
+        private List last = null;
+        int width;
+        int height;
+
+        public Screen(Environment env, jline.ConsoleReader console) {
+            this.env = env;
+            this.width = console.getTermwidth();
+            this.height = console.getTermheight();
+        }
+
+        public void draw(List lines) {
+            StringBuffer buf = new StringBuffer();
+            if(last == null) {
+                buf.append(ESC + "?25l" + ESC + "2J");
+            }
+            int rows = Math.max(lines.size(), last == null ? 0 : last.size());
+            for(int i = 0; i < rows; i++) {
+                String line = (i < lines.size() ? (String) lines.get(i) : "");
+                String previous = (last != null && i < last.size() ? (String) last
+                        .get(i)
+                        : null);
+                if(!line.equals(previous)) {
+                    buf.append(ESC + (i + 1) + ";1H" + line + ESC + "K");
+                }
+            }
+            env.output(buf.toString());
+            last = lines;
+        }
+
+        public void close() {
+            int row = (last == null ? 1 : last.size() + 1);
+            env.output(ESC + row + ";1H" + ESC + "?25h");
+            env.outputLine("");
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell.command;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.marklogic.shell.Environment;
+import com.marklogic.shell.Metrics;
+import com.marklogic.shell.Pager;
+import com.marklogic.shell.Progress;
+import com.marklogic.shell.QueryPager;
+import com.marklogic.shell.Shell;
+import com.marklogic.shell.UriSequence;
+import com.marklogic.shell.WorkQueue;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
+
+public class transform implements Command {
+    /**
+     * Default number of uri's per request
+     */
+    public static final int DEFAULT_BATCH = 100;
+
+    /**
+     * Default number of times a failed batch is retried
+     */
+    public static final int DEFAULT_RETRIES = 3;
+
+    private static final long RETRY_DELAY = 1000;
+
+    private Options options = new Options();
+
+    public transform() {
+        Option process = OptionBuilder.withLongOpt("process").hasArg()
+                .withDescription(
+                        "Local file with the xquery to run on each batch, or the path of a module on the server")
+                .create("p");
+        Option input = OptionBuilder.withLongOpt("input").hasArg()
+                .withDescription(
+                        "Read uri's one per line from a file (or - for stdin) instead of a query, for example a failure log")
+                .create("i");
+        Option threads = OptionBuilder.withLongOpt("threads").hasArg()
+                .withDescription(
+                        "Number of batches to run at once (default "
+                                + WorkQueue.DEFAULT_THREADS + ")").create("t");
+        Option batch = OptionBuilder.withLongOpt("batch").hasArg()
+                .withDescription(
+                        "Number of uri's per request (default " + DEFAULT_BATCH
+                                + ")").create("b");
+        Option retries = OptionBuilder.withLongOpt("retries").hasArg()
+                .withDescription(
+                        "Number of times to retry a batch that fails with a retryable or connection error (default "
+                                + DEFAULT_RETRIES + ")").create("r");
+        Option log = OptionBuilder.withLongOpt("log").hasArg()
+                .withDescription(
+                        "Write the uri's of failed batches to a file that can be passed to -i")
+                .create("l");
+        options.addOption(process);
+        options.addOption(input);
+        options.addOption(threads);
+        options.addOption(batch);
+        options.addOption(retries);
+        options.addOption(log);
+    }
+
+    public String getName() {
+        return "transform";
+    }
+
+    public String getHelp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("usage: transform [options] -p process uris-query"
+                + Environment.NEWLINE);
+        buffer.append("Run the process query on every document selected by uris-query. The"
+                + Environment.NEWLINE);
+        buffer.append("selector is paged at a single point in time like rm -x and the uri's are"
+                + Environment.NEWLINE);
+        buffer.append("sent in batches, each batch its own request and transaction, to worker"
+                + Environment.NEWLINE);
+        buffer.append("threads. The process query gets the batch as $uris, one uri per line, and"
+                + Environment.NEWLINE);
+        buffer.append("should start with 'define variable $uris as xs:string external'. For"
+                + Environment.NEWLINE);
+        buffer.append("example, with fix.xqy containing:" + Environment.NEWLINE);
+        buffer.append("    define variable $uris as xs:string external"
+                + Environment.NEWLINE);
+        buffer.append("    for $u in tokenize($uris, \"\\n\")"
+                + Environment.NEWLINE);
+        buffer.append("    return xdmp:document-add-collections($u, \"fixed\")"
+                + Environment.NEWLINE);
+        buffer.append("run:" + Environment.NEWLINE);
+        buffer.append("    transform -p fix.xqy -t 8 -l failed.txt /order[not(@fixed)]"
+                + Environment.NEWLINE);
+        buffer.append("Options: " + Environment.NEWLINE);
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter help = new StringWriter();
+        formatter.printOptions(new PrintWriter(help), 80, options, 4, 8);
+        buffer.append(help.toString());
+        return buffer.toString();
+    }
+
+    public void execute(Environment env, String commandline) {
+        if(commandline == null || commandline.trim().length() == 0) {
+            env.outputLine("Please specify a process query and the documents to transform. See help transform.");
+            return;
+        }
+
+        // find the offset of every token so the selector keeps its
+        // whitespace
+        List tokens = new ArrayList();
+        List offsets = new ArrayList();
+        Matcher m = Pattern.compile("\\S+").matcher(commandline);
+        while(m.find()) {
+            tokens.add(m.group());
+            offsets.add(new Integer(m.start()));
+        }
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, (String[]) tokens
+                    .toArray(new String[tokens.size()]), true);
+        } catch(ParseException e) {
+            env.outputException(e);
+            return;
+        }
+        String selector = null;
+        if(cmd.getArgList().size() > 0) {
+            int first = tokens.size() - cmd.getArgList().size();
+            selector = commandline.substring(
+                    ((Integer) offsets.get(first)).intValue()).trim();
+        }
+        if(!cmd.hasOption("p") || (selector == null && !cmd.hasOption("i"))) {
+            env.outputLine("Please specify a process query and the documents to transform. See help transform.");
+            return;
+        }
+
+        int threads = WorkQueue.DEFAULT_THREADS;
+        int batch = DEFAULT_BATCH;
+        int retries = DEFAULT_RETRIES;
+        try {
+            if(cmd.hasOption("t")) {
+                threads = Integer.parseInt(cmd.getOptionValue("t"));
+            }
+            if(cmd.hasOption("b")) {
+                batch = Integer.parseInt(cmd.getOptionValue("b"));
+            }
+            if(cmd.hasOption("r")) {
+                retries = Integer.parseInt(cmd.getOptionValue("r"));
+            }
+        } catch(NumberFormatException e) {
+            env.outputError("Invalid number: " + e.getMessage());
+            return;
+        }
+        if(batch <= 0 || retries < 0) {
+            env.outputError("The batch size must be positive and the retries not negative.");
+            return;
+        }
+
+        ProcessQuery process;
+        try {
+            process = ProcessQuery.forArgument(resolve(env, cmd
+                    .getOptionValue("p")), cmd.getOptionValue("p"));
+        } catch(IOException e) {
+            env.outputError("Failed to read " + cmd.getOptionValue("p") + ": "
+                    + e.getMessage());
+            return;
+        }
+
+        FailureLog log = null;
+        BufferedReader input = null;
+        String inputName = cmd.getOptionValue("i");
+        try {
+            if(cmd.hasOption("l")) {
+                log = new FailureLog(resolve(env, cmd.getOptionValue("l")));
+            }
+            if("-".equals(inputName)) {
+                input = new BufferedReader(new InputStreamReader(env
+                        .getInputStream()));
+            } else if(inputName != null) {
+                input = new BufferedReader(new FileReader(resolve(env,
+                        inputName)));
+            }
+            run(env, process, selector, input, threads, batch, retries, log);
+        } catch(RequestException e) {
+            env.outputException(e);
+        } catch(IOException e) {
+            env.outputError("Failed to read uri's: " + e.getMessage());
+        } catch(InterruptedException e) {
+            env.outputError("Interrupted.");
+        } finally {
+            if(input != null && !"-".equals(inputName)) {
+                try {
+                    input.close();
+                } catch(IOException ignored) {
+                }
+            }
+            if(log != null) {
+                log.close();
+            }
+        }
+    }
+
+    private void run(Environment env, ProcessQuery process, String selector,
+            BufferedReader input, int threads, int batch, int retries,
+            FailureLog log) throws RequestException, IOException,
+            InterruptedException {
+        ContentSource contentSource = env.getContentSource();
+        Progress progress = new Progress(env, "documents transformed");
+        WorkQueue queue = new WorkQueue(threads);
+        Session session = contentSource.newSession();
+        try {
+            Pager pager = (input != null ? (Pager) new LinePager(input, env
+                    .getSettings().getPageSize()) : new QueryPager(session,
+                    selector, env.getSettings().getPageSize()));
+            List uris = new ArrayList();
+            for(List page = pager.nextPage(); !page.isEmpty(); page = pager
+                    .nextPage()) {
+                for(Iterator i = page.iterator(); i.hasNext();) {
+                    uris.add(i.next());
+                    if(uris.size() >= batch) {
+                        queue.submit(new TransformTask(contentSource, process,
+                                uris, retries, progress, log));
+                        uris = new ArrayList();
+                    }
+                }
+            }
+            if(!uris.isEmpty()) {
+                queue.submit(new TransformTask(contentSource, process, uris,
+                        retries, progress, log));
+            }
+        } finally {
+            session.close();
+            queue.finish();
+        }
+        progress.done();
+        List errors = queue.getErrors();
+        if(!errors.isEmpty()) {
+            env.outputLine(errors.size()
+                    + " batch(es) failed"
+                    + (log != null ? ", their uri's are in " + log.file
+                            : "") + ". First error:");
+            env.outputException((Exception) errors.get(0));
+        }
+    }
+
+    private File resolve(Environment env, String path) {
+        if(env instanceof Shell) {
+            return ((Shell) env).resolveFile(path);
+        }
+        return new File(path);
+    }
+
+    /**
+     * The query run on each batch: the text of a local file or the path of
+     * a module on the server.
+     */
+    static class ProcessQuery {
+        String query;
+        String module;
+
+        static ProcessQuery forArgument(File file, String arg)
+                throws IOException {
+            ProcessQuery process = new ProcessQuery();
+            if(!file.exists() && arg.startsWith("/")) {
+                process.module = arg;
+                return process;
+            }
+            StringBuffer query = new StringBuffer();
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                char[] buf = new char[4096];
+                int n;
+                while((n = reader.read(buf)) != -1) {
+                    query.append(buf, 0, n);
+                }
+            } finally {
+                reader.close();
+            }
+            process.query = query.toString();
+            return process;
+        }
+
+        Request newRequest(Session session) {
+            if(module != null) {
+                return session.newModuleInvoke(module);
+            }
+            return session.newAdhocQuery(query);
+        }
+    }
+
+    /**
+     * Reads uri's one per line, skipping blank lines and '#' comments.
+     */
+    static class LinePager implements Pager {
+        private BufferedReader reader;
+        private int pageSize;
+
+        LinePager(BufferedReader reader, int pageSize) {
+            this.reader = reader;
+            this.pageSize = pageSize;
+        }
+
+        public List nextPage() throws RequestException {
+            List page = new ArrayList();
+            try {
+                String line;
+                while(page.size() < pageSize
+                        && (line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if(line.length() > 0 && !line.startsWith("#")) {
+                        page.add(line);
+                    }
+                }
+            } catch(IOException e) {
+                throw new RequestException(e.getMessage(), null, e);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Uri's of batches that failed after all retries, written as they fail
+     * with the error as a comment.
+     */
+    static class FailureLog {
+        private File file;
+        private BufferedWriter writer;
+
+        FailureLog(File file) throws IOException {
+            this.file = file;
+            writer = new BufferedWriter(new FileWriter(file));
+        }
+
+        synchronized void write(List uris, Exception e) {
+            try {
+                // a message on several lines must not be read back as uri's
+                writer.write("# " + String.valueOf(e.getMessage()).replace(
+                        '\r', ' ').replace('\n', ' '));
+                writer.newLine();
+                for(Iterator i = uris.iterator(); i.hasNext();) {
+                    writer.write((String) i.next());
+                    writer.newLine();
+                }
+                writer.flush();
+            } catch(IOException ignored) {
+            }
+        }
+
+        synchronized void close() {
+            try {
+                writer.close();
+            } catch(IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Runs the process query on one batch of uri's in its own transaction,
+     * retrying errors that may go away.
+     */
+    static class TransformTask implements WorkQueue.Task {
+        private ContentSource contentSource;
+        private ProcessQuery process;
+        private List uris;
+        private int retries;
+        private Progress progress;
+        private FailureLog log;
+
+        public TransformTask(ContentSource contentSource,
+                ProcessQuery process, List uris, int retries,
+                Progress progress, FailureLog log) {
+            this.contentSource = contentSource;
+            this.process = process;
+            this.uris = uris;
+            this.retries = retries;
+            this.progress = progress;
+            this.log = log;
+        }
+
+        public void run() throws Exception {
+            Session session = contentSource.newSession();
+            try {
+                for(int attempt = 0;; attempt++) {
+                    Request request = process.newRequest(session);
+                    UriSequence.bind(request, uris);
+                    try {
+                        session.submitRequest(request).close();
+                        progress.add(uris.size());
+                        return;
+                    } catch(RequestException e) {
+                        boolean retryable = e.isRetryable()
+                                || e instanceof ServerConnectionException;
+                        if(!retryable || attempt >= retries) {
+                            progress.fail(uris.size());
+                            if(log != null) {
+                                log.write(uris, e);
+                            }
+                            throw e;
+                        }
+                        Metrics.getInstance().increment("retries");
+                        Thread.sleep(RETRY_DELAY * (attempt + 1));
+                    }
+                }
+            } finally {
+                session.close();
+            }
+        }
+    }
+}
@@ -23,7 +23,7 @@ import com.marklogic.xcc.exceptions.RequestException;
 public class use implements Command {
 
     public String getName() {
-        return "user";
+        return "use";
     }
 
     public String getHelp() {
@@ -42,7 +42,7 @@ public class use implements Command {
             request.setNewStringVariable("db", arg);
             try {
                 session.submitRequest(request);
-                env.getProperties().setProperty("database", arg);
+                env.setProperty("database", arg);
                 env.outputLine("Database changed.");
             } catch(RequestException e) {
                 env.outputError("Unknown database: " + arg);
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+
+import junit.framework.TestCase;
+
+public class CommandHistoryTest extends TestCase {
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("cqsh", ".history");
+        file.delete();
+    }
+
+    protected void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lock").delete();
+    }
+
+    public void testMultiLineStatements() throws Exception {
+        CommandHistory history = new CommandHistory(file, 10);
+        history.addToHistory("for $i in (1, 2)\nreturn \"a\\b\"");
+        history.addToHistory("ls /");
+        history.close();
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        assertEquals(CommandHistory.HEADER, reader.readLine());
+        reader.close();
+
+        history = new CommandHistory(file, 10);
+        assertEquals(2, history.size());
+        assertEquals("for $i in (1, 2)\nreturn \"a\\b\"", history.get(0));
+        assertEquals("ls /", history.get(1));
+        history.close();
+    }
+
+    public void testLegacyFileIsReadVerbatim() throws Exception {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        writer.println("replace($s, \"\\n\", \"\\\\\")");
+        writer.println("cd c:\\new");
+        writer.close();
+
+        CommandHistory history = new CommandHistory(file, 10);
+        assertEquals(2, history.size());
+        assertEquals("replace($s, \"\\n\", \"\\\\\")", history.get(0));
+        assertEquals("cd c:\\new", history.get(1));
+        history.addToHistory("a\nb");
+        history.close();
+
+        // the file was converted so old and new entries survive a reload
+        history = new CommandHistory(file, 10);
+        assertEquals(3, history.size());
+        assertEquals("cd c:\\new", history.get(1));
+        assertEquals("a\nb", history.get(2));
+        history.close();
+    }
+
+    public void testCompactKeepsHeader() throws Exception {
+        CommandHistory history = new CommandHistory(file, 10);
+        for(int i = 0; i < 5; i++) {
+            history.addToHistory("query " + i);
+        }
+        history.close();
+
+        history = new CommandHistory(file, 3);
+        assertEquals(3, history.size());
+        assertEquals("query 2", history.get(0));
+        history.close();
+        history = new CommandHistory(file, 3);
+        assertEquals("query 2", history.get(0));
+        assertEquals("query 4", history.get(2));
+        assertEquals(1, history.search("query 3", false, 10).size());
+        history.close();
+    }
+
+    public void testAppendsSurviveCompactionByAnotherShell() throws Exception {
+        CommandHistory first = new CommandHistory(file, 10);
+        for(int i = 0; i < 5; i++) {
+            first.addToHistory("query " + i);
+        }
+        // a second shell starts with a smaller history and compacts
+        CommandHistory second = new CommandHistory(file, 3);
+        assertEquals("query 2", second.get(0));
+        first.addToHistory("from first");
+        second.addToHistory("from second");
+        first.close();
+        second.close();
+
+        CommandHistory history = new CommandHistory(file, 10);
+        assertEquals(5, history.size());
+        assertEquals("query 2", history.get(0));
+        assertEquals("from first", history.get(3));
+        assertEquals("from second", history.get(4));
+        history.close();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+}
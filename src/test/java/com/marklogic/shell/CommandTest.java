@@ -0,0 +1,635 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import com.marklogic.shell.command.cp;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+public class CommandTest extends TestCase {
+    private FakeServer server;
+    private ByteArrayOutputStream out;
+    private Shell shell;
+    private File dir;
+
+    protected void setUp() {
+        server = new FakeServer();
+        out = new ByteArrayOutputStream();
+        shell = server.newShell(out);
+    }
+
+    protected void tearDown() {
+        if(dir != null) {
+            File[] files = dir.listFiles();
+            for(int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public void testListDirectory() throws Exception {
+        server.respond("cts:uris", new String[] { "/docs/a.xml",
+                "/docs/b.xml" });
+        shell.runCommand("ls /docs/");
+        String output = out.toString("UTF-8");
+        assertTrue(output.indexOf("/docs/a.xml") != -1);
+        assertTrue(output.indexOf("/docs/b.xml") != -1);
+    }
+
+    public void testListBindsVariables() throws Exception {
+        shell.runCommand("ls /docs/");
+        Map variables = (Map) server.getVariables().get(0);
+        assertEquals("/docs/", variables.get("start"));
+        assertEquals(new Long(shell.getSettings().getPageSize()), variables
+                .get("limit"));
+        assertWellFormed((String) server.getQueries().get(0));
+    }
+
+    public void testListGlobOnServer() throws Exception {
+        server.respond("cts:uris", new String[] { "", "/a.xml", "/d/b.xml" });
+        shell.runCommand("ls *.xml");
+        String output = out.toString("UTF-8");
+        assertTrue(output.indexOf("/d/b.xml") != -1);
+        assertEquals(1, server.getRequestCount());
+        Map variables = (Map) server.getVariables().get(0);
+        assertEquals("^.*\\.xml$", variables.get("pattern"));
+        assertEquals("", variables.get("prefix"));
+    }
+
+    public void testListSubDirectoriesInOneRequest() throws Exception {
+        server.respond("cts:uris", new String[] { "/docs/", "/docs/a/",
+                "/docs/b/", "/docs/c.xml" });
+        shell.runCommand("ls /docs/");
+        String output = out.toString("UTF-8");
+        assertTrue(output.indexOf("/docs/a/") != -1);
+        assertTrue(output.indexOf("/docs/b/") != -1);
+        assertTrue(output.indexOf("/docs/c.xml") != -1);
+        assertEquals(1, server.getRequestCount());
+        Map variables = (Map) server.getVariables().get(0);
+        assertEquals("true", variables.get("directory"));
+    }
+
+    public void testListFailure() throws Exception {
+        server.failNext(1);
+        shell.runCommand("ls /docs/");
+        assertTrue(out.toString("UTF-8").indexOf("Injected failure") != -1);
+        assertEquals(1, server.getFailureCount());
+    }
+
+    public void testStats() throws Exception {
+        Metrics.getInstance().reset();
+        Session session = Metrics.getInstance().wrap(
+                server.getContentSource()).newSession();
+        session.submitRequest(session.newAdhocQuery("1"));
+        shell.runCommand("ls /docs/");
+        shell.runCommand("stats");
+        String output = out.toString("UTF-8");
+        assertTrue(output.indexOf("query.adhoc") != -1);
+        assertTrue(output.indexOf("command.ls") != -1);
+        assertEquals(1, Metrics.getInstance().getCounter("sessions"));
+    }
+
+    public void testStatsCountBytesReceivedAndRetries() throws Exception {
+        Metrics.getInstance().reset();
+        server.respond("words", new String[] { "caf\u00e9", "ab" });
+        Session session = Metrics.getInstance().wrap(
+                server.getContentSource()).newSession();
+        ResultSequence rs = session.submitRequest(session
+                .newAdhocQuery("words"));
+        while(rs.hasNext()) {
+            rs.next();
+        }
+        assertEquals(7, Metrics.getInstance().getCounter("received.bytes"));
+        session.submitRequest(session.newAdhocQuery("words")).asStrings();
+        assertEquals(14, Metrics.getInstance().getCounter("received.bytes"));
+
+        File process = newFile("process.xqy",
+                "define variable $uris as xs:string external ()\n");
+        shell = server.newShell(new ByteArrayInputStream(
+                "/a.xml\n".getBytes("UTF-8")), out);
+        server.failNext(1);
+        shell.runCommand("transform -r 1 -p " + process.getPath() + " -i -");
+        assertEquals(1, Metrics.getInstance().getCounter("retries"));
+    }
+
+    public void testTop() throws Exception {
+        server.respond("xdmp:forest-status", new String[] {
+                "N\t2026-10-19T12:00:10Z",
+                "H\thost1\t10\t5\t512",
+                "S\thost1\tApp-Services\t90\t10\t1000",
+                "R\thost1\tApp-Services\t42\tadmin\t2026-10-19T12:00:00Z\tcount(//x)",
+                "F\tDocuments\topen\t1\tfalse\t10\t0" });
+        shell.runCommand("top -b -n 2 -d 0");
+        String output = out.toString("UTF-8");
+        assertTrue(output.indexOf("host1") != -1);
+        assertTrue(output.indexOf("count(//x)") != -1);
+        assertTrue(output.indexOf("10.0 42") != -1);
+        assertEquals(2, server.getRequestCount());
+        assertWellFormed((String) server.getQueries().get(0));
+    }
+
+    public void testTopRatesFromServerCounters() throws Exception {
+        server.respondOnce("xdmp:forest-status", new String[] {
+                "N\t2026-10-19T12:00:10Z",
+                "S\thost1\tApp-Services\t90\t10\t1000" });
+        // every request finished between the samples, none are running
+        server.respond("xdmp:forest-status", new String[] {
+                "N\t2026-10-19T12:00:12Z",
+                "S\thost1\tApp-Services\t120\t20\t1040" });
+        shell.runCommand("top -b -n 2 -d 0");
+        String output = out.toString("UTF-8");
+        assertTrue(output.indexOf("req/s") != -1);
+        assertTrue(output.indexOf(" 0     20.0       75.0") != -1);
+        assertTrue(((String) server.getQueries().get(0))
+                .indexOf("ss:request-count") != -1);
+    }
+
+    public void testPropertiesFromClientDirectory() throws Exception {
+        File rc = newFile(".cqshrc", "database=Client\nhost=client-host\n");
+        shell.loadProperties(rc.getParentFile());
+        assertEquals("Client", shell.getSettings().getDatabase());
+        assertEquals("client-host", shell.getProperties().getString("host"));
+    }
+
+    public void testExactCountByForestSharesAPointInTime() throws Exception {
+        server.respond("database-forests", new String[] { "1", "2" });
+        server.respond("cts:search", new String[] { "3" });
+        shell.setProperty("forest-parallel", "true");
+        shell.runCommand("count -e /docs/");
+        assertTrue(out.toString("UTF-8").indexOf("6") != -1);
+
+        BigInteger timestamp = null;
+        int counts = 0;
+        for(int i = 0; i < server.getQueries().size(); i++) {
+            String query = (String) server.getQueries().get(i);
+            if(query.indexOf("cts:search") == -1) {
+                continue;
+            }
+            BigInteger t = ((RequestOptions) server.getOptions().get(i))
+                    .getEffectivePointInTime();
+            assertNotNull(t);
+            if(timestamp != null) {
+                assertEquals(timestamp, t);
+            }
+            timestamp = t;
+            counts++;
+        }
+        assertEquals(2, counts);
+    }
+
+    public void testExactCountByForestReportsErrors() throws Exception {
+        server.respond("database-forests", new String[] { "1", "2" });
+        shell.setProperty("forest-parallel", "true");
+        server.failNext(1);
+        shell.runCommand("count -e /docs/");
+        assertEquals(1, server.getRequestCount());
+        assertTrue(out.toString("UTF-8").indexOf("in one pass") == -1);
+    }
+
+    public void testDiskUsageInOtherDatabase() throws Exception {
+        server.respond("xdmp:estimate", new String[] { "7" });
+        shell.runCommand("du -d Other -c docs");
+        shell.runCommand("du -d Other /docs/");
+        shell.setProperty("forest-parallel", "true");
+        server.respond("xdmp:database-forests", new String[] { "1", "2" });
+        shell.runCommand("du -d Other /docs/");
+        assertTrue(out.toString("UTF-8").indexOf("7 docs") != -1);
+        List databases = server.getDatabases();
+        assertTrue(databases.size() > 4);
+        for(int i = 0; i < databases.size(); i++) {
+            assertEquals("Other", databases.get(i));
+        }
+    }
+
+    public void testProcessListQuery() throws Exception {
+        shell.runCommand("ps");
+        assertEquals(1, server.getRequestCount());
+        String query = (String) server.getQueries().get(0);
+        assertWellFormed(query);
+        // only the users running requests are read, not all of them
+        assertTrue(query.indexOf("//sec:user ") == -1);
+        assertTrue(query.indexOf("sec:user[sec:user-id = tokenize($ids") != -1);
+    }
+
+    public void testProcessListNamesUsers() throws Exception {
+        server.respond("server-status", new String[] {
+                "N\t2026-10-19T12:00:10Z",
+                "R\thost1\tApp-Services\t42\t7\t2026-10-19T12:00:00Z\tcount(//x)",
+                "U\t7\twriter" });
+        shell.runCommand("ps -u writer");
+        String output = out.toString("UTF-8");
+        assertTrue(output.indexOf("writer") != -1);
+        assertTrue(output.indexOf("1 request(s).") != -1);
+    }
+
+    public void testRemoveInBatches() throws Exception {
+        server.respond("delete", new String[] { "2" });
+        shell.runCommand("rm -f -b 2 /a.xml /b.xml /c.xml");
+        assertEquals(2, server.getRequestCount());
+    }
+
+    public void testRemoveClosesSessions() throws Exception {
+        server.respond("document-delete", new String[] { "2" });
+        server.respond("cts:uris", new String[] { "", "/a.xml", "/b.xml" });
+        shell.runCommand("rm -f -b 2 /a.xml /b.xml /c.xml");
+        shell.runCommand("rm -f -d /docs/");
+        shell.runCommand("rm -f -b 1 -x //item");
+        shell.setProperty("forest-parallel", "true");
+        server.respond("database-forests", new String[] { "1", "2" });
+        shell.runCommand("rm -f -b 1 -x //item");
+        assertEquals(0, server.getFailureCount());
+        assertTrue(server.getRequestCount() > 8);
+        assertEquals(0, server.getOpenSessions());
+    }
+
+    public void testRemoveReadsShellInput() throws Exception {
+        shell = server.newShell(new ByteArrayInputStream("/a.xml\n/b.xml\n"
+                .getBytes("UTF-8")), out);
+        server.respond("delete", new String[] { "2" });
+        shell.runCommand("rm -f -i -");
+        assertEquals(1, server.getRequestCount());
+        Map variables = (Map) server.getVariables().get(0);
+        assertEquals("/a.xml\n/b.xml", variables.get("uris"));
+    }
+
+    public void testShellsDoNotShareCommands() throws Exception {
+        Shell other = server.newShell(out);
+        assertSame(shell.getCommand("rm"), shell.getCommand("rm"));
+        assertNotSame(shell.getCommand("rm"), other.getCommand("rm"));
+        assertNull(shell.getCommand("nosuchcommand"));
+    }
+
+    public void testSetPropertiesPublishesOneSnapshot() throws Exception {
+        Settings before = shell.getSettings();
+        Map properties = new HashMap();
+        properties.put("user", "alice");
+        properties.put("password", "secret");
+        shell.setProperties(properties);
+        Settings after = shell.getSettings();
+        assertNotSame(before, after);
+        assertEquals("alice", after.getUser());
+        assertEquals("secret", after.getPassword());
+        assertFalse("alice".equals(before.getUser()));
+    }
+
+    public void testCopyBatchesSmallDocuments() throws Exception {
+        RoleCache.invalidateAll();
+        server.respond("eval-in", new String[] { "7", "writer" });
+        server.respond("document-get-quality", new String[] { "/a.xml",
+                "xml", "0", "1", "c1", "1", "update", "7", "<a/>", "/b.xml",
+                "xml", "0", "0", "0", "<b/>", "/big.xml", "xml", "0", "0",
+                "0", FakeServer.xml(cp.BATCH_SIZE + 1) });
+        shell.runCommand("cp -f --to-host backup /a.xml /b.xml /big.xml");
+        assertEquals(Arrays.asList(new String[] { "/a.xml",
+                "/b.xml", "/big.xml" }), server.getInsertedUris());
+        // the read, the role names, one insert for both small documents
+        // and one for the large one
+        assertEquals(4, server.getRequestCount());
+    }
+
+    public void testCaptureAndReplay() throws Exception {
+        File log = File.createTempFile("cqsh", ".capture");
+        log.delete();
+        try {
+            Capture.start(log);
+            Session session = Capture.wrap(server.getContentSource(), "admin",
+                    "Documents").newSession();
+            session.submitRequest(session.newAdhocQuery("count(\n//item)"));
+            session.submitRequest(session.newAdhocQuery("1"));
+            assertEquals(2, Capture.stop().getEntries());
+            // a second capture appends a session of its own
+            Capture.start(log);
+            server.failNext(1);
+            try {
+                session.submitRequest(session.newAdhocQuery("2"));
+                fail();
+            } catch(RequestException expected) {
+            }
+            Capture.stop();
+
+            shell.runCommand("replay -r 0 " + log.getPath());
+            String output = out.toString("UTF-8");
+            assertTrue(output.indexOf("Requests:    3") != -1);
+            assertTrue(output.indexOf("Errors:      0 (1 when captured)") != -1);
+            assertEquals(6, server.getRequestCount());
+            assertEquals(new HashSet(Arrays.asList(new String[] {
+                    "count(\n//item)", "1", "2" })), new HashSet(server
+                    .getQueries().subList(2, 5)));
+        } finally {
+            Capture.stop();
+            log.delete();
+        }
+    }
+
+    public void testReplayRebasesAppendedSessions() throws Exception {
+        File log = File.createTempFile("cqsh", ".capture");
+        try {
+            PrintWriter writer = new PrintWriter(new FileWriter(log));
+            writer.println(Capture.HEADER + "\t2\t2026-10-19T12:00:00+0000");
+            writer.println(Capture.SESSION + "\t2026-10-19T12:00:00+0000");
+            writer.println("Q\t5000000\t100\t1\t\tadmin\t\t1");
+            writer.println("Q\t7000000\t100\t1\t\tadmin\t\t2");
+            writer.println(Capture.SESSION + "\t2026-10-19T13:00:00+0000");
+            writer.println("Q\t0\t100\t-1\t\tadmin\t\t3");
+            writer.close();
+
+            // one request in flight at a time, so the server sees them in
+            // the order they are scheduled
+            shell.runCommand("replay -r 1000 -c 1 " + log.getPath());
+            String output = out.toString("UTF-8");
+            assertTrue(output.indexOf("Requests:    3") != -1);
+            assertTrue(output.indexOf("Errors:      0 (0 when captured)") != -1);
+            assertEquals(Arrays.asList(new String[] { "1", "2", "3" }),
+                    server.getQueries());
+        } finally {
+            log.delete();
+        }
+    }
+
+    public void testReplayKeepsVariableTypes() throws Exception {
+        File log = newFile("typed.capture", Capture.HEADER
+                + "\t2\t2026-10-19T12:00:00+0000\n"
+                + "Q\t0\t100\t1\t\tadmin\tn=xs%3Ainteger=5&"
+                + "d=xs%3Adate=2026-10-19&s=xs%3Astring=a+b\t$n\n");
+        shell.runCommand("replay -r 0 " + log.getPath());
+        Map variables = (Map) server.getVariables().get(0);
+        assertEquals("5", variables.get("n"));
+        assertEquals("2026-10-19", variables.get("d"));
+        assertEquals("a b", variables.get("s"));
+        Map types = (Map) server.getVariableTypes().get(0);
+        assertEquals("xs:integer", types.get("n"));
+        assertEquals("xs:date", types.get("d"));
+        assertEquals("xs:string", types.get("s"));
+    }
+
+    public void testTransaction() throws Exception {
+        shell.runCommand("begin");
+        shell.runCommand("xdmp:document-delete(\"/x.xml\");");
+        shell.runCommand("rm -f /a.xml /b.xml");
+        assertEquals(0, server.getRequestCount());
+        shell.runCommand("commit");
+        assertEquals(1, server.getRequestCount());
+        String query = (String) server.getQueries().get(0);
+        assertTrue(query.indexOf("\"/x.xml\"") != -1);
+        assertTrue(query.indexOf("(\"/a.xml\", \"/b.xml\")") != -1);
+        assertNull(shell.getTransaction());
+    }
+
+    public void testTransformRetries() throws Exception {
+        File uris = File.createTempFile("cqsh", ".txt");
+        File process = File.createTempFile("cqsh", ".xqy");
+        try {
+            PrintWriter writer = new PrintWriter(new FileWriter(uris));
+            for(int i = 0; i < 250; i++) {
+                writer.println("/doc" + i + ".xml");
+            }
+            writer.close();
+            writer = new PrintWriter(new FileWriter(process));
+            writer.println("define variable $uris as xs:string external ()");
+            writer.close();
+
+            server.failNext(1);
+            shell.runCommand("transform -b 100 -r 1 -p " + process.getPath()
+                    + " -i " + uris.getPath());
+            assertEquals(4, server.getRequestCount());
+            assertTrue(out.toString("UTF-8").indexOf(
+                    "250 documents transformed") != -1);
+        } finally {
+            uris.delete();
+            process.delete();
+        }
+    }
+
+    public void testTransformFailureLogKeepsMessageOnOneLine()
+            throws Exception {
+        File process = newFile("process.xqy",
+                "define variable $uris as xs:string external ()\n");
+        File failed = new File(dir, "failed.txt");
+        shell = server.newShell(new ByteArrayInputStream(
+                "/a.xml\n".getBytes("UTF-8")), out);
+        server.failNext(1, "XDMP-UNEXPECTED\n/not/a/uri.xml\r\nin line 2");
+        shell.runCommand("transform -r 0 -p " + process.getPath() + " -l "
+                + failed.getPath() + " -i -");
+
+        BufferedReader reader = new BufferedReader(new FileReader(failed));
+        assertEquals("# XDMP-UNEXPECTED /not/a/uri.xml  in line 2", reader
+                .readLine());
+        assertEquals("/a.xml", reader.readLine());
+        assertNull(reader.readLine());
+        reader.close();
+    }
+
+    public void testTransformReadsShellInput() throws Exception {
+        File process = File.createTempFile("cqsh", ".xqy");
+        try {
+            PrintWriter writer = new PrintWriter(new FileWriter(process));
+            writer.println("define variable $uris as xs:string external ()");
+            writer.close();
+
+            shell = server.newShell(new ByteArrayInputStream(
+                    "/a.xml\n\n/b.xml\n".getBytes("UTF-8")), out);
+            shell.runCommand("transform -p " + process.getPath() + " -i -");
+            assertEquals(1, server.getRequestCount());
+            Map variables = (Map) server.getVariables().get(0);
+            assertEquals("/a.xml\n/b.xml", variables.get("uris"));
+        } finally {
+            process.delete();
+        }
+    }
+
+    public void testLoadKeepsInvalidFilesOutOfTheBatch() throws Exception {
+        File schema = newFile("doc.xsd", "<xs:schema "
+                + "xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n"
+                + "<xs:element name=\"doc\"><xs:complexType><xs:sequence>"
+                + "<xs:element name=\"title\" type=\"xs:string\"/>"
+                + "</xs:sequence></xs:complexType></xs:element>\n"
+                + "</xs:schema>\n");
+        File good = newFile("good.xml", "<doc><title>a</title></doc>\n");
+        File bad = newFile("bad.xml", "<doc>\n  <author/>\n</doc>\n");
+        File rejects = new File(dir, "rejects.txt");
+
+        shell.runCommand("load -T 1 -v " + schema.getPath() + " "
+                + good.getPath() + " " + bad.getPath());
+        assertEquals(Arrays.asList(new String[] { "good.xml" }), server
+                .getInsertedUris());
+        assertEquals(1, server.getRequestCount());
+        assertTrue(out.toString("UTF-8").indexOf(bad.getPath() + ":2:") != -1);
+
+        shell.runCommand("load -T 1 -v " + schema.getPath() + " -r "
+                + rejects.getPath() + " " + bad.getPath());
+        assertEquals(1, server.getRequestCount());
+        BufferedReader reader = new BufferedReader(new FileReader(rejects));
+        String line = reader.readLine();
+        reader.close();
+        String[] fields = line.split("\t");
+        assertEquals(bad.getPath(), fields[0]);
+        assertEquals("2", fields[1]);
+        assertTrue(Integer.parseInt(fields[2]) > 0);
+    }
+
+    public void testLoadBatchBoundaries() throws Exception {
+        shell.setProperty("load-batch-size", "1000");
+        shell.setProperty("load-large-file", "5000");
+        String[] names = new String[] { "a.xml", "b.xml", "c.xml", "d.xml",
+                "e.xml", "big.xml", "f.xml" };
+        int[] sizes = new int[] { 100, 100, 100, 600, 500, 5000, 999 };
+        StringBuffer args = new StringBuffer();
+        for(int i = 0; i < names.length; i++) {
+            args.append(' ').append(newFile(names[i], doc(sizes[i])).getPath());
+        }
+        shell.runCommand("load -T 1 -b 3" + args);
+        assertEquals(Arrays.asList(names), server.getInsertedUris());
+        // three files fill a batch, d and e pass the batch size, big is at
+        // the large file size so it goes on its own and f is what is left
+        assertEquals(4, server.getRequestCount());
+        assertEquals(5000 + 999 + 1400, server.getBytesInserted());
+    }
+
+    public void testLoadRejectsLargeFilesToTransform() throws Exception {
+        shell.setProperty("load-large-file", "5000");
+        File xsl = newFile("copy.xsl", "<xsl:stylesheet version=\"1.0\" "
+                + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                + "<xsl:template match=\"/\"><b><xsl:copy-of select=\".\"/>"
+                + "</b></xsl:template></xsl:stylesheet>");
+        File small = newFile("small.xml", doc(100));
+        File big = newFile("big.xml", doc(5000));
+        shell.runCommand("load -T 1 -s " + xsl.getPath() + " "
+                + small.getPath() + " " + big.getPath());
+        assertEquals(Arrays.asList(new String[] { "small.xml" }), server
+                .getInsertedUris());
+        assertTrue(out.toString("UTF-8").indexOf(
+                big.getPath() + ":-1:-1: Too large to transform") != -1);
+    }
+
+    public void testTransformStageReplacedWhenStylesheetChanges()
+            throws Exception {
+        File xsl = newFile("id.xsl", "<xsl:stylesheet version=\"1.0\" "
+                + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"/>");
+        xsl.setLastModified(1000000000000L);
+        TransformStage stage = TransformStage.forName("id.xsl", xsl, null);
+        assertSame(stage, TransformStage.forName("id.xsl", xsl, null));
+        xsl.setLastModified(1000000060000L);
+        TransformStage changed = TransformStage.forName("id.xsl", xsl, null);
+        assertNotSame(stage, changed);
+        assertSame(changed, TransformStage.forName("id.xsl", xsl, null));
+    }
+
+    public void testFileStatementsKeepTheProlog() throws Exception {
+        File file = newFile("q.xqy", "declare namespace a = \"urn:a\";\n"
+                + "<a:b>x;\n</a:b>;\n\"y;\nz\";\n");
+        shell.run(new String[] { "-u", "u", "-p", "p", "-H", "localhost",
+                "-P", "8000", "-f", file.getPath() });
+        assertEquals(Arrays.asList(new String[] {
+                "declare namespace a = \"urn:a\";\n<a:b>x;\n</a:b>",
+                "declare namespace a = \"urn:a\";\n\"y;\nz\"" }), server
+                .getQueries());
+    }
+
+    /**
+     * An xml document of exactly <code>size</code> bytes.
+     */
+    private static String doc(int size) {
+        StringBuffer buf = new StringBuffer("<a>");
+        while(buf.length() < size - 4) {
+            buf.append('x');
+        }
+        return buf.append("</a>").toString();
+    }
+
+    /**
+     * Write <code>content</code> to a file called <code>name</code> in a
+     * temporary directory that is removed after the test.
+     */
+    private File newFile(String name, String content) throws IOException {
+        if(dir == null) {
+            dir = File.createTempFile("cqsh", ".dir");
+            dir.delete();
+            dir.mkdir();
+        }
+        File file = new File(dir, name);
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        writer.print(content);
+        writer.close();
+        return file;
+    }
+
+    /**
+     * Fail unless the brackets of <code>query</code> balance outside string
+     * literals and every local function it calls is defined with a valid
+     * name.
+     */
+    static void assertWellFormed(String query) {
+        StringBuffer stack = new StringBuffer();
+        char quote = 0;
+        for(int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if(quote != 0) {
+                if(c == quote) {
+                    quote = 0;
+                }
+            } else if(c == '"' || c == '\'') {
+                quote = c;
+            } else if("([{".indexOf(c) != -1) {
+                stack.append(")]}".charAt("([{".indexOf(c)));
+            } else if(")]}".indexOf(c) != -1) {
+                assertTrue("Unexpected " + c + " at " + i + " in " + query,
+                        stack.length() > 0
+                                && stack.charAt(stack.length() - 1) == c);
+                stack.setLength(stack.length() - 1);
+            }
+        }
+        assertEquals("Unclosed string in " + query, 0, quote);
+        assertEquals("Unclosed brackets in " + query, "", stack.toString());
+
+        Set defined = new HashSet();
+        Matcher m = Pattern.compile("define function ([^\\s(]+)\\(")
+                .matcher(query);
+        while(m.find()) {
+            assertTrue("Invalid function name " + m.group(1), m.group(1)
+                    .matches("[A-Za-z_][\\w.-]*:[A-Za-z_][\\w.-]*"));
+            defined.add(m.group(1));
+        }
+        m = Pattern.compile("(?<![\\w:.-])local:[\\w.-]+(?=\\()").matcher(
+                query);
+        while(m.find()) {
+            assertTrue("Undefined function " + m.group(), defined.contains(m
+                    .group()));
+        }
+    }
+}
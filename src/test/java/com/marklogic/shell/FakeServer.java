@@ -0,0 +1,685 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.xml.sax.InputSource;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ModuleInvoke;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultItem;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
+import com.marklogic.xcc.types.XdmElement;
+import com.marklogic.xcc.types.XdmVariable;
+
+/**
+ * An in process stand-in for a Mark Logic server, used to test and benchmark
+ * cqsh without a network or a database. It works at the level of the XCC
+ * interfaces: {@link #getContentSource()} returns a ContentSource whose
+ * sessions answer ad-hoc queries with scripted result sequences and accept
+ * inserts by reading and discarding the content.
+ * 
+ * Queries are matched against the regular expressions given to
+ * {@link #respond(String, String[])} in the order they were added; queries
+ * that match nothing return an empty sequence. Latency, throttling and errors
+ * can be injected to test retry behavior, and counters record what the
+ * server was asked to do, including the variables bound on every query.
+ * 
+ * <pre>
+ * FakeServer server = new FakeServer();
+ * server.respond(&quot;cts:uris&quot;, new String[] { &quot;/a.xml&quot;, &quot;/b.xml&quot; });
+ * server.setLatency(20);
+ * Shell shell = server.newShell(out);
+ * shell.runCommand(&quot;ls /&quot;);
+ * </pre>
+ * 
+ * @author Andrew Bruno <aeb@qnot.org>
+ */
+public class FakeServer {
+    private List responses = new ArrayList();
+    private long latency = 0;
+    private int maxConcurrentRequests = 0;
+    private int failEvery = 0;
+    private int failNext = 0;
+    private String failMessage;
+
+    private int active = 0;
+    private int requestCount = 0;
+    private int failureCount = 0;
+    private int insertCount = 0;
+    private long bytesInserted = 0;
+    private List queries = new ArrayList();
+    private List variables = new ArrayList();
+    private List variableTypes = new ArrayList();
+    private List options = new ArrayList();
+    private List insertedUris = new ArrayList();
+    private List databases = new ArrayList();
+    private int openSessions = 0;
+    private boolean stopped = false;
+
+    /**
+     * Answer queries matching <code>regex</code> with <code>items</code>.
+     * Items that start with '&lt;' are returned as elements.
+     */
+    public synchronized void respond(String regex, String[] items) {
+        responses.add(new Response(regex, items, 0, 0));
+    }
+
+    /**
+     * Answer the next query matching <code>regex</code> with
+     * <code>items</code>, before any other response for it.
+     */
+    public synchronized void respondOnce(String regex, String[] items) {
+        Response response = new Response(regex, items, 0, 0);
+        response.once = true;
+        responses.add(0, response);
+    }
+
+    /**
+     * Answer queries matching <code>regex</code> with <code>count</code>
+     * generated xml items of about <code>itemSize</code> bytes each. Items
+     * are created as the sequence is read so large results do not have to
+     * fit in memory.
+     */
+    public synchronized void respond(String regex, int count, int itemSize) {
+        responses.add(new Response(regex, null, count, itemSize));
+    }
+
+    /**
+     * Remove all scripted responses.
+     */
+    public synchronized void clearResponses() {
+        responses.clear();
+    }
+
+    /**
+     * Fail every request from now on and drop the scripted responses and
+     * everything recorded so far.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        responses.clear();
+        queries.clear();
+        variables.clear();
+        variableTypes.clear();
+        options.clear();
+        insertedUris.clear();
+        databases.clear();
+    }
+
+    /**
+     * Wait <code>millis</code> milliseconds before answering each request.
+     */
+    public synchronized void setLatency(long millis) {
+        this.latency = millis;
+    }
+
+    /**
+     * Reject requests with a ServerConnectionException while more than
+     * <code>max</code> requests are in progress, 0 for no limit.
+     */
+    public synchronized void setMaxConcurrentRequests(int max) {
+        this.maxConcurrentRequests = max;
+    }
+
+    /**
+     * Fail every <code>n</code>th request, 0 to never fail.
+     */
+    public synchronized void setFailEvery(int n) {
+        this.failEvery = n;
+    }
+
+    /**
+     * Fail the next <code>n</code> requests.
+     */
+    public synchronized void failNext(int n) {
+        failNext(n, "Injected failure");
+    }
+
+    /**
+     * Fail the next <code>n</code> requests with <code>message</code>.
+     */
+    public synchronized void failNext(int n, String message) {
+        this.failNext = n;
+        this.failMessage = message;
+    }
+
+    /**
+     * Number of requests received, including inserts and failed requests.
+     */
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Number of requests that were failed or rejected.
+     */
+    public synchronized int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Number of documents inserted.
+     */
+    public synchronized int getInsertCount() {
+        return insertCount;
+    }
+
+    /**
+     * Total size of the documents inserted.
+     */
+    public synchronized long getBytesInserted() {
+        return bytesInserted;
+    }
+
+    /**
+     * The uris of the documents inserted, in order.
+     */
+    public synchronized List getInsertedUris() {
+        return new ArrayList(insertedUris);
+    }
+
+    /**
+     * The text of the queries received, in order.
+     */
+    public synchronized List getQueries() {
+        return new ArrayList(queries);
+    }
+
+    /**
+     * The external variables bound on each query received, in the same
+     * order as {@link #getQueries()}. Each entry maps variable names to
+     * their values: Strings, Longs or whatever object was bound.
+     */
+    public synchronized List getVariables() {
+        return new ArrayList(variables);
+    }
+
+    /**
+     * The types of the variables in {@link #getVariables()}, as maps of
+     * variable names to type names such as xs:integer.
+     */
+    public synchronized List getVariableTypes() {
+        return new ArrayList(variableTypes);
+    }
+
+    /**
+     * Number of sessions opened and not closed yet.
+     */
+    public synchronized int getOpenSessions() {
+        return openSessions;
+    }
+
+    /**
+     * The database named by each session opened, in order. Entries are null
+     * for sessions on the default database.
+     */
+    public synchronized List getDatabases() {
+        return new ArrayList(databases);
+    }
+
+    /**
+     * The current point in time of the server, which moves on with every
+     * request.
+     */
+    public synchronized BigInteger getPointInTime() {
+        return BigInteger.valueOf(requestCount + 1000);
+    }
+
+    /**
+     * The request options of each query received, in the same order as
+     * {@link #getQueries()}. Entries are null for requests without options.
+     */
+    public synchronized List getOptions() {
+        return new ArrayList(options);
+    }
+
+    /**
+     * A content source connected to this server.
+     */
+    public ContentSource getContentSource() {
+        return (ContentSource) newProxy(ContentSource.class,
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if("newSession".equals(method.getName())) {
+                            int n = (args == null ? 0 : args.length);
+                            synchronized(FakeServer.this) {
+                                databases.add(n == 1 || n == 3 ? args[n - 1]
+                                        : null);
+                                openSessions++;
+                            }
+                            return newSession();
+                        }
+                        return defaultValue(method);
+                    }
+                });
+    }
+
+    /**
+     * An embedded shell connected to this server that writes its output to
+     * <code>out</code> and never pauses the output.
+     */
+    public Shell newShell(OutputStream out) {
+        return newShell(new ByteArrayInputStream(new byte[0]), out);
+    }
+
+    /**
+     * An embedded shell connected to this server that reads its input from
+     * <code>in</code>.
+     */
+    public Shell newShell(InputStream in, OutputStream out) {
+        final ContentSource source = getContentSource();
+        Shell shell = new Shell(in, out, out) {
+            public ContentSource getContentSource() {
+                return source;
+            }
+
+            public ContentSource getContentSource(String connection) {
+                return source;
+            }
+        };
+        shell.setEmbedded(true);
+        shell.setProperty("scroll", "0");
+        return shell;
+    }
+
+    private Session newSession() {
+        return (Session) newProxy(Session.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Exception {
+                String name = method.getName();
+                if("newAdhocQuery".equals(name)) {
+                    Request request = newRequest((Session) proxy,
+                            (String) args[0], AdhocQuery.class);
+                    if(args.length > 1) {
+                        request.setOptions((RequestOptions) args[1]);
+                    }
+                    return request;
+                } else if("newModuleInvoke".equals(name)) {
+                    return newRequest((Session) proxy, (String) args[0],
+                            ModuleInvoke.class);
+                } else if("submitRequest".equals(name)) {
+                    return submit((Request) args[0]);
+                } else if("insertContent".equals(name)) {
+                    Object arg = args[0];
+                    insert(arg instanceof Content[] ? (Content[]) arg
+                            : new Content[] { (Content) arg });
+                    return null;
+                } else if("getContentSource".equals(name)) {
+                    return getContentSource();
+                } else if("getCurrentServerPointInTime".equals(name)) {
+                    return getPointInTime();
+                } else if("close".equals(name)) {
+                    synchronized(FakeServer.this) {
+                        openSessions--;
+                    }
+                    return null;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private Request newRequest(final Session session, final String query,
+            Class type) {
+        return (Request) newProxy(type, new RequestHandler(session, query));
+    }
+
+    /**
+     * A request that remembers its variables and options so tests can see
+     * what was sent.
+     */
+    private class RequestHandler implements InvocationHandler {
+        private Session session;
+        private String query;
+        private Map variables = new LinkedHashMap();
+        private Map types = new LinkedHashMap();
+        private RequestOptions options;
+
+        public RequestHandler(Session session, String query) {
+            this.session = session;
+            this.query = query;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if("getQuery".equals(name) || "getModuleUri".equals(name)) {
+                return query;
+            } else if("getSession".equals(name)) {
+                return session;
+            } else if("setNewStringVariable".equals(name)) {
+                variables.put(args[0], args[1]);
+                types.put(args[0], "xs:string");
+                return null;
+            } else if("setNewIntegerVariable".equals(name)) {
+                variables.put(args[0], args[1]);
+                types.put(args[0], "xs:integer");
+                return null;
+            } else if("setNewVariable".equals(name)) {
+                variables.put(args[0], args[args.length - 1]);
+                types.put(args[0], String.valueOf(args[args.length - 2]));
+                return null;
+            } else if("setVariable".equals(name)) {
+                XdmVariable v = (XdmVariable) args[0];
+                String localname = v.getName().getLocalname();
+                variables.put(localname, v.getValue().asString());
+                types.put(localname, String.valueOf(v.getValue()
+                        .getValueType()));
+                return null;
+            } else if("clearVariables".equals(name)) {
+                variables.clear();
+                types.clear();
+                return null;
+            } else if("setOptions".equals(name)) {
+                options = (RequestOptions) args[0];
+                return null;
+            } else if("getOptions".equals(name)) {
+                return options;
+            } else if("getVariables".equals(name)) {
+                return new XdmVariable[0];
+            }
+            return defaultValue(method);
+        }
+    }
+
+    private ResultSequence submit(Request request) throws RequestException {
+        String query = "";
+        if(request instanceof AdhocQuery) {
+            query = ((AdhocQuery) request).getQuery();
+        } else if(request instanceof ModuleInvoke) {
+            // modules are matched by their uri
+            query = ((ModuleInvoke) request).getModuleUri();
+        }
+        Response response = null;
+        begin(request);
+        try {
+            synchronized(this) {
+                queries.add(query);
+                if(Proxy.isProxyClass(request.getClass())
+                        && Proxy.getInvocationHandler(request) instanceof RequestHandler) {
+                    RequestHandler handler = (RequestHandler) Proxy
+                            .getInvocationHandler(request);
+                    variables.add(new LinkedHashMap(handler.variables));
+                    variableTypes.add(new LinkedHashMap(handler.types));
+                    options.add(handler.options);
+                } else {
+                    variables.add(new LinkedHashMap());
+                    variableTypes.add(new LinkedHashMap());
+                    options.add(request.getOptions());
+                }
+                for(Iterator i = responses.iterator(); i.hasNext();) {
+                    Response r = (Response) i.next();
+                    if(r.pattern.matcher(query).find()) {
+                        response = r;
+                        if(r.once) {
+                            i.remove();
+                        }
+                        break;
+                    }
+                }
+            }
+        } finally {
+            end();
+        }
+        if(response == null) {
+            return newResultSequence(new Response(".", new String[0], 0, 0));
+        }
+        return newResultSequence(response);
+    }
+
+    private void insert(Content[] content) throws RequestException,
+            IOException {
+        begin(null);
+        try {
+            for(int i = 0; i < content.length; i++) {
+                long size = drain(content[i].openDataStream());
+                synchronized(this) {
+                    insertCount++;
+                    bytesInserted += size;
+                    insertedUris.add(content[i].getUri());
+                }
+            }
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Count the request, apply latency and throttling and fail it if an
+     * error is due.
+     */
+    private void begin(Request request) throws RequestException {
+        long wait;
+        synchronized(this) {
+            requestCount++;
+            if(stopped) {
+                failureCount++;
+                throw new ServerConnectionException("Server stopped", request);
+            }
+            if(failNext > 0) {
+                failNext--;
+                failureCount++;
+                throw new ServerConnectionException(failMessage, request);
+            }
+            if(failEvery > 0 && requestCount % failEvery == 0) {
+                failureCount++;
+                throw new ServerConnectionException("Injected failure",
+                        request);
+            }
+            if(maxConcurrentRequests > 0 && active >= maxConcurrentRequests) {
+                failureCount++;
+                throw new ServerConnectionException(
+                        "Server busy, too many requests", request);
+            }
+            active++;
+            wait = latency;
+        }
+        if(wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch(InterruptedException e) {
+                end();
+                throw new RequestException("Interrupted", request);
+            }
+        }
+    }
+
+    private synchronized void end() {
+        active--;
+    }
+
+    private ResultSequence newResultSequence(final Response response) {
+        return (ResultSequence) newProxy(ResultSequence.class,
+                new InvocationHandler() {
+                    private int index = 0;
+
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Exception {
+                        String name = method.getName();
+                        if("hasNext".equals(name)) {
+                            return Boolean.valueOf(index < response.size());
+                        } else if("next".equals(name)) {
+                            return newResultItem(response.item(index++));
+                        } else if("size".equals(name)) {
+                            return new Integer(response.size());
+                        } else if("isCached".equals(name)) {
+                            return Boolean.TRUE;
+                        } else if("asStrings".equals(name)) {
+                            String[] items = new String[response.size()];
+                            for(int i = 0; i < items.length; i++) {
+                                items[i] = response.item(i);
+                            }
+                            return items;
+                        } else if("asString".equals(name)) {
+                            StringBuffer buf = new StringBuffer();
+                            for(int i = 0; i < response.size(); i++) {
+                                if(i > 0) {
+                                    buf.append(args == null ? "\n"
+                                            : (String) args[0]);
+                                }
+                                buf.append(response.item(i));
+                            }
+                            return buf.toString();
+                        }
+                        return defaultValue(method);
+                    }
+                });
+    }
+
+    private ResultItem newResultItem(final String text) {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Exception {
+                String name = method.getName();
+                if("asReader".equals(name)) {
+                    return new StringReader(text);
+                } else if("asString".equals(name)) {
+                    return text;
+                } else if("asInputStream".equals(name)) {
+                    return new ByteArrayInputStream(text.getBytes("UTF-8"));
+                } else if("asW3cDocument".equals(name)) {
+                    DocumentBuilderFactory factory = DocumentBuilderFactory
+                            .newInstance();
+                    factory.setNamespaceAware(true);
+                    DocumentBuilder builder = factory.newDocumentBuilder();
+                    return builder.parse(new InputSource(new StringReader(
+                            text)));
+                }
+                return defaultValue(method);
+            }
+        };
+        if(text.startsWith("<")) {
+            return (ResultItem) Proxy.newProxyInstance(getClass()
+                    .getClassLoader(), new Class[] { ResultItem.class,
+                    XdmElement.class }, handler);
+        }
+        return (ResultItem) newProxy(ResultItem.class, handler);
+    }
+
+    /**
+     * An xml document of about <code>size</code> bytes, one element per
+     * line.
+     */
+    public static String xml(int size) {
+        StringBuffer buf = new StringBuffer("<doc>\n");
+        int n = 0;
+        while(buf.length() < size) {
+            buf.append("<line n=\"").append(n++).append(
+                    "\">The quick brown fox jumps over the lazy dog</line>\n");
+        }
+        buf.append("</doc>");
+        return buf.toString();
+    }
+
+    private Object newProxy(Class type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { type }, handler);
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] b = new byte[8 * 1024];
+        long size = 0;
+        try {
+            int n;
+            while((n = in.read(b)) != -1) {
+                size += n;
+            }
+        } finally {
+            in.close();
+        }
+        return size;
+    }
+
+    /**
+     * The zero value of a method's return type: false, 0, an empty array or
+     * null.
+     */
+    private static Object defaultValue(Method method) {
+        Class type = method.getReturnType();
+        if(type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if(type == Integer.TYPE) {
+            return new Integer(0);
+        } else if(type == Long.TYPE) {
+            return new Long(0);
+        } else if(type == Short.TYPE) {
+            return new Short((short) 0);
+        } else if(type == Byte.TYPE) {
+            return new Byte((byte) 0);
+        } else if(type == Character.TYPE) {
+            return new Character((char) 0);
+        } else if(type == Float.TYPE) {
+            return new Float(0);
+        } else if(type == Double.TYPE) {
+            return new Double(0);
+        } else if(type.isArray()) {
+            return Array.newInstance(type.getComponentType(), 0);
+        }
+        return null;
+    }
+
+    private static class Response {
+        private Pattern pattern;
+        private String[] items;
+        private int count;
+        private String item;
+        private boolean once;
+
+        public Response(String regex, String[] items, int count, int itemSize) {
+            this.pattern = Pattern.compile(regex);
+            this.items = items;
+            this.count = count;
+            if(items == null) {
+                item = xml(itemSize);
+            }
+        }
+
+        public int size() {
+            return (items != null ? items.length : count);
+        }
+
+        public String item(int i) {
+            return (items != null ? items[i] : item);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+public class PagerTest extends TestCase {
+    private FakeServer server;
+    private Session session;
+
+    protected void setUp() {
+        server = new FakeServer();
+        session = server.getContentSource().newSession();
+    }
+
+    public void testQueryPagerDropsRepeatsAcrossPages() throws Exception {
+        QueryPager pager = new QueryPager(session, "collection()//item", 2);
+        server.respond("base-uri", new String[] { "/a.xml", "/b.xml" });
+        assertEquals(Arrays.asList(new String[] { "/a.xml", "/b.xml" }),
+                pager.nextPage());
+        server.clearResponses();
+        server.respond("base-uri", new String[] { "/b.xml", "/c.xml" });
+        assertEquals(Arrays.asList(new String[] { "/c.xml" }), pager
+                .nextPage());
+        server.clearResponses();
+        assertTrue(pager.nextPage().isEmpty());
+        assertTrue(pager.nextPage().isEmpty());
+        assertEquals(3, server.getRequestCount());
+        String query = (String) server.getQueries().get(0);
+        assertTrue(query.indexOf("distinct-values") == -1);
+        assertTrue(query.indexOf("$u ne $uris[$i - 1]") != -1);
+    }
+
+    public void testQueryPagerPagesPathsByUri() throws Exception {
+        QueryPager pager = new QueryPager(session, " //item[@old]", 2, "7");
+        server.respond("cts:uris", new String[] { "/b.xml", "/a.xml" });
+        assertEquals(Arrays.asList(new String[] { "/a.xml" }), pager
+                .nextPage());
+        server.clearResponses();
+        server.respond("cts:uris", new String[] { "", "/c.xml" });
+        assertEquals(Arrays.asList(new String[] { "/c.xml" }), pager
+                .nextPage());
+        assertTrue(pager.nextPage().isEmpty());
+        assertEquals(2, server.getRequestCount());
+        assertEquals("", ((Map) server.getVariables().get(0)).get("start"));
+        assertEquals("/b.xml", ((Map) server.getVariables().get(1))
+                .get("start"));
+        String query = (String) server.getQueries().get(0);
+        assertTrue(query.indexOf("exists(doc($u)//item[@old])") != -1);
+        assertTrue(query.indexOf("xs:unsignedLong(\"7\")") != -1);
+        assertTrue(query.indexOf("[$from to $to]") == -1);
+        CommandTest.assertWellFormed(query);
+    }
+
+    public void testGlobReadsTheLexiconAPageAtATime() throws Exception {
+        UriPager pager = UriPager.forArgument(session, "/d/*.xml", 2);
+        server.respond("cts:uris", new String[] { "/d/c.txt", "/d/a.xml" });
+        assertEquals(Arrays.asList(new String[] { "/d/a.xml" }), pager
+                .nextPage());
+        server.clearResponses();
+        server.respond("cts:uris", new String[] { "", "/d/e.xml" });
+        assertEquals(Arrays.asList(new String[] { "/d/e.xml" }), pager
+                .nextPage());
+        assertTrue(pager.nextPage().isEmpty());
+        assertEquals(2, server.getRequestCount());
+        Map variables = (Map) server.getVariables().get(1);
+        assertEquals("/d/c.txt", variables.get("start"));
+        assertEquals("false", variables.get("inclusive"));
+        assertEquals("^/d/.*\\.xml$", variables.get("pattern"));
+        assertEquals("/d/", variables.get("prefix"));
+        assertTrue(((String) server.getQueries().get(0))
+                .indexOf("cts:uri-match") == -1);
+    }
+
+    public void testMergingPagerMergesInOrder() throws Exception {
+        MergingPager pager = new MergingPager(new Pager[] {
+                new StubPager(new String[][] { { "/a", "/c" }, { "/e" } }),
+                new StubPager(new String[][] { { "/b", "/c" },
+                        { "/d", "/f" } }) }, 3);
+        assertEquals(Arrays.asList(new String[] { "/a", "/b", "/c" }), pager
+                .nextPage());
+        assertEquals(Arrays.asList(new String[] { "/d", "/e", "/f" }), pager
+                .nextPage());
+        assertTrue(pager.nextPage().isEmpty());
+        pager.close();
+    }
+
+    public void testMergingPagerWithoutPagers() throws Exception {
+        MergingPager pager = new MergingPager(new Pager[0], 10);
+        assertTrue(pager.nextPage().isEmpty());
+        pager.close();
+    }
+
+    public void testMergingPagerThrowsFailures() throws Exception {
+        MergingPager pager = new MergingPager(new Pager[] {
+                new StubPager(new String[][] { { "/a" } }), new Pager() {
+                    public List nextPage() throws RequestException {
+                        throw new RequestException("Forest offline", null);
+                    }
+                } }, 10);
+        try {
+            pager.nextPage();
+            fail();
+        } catch(RequestException e) {
+            assertEquals("Forest offline", e.getMessage());
+        }
+        pager.close();
+    }
+
+    public void testMergingPagerClosesSessions() throws Exception {
+        final int[] closed = new int[1];
+        Session session = (Session) Proxy.newProxyInstance(getClass()
+                .getClassLoader(), new Class[] { Session.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if("close".equals(method.getName())) {
+                            closed[0]++;
+                        }
+                        return null;
+                    }
+                });
+        MergingPager pager = new MergingPager(new Pager[] { new StubPager(
+                new String[0][]) }, 10, new Session[] { session, session });
+        pager.close();
+        assertEquals(2, closed[0]);
+    }
+
+    public void testForestPagersShareAPointInTime() throws Exception {
+        server.respond("database-forests", new String[] { "1", "2" });
+        server.respond("cts:uris", new String[] { "/a.xml", "/b.xml" });
+        MergingPager pager = new ForestPartitioner(server.getContentSource())
+                .newUriPager("/", 10);
+        assertEquals(Arrays.asList(new String[] { "/a.xml", "/b.xml" }),
+                pager.nextPage());
+        assertTrue(pager.nextPage().isEmpty());
+        pager.close();
+
+        List options = server.getOptions();
+        BigInteger timestamp = null;
+        int pages = 0;
+        for(int i = 0; i < options.size(); i++) {
+            String query = (String) server.getQueries().get(i);
+            if(query.indexOf("cts:uris") == -1) {
+                continue;
+            }
+            BigInteger t = ((RequestOptions) options.get(i))
+                    .getEffectivePointInTime();
+            assertNotNull(t);
+            if(timestamp == null) {
+                timestamp = t;
+            }
+            assertEquals(timestamp, t);
+            pages++;
+        }
+        assertEquals(2, pages);
+    }
+
+    /**
+     * Returns canned pages.
+     */
+    private static class StubPager implements Pager {
+        private String[][] pages;
+        private int next = 0;
+
+        public StubPager(String[][] pages) {
+            this.pages = pages;
+        }
+
+        public List nextPage() {
+            if(next == pages.length) {
+                return new ArrayList();
+            }
+            return new ArrayList(Arrays.asList(pages[next++]));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ShellCompletorTest extends TestCase {
+    private FakeServer server;
+    private Shell shell;
+
+    protected void setUp() {
+        server = new FakeServer();
+        shell = server.newShell(new ByteArrayOutputStream());
+    }
+
+    public void testLongerPrefixUsesCompleteSlice() throws Exception {
+        server.respond("cts:uris", new String[] { "/docs/a.xml",
+                "/docs/b.xml", "/docs/sub/c.xml" });
+        ShellCompletor completor = new ShellCompletor(shell, 1000,
+                ShellCompletor.TTL);
+        assertEquals(Arrays.asList(new String[] { "/docs/a.xml",
+                "/docs/b.xml", "/docs/sub/" }), complete(completor,
+                "ls /docs/"));
+        assertEquals(Arrays.asList(new String[] { "/docs/a.xml" }),
+                complete(completor, "ls /docs/a"));
+        assertEquals(1, uriRequests());
+        Map variables = uriVariables();
+        assertEquals("true", variables.get("directory"));
+        assertEquals("/docs/", variables.get("prefix"));
+    }
+
+    public void testPartialNameListsMatchingChildren() throws Exception {
+        server.respond("cts:uris", new String[] { "/docs/a", "/docs/ab/" });
+        ShellCompletor completor = new ShellCompletor(shell, 1000,
+                ShellCompletor.TTL);
+        assertEquals(Arrays.asList(new String[] { "/docs/a", "/docs/ab/" }),
+                complete(completor, "ls /docs/a"));
+        Map variables = uriVariables();
+        assertEquals("true", variables.get("directory"));
+        assertEquals("/docs/a", variables.get("prefix"));
+    }
+
+    public void testIncompleteSliceFetchesLongerPrefix() throws Exception {
+        String[] uris = new String[ShellCompletor.LIMIT];
+        for(int i = 0; i < uris.length; i++) {
+            uris[i] = "/docs/a" + (1000 + i) + ".xml";
+        }
+        server.respond("cts:uris", uris);
+        ShellCompletor completor = new ShellCompletor(shell, 1000,
+                ShellCompletor.TTL);
+        assertEquals(uris.length, complete(completor, "ls /docs/").size());
+        complete(completor, "ls /docs/a10");
+        assertEquals(2, uriRequests());
+        // the same prefix is answered from its own slice
+        complete(completor, "ls /docs/a10");
+        assertEquals(2, uriRequests());
+    }
+
+    public void testExpiredSliceIsFetchedAgain() throws Exception {
+        server.respond("cts:uris", new String[] { "/a.xml" });
+        ShellCompletor completor = new ShellCompletor(shell, 1000, 1);
+        complete(completor, "ls /");
+        Thread.sleep(20);
+        assertEquals(Arrays.asList(new String[] { "/a.xml" }), complete(
+                completor, "ls /"));
+        assertEquals(2, uriRequests());
+    }
+
+    public void testSlowServerDoesNotBlockCompletion() throws Exception {
+        server.respond("cts:uris", new String[] { "/a.xml" });
+        server.setLatency(500);
+        ShellCompletor completor = new ShellCompletor(shell);
+        long start = System.currentTimeMillis();
+        assertTrue(complete(completor, "ls /").isEmpty());
+        assertTrue(System.currentTimeMillis() - start < 400);
+        // pressing tab again once the names arrived shows them
+        Thread.sleep(700);
+        assertEquals(Arrays.asList(new String[] { "/a.xml" }), complete(
+                completor, "ls /"));
+        assertEquals(1, uriRequests());
+    }
+
+    public void testCompleteFlagFromCollectionLimit() throws Exception {
+        server.respond("cts:collections", new String[] { "books",
+                "bookmarks" });
+        ShellCompletor completor = new ShellCompletor(shell, 1000,
+                ShellCompletor.TTL);
+        assertEquals(2, complete(completor, "load -c b").size());
+        assertEquals(Arrays.asList(new String[] { "bookmarks" }), complete(
+                completor, "load -c bookm"));
+        assertEquals(1, requests("cts:collections"));
+    }
+
+    private List complete(ShellCompletor completor, String line) {
+        List candidates = new ArrayList();
+        completor.complete(line, line.length(), candidates);
+        return candidates;
+    }
+
+    private int uriRequests() {
+        return requests("cts:uris");
+    }
+
+    /**
+     * The variables of the last uri request.
+     */
+    private Map uriVariables() {
+        List queries = server.getQueries();
+        for(int i = queries.size() - 1; i >= 0; i--) {
+            if(((String) queries.get(i)).indexOf("cts:uris") != -1) {
+                return (Map) server.getVariables().get(i);
+            }
+        }
+        return null;
+    }
+
+    private int requests(String text) {
+        int n = 0;
+        for(Iterator i = server.getQueries().iterator(); i.hasNext();) {
+            if(((String) i.next()).indexOf(text) != -1) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
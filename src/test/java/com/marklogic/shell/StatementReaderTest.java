@@ -0,0 +1,107 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class StatementReaderTest extends TestCase {
+    public void testStatementsEndWithSemicolonLines() throws Exception {
+        assertEquals(Arrays.asList(new String[] { "1 + 1",
+                "for $i in (1, 2)\nreturn $i" }),
+                read("1 + 1;\nfor $i in (1, 2)\nreturn $i;\n"));
+    }
+
+    public void testEntityReferences() throws Exception {
+        assertEquals(Arrays.asList(new String[] {
+                "<a>&lt;\n&#60;\n&#x3c;\n</a>", "2" }),
+                read("<a>&lt;\n&#60;\n&#x3c;\n</a>;\n2;\n"));
+    }
+
+    public void testComments() throws Exception {
+        assertEquals(Arrays.asList(new String[] {
+                "(: first;\nsecond; :)\n1", "(: done :) 2" }),
+                read("(: first;\nsecond; :)\n1;\n(: done :) 2;\n"));
+    }
+
+    public void testProlog() throws Exception {
+        assertEquals(Arrays.asList(new String[] {
+                "declare namespace a = \"urn:a\";\n"
+                        + "(: prolog :) define variable $x { 1 };\n$x",
+                "xquery version \"0.9-ml\";\n1" }),
+                read("declare namespace a = \"urn:a\";\n"
+                        + "(: prolog :) define variable $x { 1 };\n$x;\n"
+                        + "xquery version \"0.9-ml\";\n1;\n"));
+        assertTrue(StatementReader
+                .hasProlog("(: c :) declare namespace a = \"urn:a\"; 1"));
+        assertFalse(StatementReader.hasProlog("declared()"));
+    }
+
+    public void testCrLf() throws Exception {
+        assertEquals(Arrays.asList(new String[] { "1",
+                "for $i in (1, 2)\r\nreturn $i" }),
+                read("1;\r\nfor $i in (1, 2)\r\nreturn $i;\r\n"));
+    }
+
+    public void testTextLeftAtEnd() throws Exception {
+        assertEquals(Arrays.asList(new String[] { "1", "2\n3" }),
+                read("1;\n2\n3"));
+        assertEquals(Arrays.asList(new String[] { "1" }), read("1;\n \n\n"));
+        assertEquals(Arrays.asList(new String[] { "4", "5" }),
+                read("4;\n5;"));
+        assertEquals(Arrays.asList(new String[] {
+                "define variable $x { 1 };\n$x" }),
+                read("define variable $x { 1 };\n$x"));
+        assertTrue(read("").isEmpty());
+    }
+
+    public void testStringsAndElements() throws Exception {
+        assertEquals(Arrays.asList(new String[] { "\"a;\nb\"",
+                "'c;\n'", "<a x=\"{ 1 };\n\">d;\n<b/>{ \"}\" };\n</a>",
+                "(1, 2)" }),
+                read("\"a;\nb\";\n'c;\n';\n"
+                        + "<a x=\"{ 1 };\n\">d;\n<b/>{ \"}\" };\n</a>;\n"
+                        + "(1, 2);\n"));
+        assertEquals(Arrays.asList(new String[] { "1 < 2", "3" }),
+                read("1 < 2;\n3;\n"));
+    }
+
+    public void testPrologCarriedToLaterStatements() throws Exception {
+        String prolog = "xquery version \"0.9-ml\";\n"
+                + "declare namespace a = \"urn:a\";\n"
+                + "define variable $x { 1 };";
+        assertEquals(Arrays.asList(new String[] {
+                prolog + "\n<a:b>{ $x }</a:b>", prolog + "\n$x + 1",
+                "define variable $y { 2 };\n$y",
+                "define variable $y { 2 };\n$y * 2" }),
+                read(prolog + "\n<a:b>{ $x }</a:b>;\n$x + 1;\n"
+                        + "define variable $y { 2 };\n$y;\n$y * 2"));
+    }
+
+    private List read(String text) throws Exception {
+        StatementReader reader = new StatementReader(new StringReader(text));
+        List statements = new ArrayList();
+        String statement;
+        while((statement = reader.next()) != null) {
+            statements.add(statement);
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import junit.framework.TestCase;
+
+public class StringsTest extends TestCase {
+    public void testQuote() {
+        assertEquals("\"a \"\"b\"\" &amp; c\"", Strings.quote("a \"b\" & c"));
+    }
+
+    public void testRow() {
+        assertEquals("ab     12 xyz", Strings.row(new String[] { "ab", "12",
+                "xyz" }, new int[] { -4, 4, 0 }));
+        assertEquals("abc", Strings.row(new String[] { "abcdef" },
+                new int[] { 3 }));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2005 Andrew Bruno <aeb@qnot.org> 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at 
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.marklogic.shell;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TransactionTest extends TestCase {
+    public void testStatementsJoinedIntoOneSequence() {
+        Transaction transaction = new Transaction(0);
+        transaction.add("xdmp:document-delete(\"/a.xml\")");
+        transaction.add("  ");
+        transaction.add("1 (: comment");
+        assertEquals(2, transaction.size());
+        List requests = transaction.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals("(xdmp:document-delete(\"/a.xml\")\n),\n(1 (: comment\n)",
+                requests.get(0));
+    }
+
+    public void testChunkBySize() {
+        Transaction transaction = new Transaction(20);
+        transaction.add("1111111111");
+        transaction.add("2222222");
+        transaction.add("3333333333");
+        transaction.add("444444444444444444444444");
+        List requests = transaction.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals("(1111111111\n),\n(2222222\n)", requests.get(0));
+        assertEquals("(3333333333\n)", requests.get(1));
+        // a statement longer than the chunk size still gets a request
+        assertEquals("(444444444444444444444444\n)", requests.get(2));
+    }
+
+    public void testStatementWithPrologOnItsOwn() {
+        Transaction transaction = new Transaction(0);
+        transaction.add("1");
+        transaction.add("define variable $x { 2 } $x");
+        transaction.add("(: note :) declare namespace a = \"urn:a\" 3");
+        transaction.add("4");
+        List requests = transaction.getRequests();
+        assertEquals(4, requests.size());
+        assertEquals("(1\n)", requests.get(0));
+        assertEquals("define variable $x { 2 } $x", requests.get(1));
+        assertEquals("(: note :) declare namespace a = \"urn:a\" 3", requests
+                .get(2));
+        assertEquals("(4\n)", requests.get(3));
+    }
+}